@@ -22,6 +22,8 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.lang.ref.SoftReference;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Vector;
 
 import artofillusion.MeshViewer;
@@ -76,6 +78,8 @@ public class Cloth extends Object3D implements Mesh {
   private ClothSimEditorWindow editor; // reference to window that edits the cloth simulation
   private Vector<SimFrame> storedFrames; // reference to frames stored from simulation
   private ObjectInfo theObject; // reference to the object that was converted into a cloth
+  private ClothTopology topology; // flat copy of theSprings used by the simulator
+  private ClothSurface surface; // flat copy of the triangles used by self collision
 
 
   /**
@@ -111,11 +115,12 @@ public class Cloth extends Object3D implements Mesh {
 
     // Add first layer springs
     Edge[] meshEdges = theTriangleMesh.getEdges();
+    Set<Long> springPairs = new HashSet<Long>();
     for(int i = 0; i < meshEdges.length; i++) {
       Mass massA = theMasses[meshEdges[i].v1];
       Mass massB = theMasses[meshEdges[i].v2];
-      Spring s = new Spring(massA, massB, massA.getPosition().distance(massB.getPosition()), springConstant);
-      if (!springExists(s)) {
+      if (!springExists(massA, massB, springPairs)) {
+        Spring s = new Spring(massA, massB, massA.getPosition().distance(massB.getPosition()), springConstant);
         theSprings.add(s);
         massA.connectToSpring(s);
         massB.connectToSpring(s);
@@ -124,20 +129,19 @@ public class Cloth extends Object3D implements Mesh {
   }
 
   /**
-   * Returns true if the spring already exists in the list of springs.
-   * @param s
+   * Returns true if a spring between the two masses was already added.
+   * The pair is looked up by the indices of the masses in pairs, and added
+   * to it if it is not there, so checking an edge takes the same time
+   * however many springs there are.
+   * @param a
+   * @param b
+   * @param pairs the pairs added so far
    * @return
    */
-  private boolean springExists(Spring s) {
-    for(Spring existingS : theSprings) {
-      if(existingS.equals(s)) {
-        return true;
-      }
-    }
-
-    storedFrames = null;
-
-    return false;
+  private static boolean springExists(Mass a, Mass b, Set<Long> pairs) {
+    long lo = Math.min(a.getIndex(), b.getIndex());
+    long hi = Math.max(a.getIndex(), b.getIndex());
+    return !pairs.add((hi << 32) | lo);
   }
 
   /**
@@ -162,6 +166,8 @@ public class Cloth extends Object3D implements Mesh {
     collisionDistance = cloth.collisionDistance;
 
     storedFrames = cloth.storedFrames;
+    topology = cloth.topology;
+    surface = cloth.surface;
 
   }
 
@@ -185,6 +191,31 @@ public class Cloth extends Object3D implements Mesh {
     return ret;
   }
 
+  /**
+   * Returns the springs as flat index tables. The tables are built the
+   * first time they are asked for and shared with every copy of the cloth.
+   * @return
+   */
+  public ClothTopology getTopology() {
+    if(topology == null) {
+      topology = new ClothTopology(theMasses.length, getSprings());
+    }
+    return topology;
+  }
+
+  /**
+   * Returns the triangles and edges as flat tables with a tree over the
+   * triangles. They are built the first time they are asked for and
+   * shared with every copy of the cloth.
+   * @return
+   */
+  public ClothSurface getSurface() {
+    if(surface == null) {
+      surface = new ClothSurface(theTriangleMesh);
+    }
+    return surface;
+  }
+
   /**
    * Get the spring constant.
    * @return
@@ -283,6 +314,8 @@ public class Cloth extends Object3D implements Mesh {
     cachedMesh = null;
 
     storedFrames = cloth.storedFrames;
+    topology = cloth.topology;
+    surface = cloth.surface;
   }
 
   @Override
@@ -775,11 +808,12 @@ public class Cloth extends Object3D implements Mesh {
 
     // Add first layer springs
     Edge[] meshEdges = theTriangleMesh.getEdges();
+    Set<Long> springPairs = new HashSet<Long>();
     for(int i = 0; i < meshEdges.length; i++) {
       Mass massA = theMasses[meshEdges[i].v1];
       Mass massB = theMasses[meshEdges[i].v2];
-      Spring s = new Spring(massA, massB, massA.getPosition().distance(massB.getPosition()), springConstant);
-      if (!springExists(s)) {
+      if (!springExists(massA, massB, springPairs)) {
+        Spring s = new Spring(massA, massB, massA.getPosition().distance(massB.getPosition()), springConstant);
         theSprings.add(s);
         massA.connectToSpring(s);
         massB.connectToSpring(s);
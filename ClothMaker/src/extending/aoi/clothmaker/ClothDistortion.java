@@ -18,8 +18,7 @@
 package extending.aoi.clothmaker;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
 
 import artofillusion.Scene;
 import artofillusion.animation.distortion.Distortion;
@@ -51,12 +50,12 @@ public class ClothDistortion extends Distortion {
   public static final int X_AXIS = 0;
   public static final int Y_AXIS = 1;
   public static final int Z_AXIS = 2;
-  
-  // Size of a vertex regarding cloth self-collision
-  final double pointRadius = 0.1;
+  public static final int EXPLICIT = 0;
+  public static final int IMPLICIT = 1;
+  public static final int XPBD = 2;
 
-  // Reference to Vector containing the stored frames
-  private Vector<SimFrame> myStoredFrames;
+  // Reference to the store holding the stored frames
+  private FrameStore myStoredFrames;
   // The previous frame. During draping, we just keep one frame.
   private SimFrame myPrevDrapeMesh;
   // Direction of gravity. Possible values are X_AXIS, Y_AXIS, Z_AXIS
@@ -71,12 +70,32 @@ public class ClothDistortion extends Distortion {
   private double collision_distance;
   // Simulation Frames per Second
   private double fps;
+  // Number of steps the current frame is split into
+  private int subFrames;
   // True if selfCollision should be detected
   private boolean selfCollision;
   // True if cloth should be prevented from dropping lower than 0
   private boolean floorCollision;
   // weight of a vertex
 	private double vertex_mass;
+  // How the cloth is moved forward in time. Possible values are EXPLICIT, IMPLICIT, XPBD
+  private int integrator;
+  // Inverse stiffness of the XPBD distance constraints
+  private double compliance;
+  // Number of XPBD constraint iterations per step
+  private int iterations;
+  // True if the XPBD constraints should be solved with Jacobi rather than Gauss-Seidel iterations
+  private boolean jacobi;
+  // Pool the vertices are moved on, or null to move them on this thread
+  private ForkJoinPool pool;
+  // Triangles of the colliders kept between steps, or null to keep them for this step only
+  private TriangleSoupCache colliderCache;
+  // Distance fields of the colliders that don't move, or null to use their triangles
+  private DistanceFieldCache fieldCache;
+  // Where the colliders are at each time, kept between steps, or null to keep them for this step only
+  private MotionCache motionCache;
+  // Where the stored frames are kept, or null to keep them on the heap
+  private MappedFrameStore frameStore;
 
   /**
    * Constructor
@@ -85,6 +104,7 @@ public class ClothDistortion extends Distortion {
    * @param prevDrapeMesh
    * @param time
    * @param fps
+   * @param subFrames
    * @param gravity
    * @param gravityAxis
    * @param spring_constant
@@ -92,16 +112,28 @@ public class ClothDistortion extends Distortion {
    * @param collision_distance
    * @param selfCollision
    * @param floorCollision
+   * @param integrator
+   * @param compliance
+   * @param iterations
+   * @param jacobi
    * @param scene
+   * @param pool
+   * @param colliderCache
+   * @param fieldCache
+   * @param motionCache
+   * @param frameStore
    */
-  public ClothDistortion(ObjectInfo info, Vector<SimFrame> storedMeshes, SimFrame prevDrapeMesh, double time, double fps, double gravity, int gravityAxis, 
+  public ClothDistortion(ObjectInfo info, FrameStore storedMeshes, SimFrame prevDrapeMesh, double time, double fps, int subFrames, double gravity, int gravityAxis, 
       double spring_constant, double damping_constant, double collision_distance, double vertex_mass, boolean selfCollision, boolean floorCollision, 
-      Scene scene)  {
+      int integrator, double compliance, int iterations, boolean jacobi, Scene scene, ForkJoinPool pool,
+      TriangleSoupCache colliderCache, DistanceFieldCache fieldCache, MotionCache motionCache,
+      MappedFrameStore frameStore)  {
     this.info = info;
     this.myStoredFrames = storedMeshes;
     this.myPrevDrapeMesh = prevDrapeMesh;
     this.time = time;
     this.fps = fps;
+    this.subFrames = subFrames;
     this.gravity = gravity;
     this.gravityAxis = gravityAxis;
     this.spring_constant = spring_constant;
@@ -110,7 +142,16 @@ public class ClothDistortion extends Distortion {
     this.vertex_mass = vertex_mass;
     this.selfCollision = selfCollision;
     this.floorCollision = floorCollision;
+    this.integrator = integrator;
+    this.compliance = compliance;
+    this.iterations = iterations;
+    this.jacobi = jacobi;
     this.scene = scene;
+    this.pool = pool;
+    this.colliderCache = colliderCache;
+    this.fieldCache = fieldCache;
+    this.motionCache = motionCache;
+    this.frameStore = frameStore;
   }
 
   @Override
@@ -122,9 +163,10 @@ public class ClothDistortion extends Distortion {
       return false;
     if (previous == null && s.previous != null)
       return false;
-    if (time != s.time || scene != s.scene || fps != s.fps || gravity != s.gravity || spring_constant != s.spring_constant ||
+    if (time != s.time || scene != s.scene || fps != s.fps || subFrames != s.subFrames || gravity != s.gravity || spring_constant != s.spring_constant ||
         damping_constant != s.damping_constant || collision_distance != s.collision_distance || selfCollision != s.selfCollision ||
-        floorCollision != s.floorCollision)
+        floorCollision != s.floorCollision || integrator != s.integrator ||
+        compliance != s.compliance || iterations != s.iterations || jacobi != s.jacobi)
       return false;
 
     return true;
@@ -132,9 +174,9 @@ public class ClothDistortion extends Distortion {
 
   @Override
   public Distortion duplicate() {
-    ClothDistortion d = new ClothDistortion(info, myStoredFrames, myPrevDrapeMesh, time, fps, gravity, gravityAxis, 
+    ClothDistortion d = new ClothDistortion(info, myStoredFrames, myPrevDrapeMesh, time, fps, subFrames, gravity, gravityAxis, 
         spring_constant, damping_constant, collision_distance, vertex_mass,
-        selfCollision, floorCollision, scene);
+        selfCollision, floorCollision, integrator, compliance, iterations, jacobi, scene, pool, colliderCache, fieldCache, motionCache, frameStore);
     if (previous != null)
       d.previous = previous.duplicate();
     return d;
@@ -143,18 +185,32 @@ public class ClothDistortion extends Distortion {
   @Override
   public Mesh transform(Mesh obj) {
     Mesh retObj = (Mesh)obj.duplicate();
-    int frameNum = (int)(time * fps);
-    if(frameNum >= myStoredFrames.size()) frameNum = myStoredFrames.size() - 1 ;
-
-    if(!myStoredFrames.isEmpty()) {
-      if(frameNum > 0) {
-        SimFrame frame = myStoredFrames.lastElement();
-        for(int i = myStoredFrames.size()-1; i >= 0; i--) {
-          if(myStoredFrames.elementAt(i).frameNumber >= frameNum) {
-            frame = myStoredFrames.elementAt(i);
-          }
+    // Rendering threads come through here while frames are being stored,
+    // so they work from one snapshot rather than locking the store.
+    FrameStore.Snapshot frames = myStoredFrames.getSnapshot();
+    double frameTime = time * fps;
+
+    if(!frames.isEmpty()) {
+      // frames are numbered from the drape frames, so the count is not the last number
+      if(frameTime > frames.last().frameNumber) frameTime = frames.last().frameNumber;
+      if(frameTime > 0) {
+        // the frames on either side of the time
+        // frames from a damaged file are skipped
+        int whole = (int) Math.floor(frameTime);
+        SimFrame before = findReadable(frames, frames.lower(whole + 1), true);
+        SimFrame after = findReadable(frames, frames.ceiling(whole + 1), false);
+        if(before == null && after == null) {
+          return retObj;
+        }
+        else if(before == null) {
+          retObj = after.getCloth();
+        }
+        else if(after == null || before.frameNumber == frameTime) {
+          retObj = before.getCloth();
+        }
+        else {
+          retObj = interpolate_mesh(frames, before, after, frameTime);
         }
-        retObj = frame.M;
         if(obj instanceof Cloth) {
           Cloth Cth = (Cloth)obj;
           ((Object3D) retObj).copyTextureAndMaterial(Cth);
@@ -167,13 +223,18 @@ public class ClothDistortion extends Distortion {
 
   /**
    * Calculates where the vertices should be at the current time.
-   * This is the primary function of the simulation.
+   * This is the primary function of the simulation. Each frame is
+   * split into subFrames steps and the cloth is stored once the last
+   * of them is done.
    * @param obj
    * @param frame
+   * @param subFrame step of the frame, from 0 to subFrames-1
    * @return
    */
-  public Cloth transform(Cloth obj, int frame) {
-    CollisionDetector CD = new CollisionDetector(scene);
+  public Cloth transform(Cloth obj, int frame, int subFrame) {
+    final CollisionDetector CD = new CollisionDetector(scene, colliderCache, fieldCache, motionCache);
+    // The scene is only gone through once per step to find what the cloth could hit.
+    final ColliderSnapshot colliders = CD.findColliders(info, time, collision_distance, 1.0/fps);
     Mat4 fromLocal = info.getCoords().fromLocal();
     Mat4 toLocal = info.getCoords().toLocal();
 
@@ -188,41 +249,95 @@ public class ClothDistortion extends Distortion {
 
     retObj.setVertexPositions(positions);
 
-    SimFrame prevSF = load_prev_mesh(frame);
-    if(prevSF == null) {
-      prevSF = new SimFrame(frame, retObj);
+    // Where the vertices were before this step. Only the positions are
+    // needed, so the cloth is not copied when there is no earlier frame.
+    SimFrame prevSF = load_prev_mesh(frame, subFrame);
+    final Vec3 prevPositions[];
+    if(prevSF != null) {
+      prevPositions = prevSF.getVertexPositions();
     }
-
-    final int POINTS_TOTAL = retObj.getVertexPositions().length;
-
-    Vec3 P[] = new Vec3[POINTS_TOTAL];
-    double W[] = new double[POINTS_TOTAL];
-    Vec3 V[] = new Vec3[POINTS_TOTAL];
-
-    for(int i = 0; i < POINTS_TOTAL; i++) {
-      P[i] = prevSF.M.getMasses()[i].getPosition();
-      W[i] = prevSF.M.getMasses()[i].getWeight();
-      V[i] = prevSF.M.getMasses()[i].getVelocity();
+    else {
+      prevPositions = new Vec3[positions.length];
+      for(int n = 0; n < positions.length; n++) {
+        prevPositions[n] = new Vec3(positions[n]);
+      }
     }
 
-    Vec3 newvert[] = new Vec3[POINTS_TOTAL];
+    // The step reads cur and writes next, so the order the vertices
+    // are visited in does not change the result.
+    final ClothState cur = new ClothState(retObj.getTopology(), retObj.getMasses(), vertex_mass, retObj.getPinnedVertices());
+    final ClothState next = new ClothState(cur);
+    final int POINTS_TOTAL = cur.getVertexCount();
 
-    Vec3 g; // gravity
+    final double g[] = new double[3]; // gravity
     switch(gravityAxis) {
     case X_AXIS:
-      g = new Vec3(gravity, 0.0, 0.0);
+      g[0] = gravity;
       break;
     case Y_AXIS:
     default:
-      g = new Vec3(0.0, gravity, 0.0);
+      g[1] = gravity;
       break;
     case Z_AXIS:
-      g = new Vec3(0.0, 0.0, gravity);
+      g[2] = gravity;
       break;
     }
-    double k = spring_constant; 
-    double c = damping_constant;
 
+    final double wind[] = findWindForces(retObj, cur);
+    final double force[] = new double[POINTS_TOTAL*3];
+
+    ParallelLoop.run(pool, 0, POINTS_TOTAL, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        addExternalForces(cur, g, wind, force, first, last);
+      }
+    });
+    if(integrator == IMPLICIT) {
+      ImplicitSolver solver = new ImplicitSolver(cur, getTimeStep(), spring_constant, damping_constant, pool);
+      solver.step(force, next);
+    }
+    else if(integrator == XPBD) {
+      XpbdSolver solver = new XpbdSolver(cur, getTimeStep(), compliance, damping_constant, iterations, jacobi, pool);
+      solver.step(force, next);
+    }
+    else {
+      addSpringForces(cur, force);
+      ParallelLoop.run(pool, 0, POINTS_TOTAL, new ParallelLoop.Body() {
+        public void run(int first, int last) {
+          integrate(cur, next, force, first, last);
+        }
+      });
+    }
+
+    // Each vertex only writes its own entry of next and the detector
+    // keeps nothing between queries, so the vertices are done in parallel.
+    ParallelLoop.run(pool, 0, POINTS_TOTAL, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        for(int pt = first; pt < last; pt++) {
+          collide(CD, colliders, prevPositions, cur, next, pt);
+        }
+      }
+    });
+
+    // Self collision goes last, so it sees where the other collisions put the vertices.
+    if(selfCollision) {
+      new SelfCollider(retObj.getSurface(), cur, next, collision_distance, pool).resolve();
+    }
+
+    next.applyTo(retObj, toLocal);
+
+    save_mesh(frame, subFrame, retObj);
+
+    return retObj;
+  }
+
+  /**
+   * Finds the force the fans in the scene put on each vertex. The forces
+   * are returned three values per vertex, or null if there are no fans.
+   * @param cloth
+   * @param state
+   * @return
+   */
+  private double[] findWindForces(Cloth cloth, ClothState state) {
     ArrayList<ObjectInfo> fans = new ArrayList<ObjectInfo>();
 
     for(ObjectInfo candidate : scene.getAllObjects()){
@@ -231,196 +346,385 @@ public class ClothDistortion extends Distortion {
       }
     }
 
-    for(int pt = 0; pt < retObj.getMasses().length; pt++) {
-      Mass curMass = retObj.getMasses()[pt];
-      double t = time;                      // time step
-      Vec3 p = new Vec3(curMass.getPosition()); // our point
-      double m = vertex_mass;
-      Vec3 u = new Vec3(V[pt]); // current velocity of the mass
-      Vec3 F = g.times(m).minus(u.times(c)); // F is force on mass F = gravity * m - c * u
-
-      // Add wind forces
-      for(ObjectInfo fanInfo : fans) {
-      	for(int i = 0; i < fanInfo.getTracks().length; i++) {
-      		fanInfo.getTracks()[i].apply(time);
-      	}
-      	Fan theFan = (Fan)fanInfo.getObject();
-      	Vec3 fanPt = fanInfo.coords.toLocal().times(p);
-
-      	Vec3 A = theFan.getForce(fanPt, fanInfo.coords.toLocal().times(retObj.getNormals()[pt]));
-      	Vec3 forceVector = A;
-     	
-        double magnitude = forceVector.length();
-        
-        forceVector = fanInfo.getCoords().getUpDirection().times(magnitude);
-        Vec3 windDelta = theFan.getWindDelta();
-        
-        Vec3 D = new Vec3(windDelta.x + forceVector.x, windDelta.y + forceVector.y, windDelta.z + forceVector.z);
-        F = F.plus(D);
-      	
-      }
-      
-      boolean fixed_node = true;
-
-      for(Spring curSpring: curMass.getSprings()) {
-        if(!retObj.getPinnedVertices()[pt]) {
-          Vec3 q;
-          if(curSpring.getMassA()!=curMass) {
-            q = curSpring.getMassA().getPosition();
-          }
-          else{
-            q = curSpring.getMassB().getPosition();
-
-          }
-          Vec3 d = q.minus(p);
-          double x = d.length();
-          Vec3 normalizeD = new Vec3(d);
-          normalizeD.normalize();
-          F = F.plus(normalizeD.times(-k * (curSpring.getRestLength() - x)));
-          fixed_node = false;
-        }
-      }
+    if(fans.isEmpty()) {
+      return null;
+    }
 
+    final int POINTS_TOTAL = state.getVertexCount();
+    Vec3 normals[] = cloth.getNormals();
+    double wind[] = new double[POINTS_TOTAL*3];
 
-      if (fixed_node) {
-        F.set(0.0, 0.0, 0.0);
+    for(ObjectInfo fan : fans) {
+      // the tracks are applied to a copy, so the fan in the scene is not moved
+      ObjectInfo fanInfo = fan.duplicate();
+      for(int i = 0; i < fanInfo.getTracks().length; i++) {
+        fanInfo.getTracks()[i].apply(time);
       }
+      Fan theFan = (Fan)fanInfo.getObject();
+      Mat4 fanToLocal = fanInfo.coords.toLocal();
+      Vec3 up = fanInfo.getCoords().getUpDirection();
+
+      for(int pt = 0; pt < POINTS_TOTAL; pt++) {
+        Vec3 fanPt = fanToLocal.times(state.getPosition(pt));
+        Vec3 A = theFan.getForce(fanPt, fanToLocal.times(normals[pt]));
+        double magnitude = A.length();
+        Vec3 windDelta = theFan.getWindDelta();
 
-      // Acceleration due to force
-      Vec3 a = F.times(1.0/m);
+        wind[pt*3] += windDelta.x + up.x*magnitude;
+        wind[pt*3+1] += windDelta.y + up.y*magnitude;
+        wind[pt*3+2] += windDelta.z + up.z*magnitude;
+      }
+    }
 
-      // Displacement
-      Vec3 s = u.times(t).plus(a.times(0.5*t*t));
+    return wind;
+  }
 
-      // final velocity
-      Vec3 v = u.plus(a.times(t));
+  /**
+   * Sets the force on the vertices from first up to, but not including,
+   * last to gravity plus wind.
+   * @param cur
+   * @param g
+   * @param wind
+   * @param force
+   * @param first
+   * @param last
+   */
+  private void addExternalForces(ClothState cur, double g[], double wind[], double force[], int first, int last) {
+    double W[] = cur.getMasses();
+
+    for(int pt = first; pt < last; pt++) {
+      int i = pt*3;
+      double m = W[pt];
+      force[i] = g[0]*m;
+      force[i+1] = g[1]*m;
+      force[i+2] = g[2]*m;
+      if(wind != null) {
+        force[i] += wind[i];
+        force[i+1] += wind[i+1];
+        force[i+2] += wind[i+2];
+      }
+    }
+  }
 
-      // Constrain the absolute value of the displacement per step
-      double clamp_value = 0.0045;
-      s = clamp(s, clamp_value);
-      Vec3 ps = p.plus(s);
+  /**
+   * Adds the force of every spring to the two vertices it connects. Each
+   * spring is evaluated once and pushes its ends with equal and opposite
+   * forces. The springs of one color never share a vertex, so the springs
+   * within a color are spread over the pool while the colors themselves
+   * are done one after another. That also keeps the order the forces are
+   * added to each vertex fixed, whatever the number of threads.
+   * @param cur
+   * @param force
+   */
+  private void addSpringForces(final ClothState cur, final double force[]) {
+    ClothTopology topology = cur.getTopology();
+    int colorStart[] = topology.getColorStart();
+    ParallelLoop.Body body = new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        addSpringForces(cur, force, first, last);
+      }
+    };
 
-      P[pt].x = ps.x;
-      P[pt].y = ps.y;
-      P[pt].z = ps.z;
-      W[pt] = m;
-      V[pt] = v;
+    for(int c = 0; c < topology.getColorCount(); c++) {
+      ParallelLoop.run(pool, colorStart[c], colorStart[c+1], body);
+    }
+  }
 
-      // maximal location the vector can move to this simulation frame
-      Vec3 maxPoint = P[pt].minus(prevSF.M.getMasses()[pt].getPosition());
-      maxPoint.normalize();
-      maxPoint = maxPoint.times(collision_distance).plus(P[pt]);
+  /**
+   * Adds the forces of the springs at positions first up to, but not
+   * including, last of the colored spring list.
+   * @param cur
+   * @param force
+   * @param first
+   * @param last
+   */
+  private void addSpringForces(ClothState cur, double force[], int first, int last) {
+    ClothTopology topology = cur.getTopology();
+    int coloredSprings[] = topology.getColoredSprings();
+    int springA[] = topology.getSpringA();
+    int springB[] = topology.getSpringB();
+    double restLength[] = topology.getRestLengths();
+    double P[] = cur.getPositions();
+    double k = spring_constant;
+
+    for(int n = first; n < last; n++) {
+      int s = coloredSprings[n];
+      int a = springA[s]*3;
+      int b = springB[s]*3;
+      double dx = P[b] - P[a];
+      double dy = P[b+1] - P[a+1];
+      double dz = P[b+2] - P[a+2];
+      double x = Math.sqrt(dx*dx + dy*dy + dz*dz);
+      if(x > 0.0) {
+        // Pulls a toward b when stretched and pushes it away when compressed.
+        double f = -k * (restLength[s] - x) / x;
+        double fx = dx*f;
+        double fy = dy*f;
+        double fz = dz*f;
+        force[a] += fx;
+        force[a+1] += fy;
+        force[a+2] += fz;
+        force[b] -= fx;
+        force[b+1] -= fy;
+        force[b+2] -= fz;
+      }
+    }
+  }
 
-      Collection<ObjectInfo> candidates = CD.findCandidateObjects(info, new BoundingBox(maxPoint, prevSF.M.getMasses()[pt].getPosition()), time, collision_distance, 1.0/fps);
+  /**
+   * Applies the forces to the vertices from first up to, but not
+   * including, last. Only cur and force are read and only those vertices
+   * of next are written, so separate ranges can be moved independently.
+   * @param cur
+   * @param next
+   * @param force
+   * @param first
+   * @param last
+   */
+  private void integrate(ClothState cur, ClothState next, double force[], int first, int last) {
+    int adjStart[] = cur.getTopology().getAdjacencyStart();
+    double P[] = cur.getPositions();
+    double W[] = cur.getMasses();
+    boolean pinned[] = cur.getPinned();
+    double newP[] = next.getPositions();
+    double newV[] = next.getVelocities();
+    double t = time; // time step
+    double clamp_value = 0.0045;
+    // A frame was tuned as DEFAULT_SUBFRAMES of these steps, so each step
+    // moves its share of that, and a frame goes as far however many steps
+    // it is split into.
+    double share = (double) ClothMakerPlugin.DEFAULT_SUBFRAMES/subFrames;
+
+    for(int pt = first; pt < last; pt++) {
+      int i = pt*3;
+      double px = P[i];
+      double py = P[i+1];
+      double pz = P[i+2];
+
+      // A pinned vertex, or one without springs, does not move.
+      if(pinned[pt] || adjStart[pt] == adjStart[pt+1]) {
+        newP[i] = px;
+        newP[i+1] = py;
+        newP[i+2] = pz;
+        newV[i] = newV[i+1] = newV[i+2] = 0.0;
+        continue;
+      }
 
+      // Each step starts the vertex from rest, so the force is
+      // F = gravity * m + wind + springs, with no damping term.
+      // Acceleration due to force
+      double m = W[pt];
+      double ax = force[i]/m;
+      double ay = force[i+1]/m;
+      double az = force[i+2]/m;
 
+      // Displacement, constrained to a box around the vertex
+      newP[i] = px + share*clamp(0.5*ax*t*t, clamp_value);
+      newP[i+1] = py + share*clamp(0.5*ay*t*t, clamp_value);
+      newP[i+2] = pz + share*clamp(0.5*az*t*t, clamp_value);
 
-      Vec3 prev = prevSF.M.getTriangleMesh().getVertexPositions()[pt];
+      // final velocity
+      newV[i] = ax*t;
+      newV[i+1] = ay*t;
+      newV[i+2] = az*t;
+    }
+  }
 
-      candidates = CD.findCandidateObjects(info, new BoundingBox(maxPoint, prevSF.M.getMasses()[pt].getPosition()), time/ClothSimEditorWindow.subFrames, collision_distance, 1.0/(fps/ClothSimEditorWindow.subFrames));
-      if(CD.detectObjectCollision(prev, P[pt], candidates, time/ClothSimEditorWindow.subFrames, collision_distance, collision_distance))
-      {
-      	ps = CD.getLastCollisionPoint();
-     	
-      	P[pt].x = ps.x;
-      	P[pt].y = ps.y;
-      	P[pt].z = ps.z;
-      	V[pt] = v.times(0.0);
+  /**
+   * Moves vertex pt of next out of any collision it ran into on its way
+   * from cur.
+   * @param CD
+   * @param colliders
+   * @param prevPositions where the vertices were at the end of the last step
+   * @param cur
+   * @param next
+   * @param pt
+   */
+  private void collide(CollisionDetector CD, ColliderSnapshot colliders, Vec3 prevPositions[], ClothState cur, ClothState next, int pt) {
+    Vec3 p = cur.getPosition(pt);
+    Vec3 ps = next.getPosition(pt);
+
+    // maximal location the vector can move to this simulation frame
+    Vec3 maxPoint = ps.minus(p);
+    maxPoint.normalize();
+    maxPoint = maxPoint.times(collision_distance).plus(ps);
+
+    Vec3 prev = prevPositions[pt];
+
+    CollisionHit hit = CD.findCollision(prev, ps, colliders, new BoundingBox(maxPoint, p), time, collision_distance, collision_distance);
+    if(hit != null)
+    {
+      // snap to a 0.01 grid so a vertex resting on a collider doesn't jitter
+      ps = hit.getPoint();
+      ps.x = Math.round(ps.x*100.0)/100.0;
+      ps.y = Math.round(ps.y*100.0)/100.0;
+      ps.z = Math.round(ps.z*100.0)/100.0;
+      next.setPosition(pt, ps);
+      next.setVelocity(pt, 0.0, 0.0, 0.0);
+    }
 
+    if(floorCollision) {
+      if(ps.y < 0.0) {
+        ps.y = collision_distance;
+        next.setPosition(pt, ps);
+        next.setVelocity(pt, 0.0, 0.0, 0.0);
       }
-      
-      if(selfCollision) {
-        boolean isSelfCollision = CD.detectSelfCollision(prevSF.M, pt, pointRadius);
-        if(isSelfCollision) {
-          ps.x = prevSF.M.getMasses()[pt].getPosition().x;
-          ps.y = prevSF.M.getMasses()[pt].getPosition().y;
-          ps.z = prevSF.M.getMasses()[pt].getPosition().z;
-          double moveDist = pointRadius/10000.0; 
-          ps.z += moveDist;
-
-          P[pt].x = ps.x;
-          P[pt].y = ps.y;
-          P[pt].z = ps.z;
-          V[pt] = v.times(0.0);
-        }
-      }
+    }
+  }
 
-      if(floorCollision) {
-        if(P[pt].y < 0.0) {
-          ps.y = collision_distance;
-          P[pt].y = ps.y;
-        }
-      }
+  /**
+   * Get the length of one step in seconds.
+   * @return
+   */
+  private double getTimeStep() {
+    return 1.0/(fps*subFrames);
+  }
 
-      newvert[pt] = new Vec3( ps.x, ps.y, ps.z);
+  /**
+   * Puts together the cloth at a time between two stored frames. Each
+   * vertex follows a cubic Hermite curve from where it is in before to
+   * where it is in after, leaving and arriving at the velocity
+   * frame_velocity finds for those frames, so frames can be stored at a
+   * lower rate than they are rendered at and still move smoothly. If the
+   * frames have different vertices, the nearer one is used as it is.
+   * @param frames
+   * @param before
+   * @param after
+   * @param frameTime the time in frames, between the two frame numbers
+   * @return
+   */
+  private Cloth interpolate_mesh(FrameStore.Snapshot frames, SimFrame before, SimFrame after, double frameTime) {
+    if(before.getVertexCount() != after.getVertexCount()) {
+      return (frameTime - before.frameNumber < after.frameNumber - frameTime ? before : after).getCloth();
     }
-
-    for(int n = 0; n < newvert.length; n++) {
-      newvert[n] = toLocal.times(newvert[n]);
+    double span = after.frameNumber - before.frameNumber;
+    double s = (frameTime - before.frameNumber)/span;
+    double h00 = (2*s - 3)*s*s + 1;
+    double h10 = ((s - 2)*s + 1)*s*span;
+    double h01 = (3 - 2*s)*s*s;
+    double h11 = (s - 1)*s*s*span;
+
+    double p0[] = before.getPositions();
+    double p1[] = after.getPositions();
+    double m0[] = frame_velocity(frames, before);
+    double m1[] = frame_velocity(frames, after);
+    Vec3 v[] = new Vec3[p0.length/3];
+    for(int i = 0; i < v.length; i++) {
+      int n = i*3;
+      v[i] = new Vec3(h00*p0[n] + h10*m0[n] + h01*p1[n] + h11*m1[n],
+          h00*p0[n+1] + h10*m0[n+1] + h01*p1[n+1] + h11*m1[n+1],
+          h00*p0[n+2] + h10*m0[n+2] + h01*p1[n+2] + h11*m1[n+2]);
     }
+    Cloth cloth = before.getCloth();
+    cloth.setVertexPositions(v);
+    return cloth;
+  }
 
-    retObj.setVertexPositions(newvert);
+  /**
+   * Get the velocities of the vertices of a stored frame, in the
+   * coordinates of the cloth and per frame rather than per second. The
+   * velocities of the masses are only kept for the IMPLICIT and XPBD
+   * integrators, whose positions follow from them. The EXPLICIT step
+   * clamps how far a vertex moves, so its velocities can be far from how
+   * fast the vertex really went. For it, and for frames read from a file,
+   * the velocities are found from the frames on either side.
+   * @param frames
+   * @param frame
+   * @return
+   */
+  private double[] frame_velocity(FrameStore.Snapshot frames, SimFrame frame) {
+    double vel[] = frame.getVelocities();
+    if(vel != null) {
+      // the masses hold their velocities in world coordinates
+      Mat4 toLocal = info.getCoords().toLocal();
+      for(int i = 0; i < vel.length; i += 3) {
+        Vec3 v = toLocal.timesDirection(new Vec3(vel[i], vel[i+1], vel[i+2]));
+        vel[i] = v.x/fps;
+        vel[i+1] = v.y/fps;
+        vel[i+2] = v.z/fps;
+      }
+      return vel;
+    }
 
-    save_mesh(frame, retObj);
+    SimFrame prev = findReadable(frames, frames.lower(frame.frameNumber), true);
+    SimFrame next = findReadable(frames, frames.ceiling(frame.frameNumber + 1), false);
+    if(prev == null || prev.getVertexCount() != frame.getVertexCount()) {
+      prev = frame;
+    }
+    if(next == null || next.getVertexCount() != frame.getVertexCount()) {
+      next = frame;
+    }
+    vel = new double[frame.getVertexCount()*3];
+    if(prev != next) {
+      double p0[] = prev.getPositions();
+      double p1[] = next.getPositions();
+      double span = next.frameNumber - prev.frameNumber;
+      for(int i = 0; i < vel.length; i++) {
+        vel[i] = (p1[i] - p0[i])/span;
+      }
+    }
+    return vel;
+  }
 
-    return retObj;
+  /**
+   * Finds the nearest frame that can be read, starting at frame and going
+   * to earlier frames if earlier is true and to later ones if it is not.
+   * @param frames
+   * @param frame where to start, or null
+   * @param earlier
+   * @return the frame, or null if there is none
+   */
+  private static SimFrame findReadable(FrameStore.Snapshot frames, SimFrame frame, boolean earlier) {
+    while(frame != null && !frame.isReadable()) {
+      frame = earlier ? frames.lower(frame.frameNumber) : frames.ceiling(frame.frameNumber + 1);
+    }
+    return frame;
   }
 
   /**
-   * Stores the mesh so that it can be recalled later.
+   * Stores the mesh so that it can be recalled later. Only the last
+   * step of a frame is kept, so the stored frames stay at fps.
    * @param frame
+   * @param subFrame
    * @param mesh
    */
-  private void save_mesh(int frame, Cloth mesh) {
-    SimFrame simFrame = new SimFrame(frame/ClothSimEditorWindow.subFrames, mesh);
+  private void save_mesh(int frame, int subFrame, Cloth mesh) {
+    SimFrame like = myStoredFrames.getSnapshot().isEmpty() ? myPrevDrapeMesh : myStoredFrames.getSnapshot().last();
+    boolean keep = frame >= 0 && subFrame == subFrames-1;
+    SimFrame simFrame = new SimFrame(frame, mesh, like, integrator != EXPLICIT, keep ? frameStore : null);
 
     myPrevDrapeMesh = simFrame;
 
-    if(frame >= 0 && (frame % ClothSimEditorWindow.subFrames == 0)) {
-      int foundFrame = -1;
-      for(int i = 0; i < myStoredFrames.size(); i++) {
-        if(myStoredFrames.elementAt(i).frameNumber == frame/ClothSimEditorWindow.subFrames) {
-          foundFrame = i;
-          break;
-        }
-      }
-
-      if(foundFrame >= 0) {
-        myStoredFrames.set(foundFrame/ClothSimEditorWindow.subFrames, simFrame);
-      }
-      else {
-        myStoredFrames.add(simFrame);
-      }
+    if(keep) {
+      myStoredFrames.put(simFrame);
     }
   }
 
   /**
    * Finds the frame right before the currentFrame and returns it.
+   * Within a frame, that is the step before.
    * @param currentFrame
+   * @param subFrame
    * @return
    */
-  private extending.aoi.clothmaker.SimFrame load_prev_mesh(int currentFrame) {
+  private extending.aoi.clothmaker.SimFrame load_prev_mesh(int currentFrame, int subFrame) {
     SimFrame prevFrame = null;
-    if(currentFrame <= 0 || (currentFrame % ClothSimEditorWindow.subFrames != 0)) {
+    if(currentFrame <= 0 || subFrame > 0) {
       prevFrame = myPrevDrapeMesh;
     }
     else {
-      if(!myStoredFrames.isEmpty()) {
-        prevFrame = myStoredFrames.firstElement();
-        for(int i = 0; i < myStoredFrames.size(); i++) {
-          if(myStoredFrames.elementAt(i).frameNumber < currentFrame) {
-            prevFrame = myStoredFrames.elementAt(i);
-          }
-          else {
-            myStoredFrames.setSize(i+1);
-            break;
-          }
+      FrameStore.Snapshot frames = myStoredFrames.getSnapshot();
+      if(!frames.isEmpty()) {
+        prevFrame = findReadable(frames, frames.lower(currentFrame), true);
+        if(prevFrame == null) {
+          prevFrame = findReadable(frames, frames.first(), false);
         }
+        // the frames after this one are simulated again
+        myStoredFrames.truncateAfter(currentFrame);
 
-        if(prevFrame != null && prevFrame.frameNumber != currentFrame) {
-          prevFrame = new SimFrame(prevFrame.frameNumber, (Cloth)prevFrame.M.duplicate());
-        }
-        else {
+        // with nothing stored before it, first can be the last run of this
+        // frame, which is being simulated again and can't start from itself
+        if(prevFrame != null && prevFrame.frameNumber == currentFrame) {
           prevFrame = null;
         }
       }
@@ -431,23 +735,16 @@ public class ClothDistortion extends Distortion {
   }
   
   /**
-   * Prevents s from being too long by returning a Vec3 with any values
-   * that are too long dropped to within the box.
+   * Prevents s from being too long by returning it dropped to
+   * within [-clampValue, clampValue].
    * @param s
    * @param clampValue
    * @return
    */
-  private Vec3 clamp(Vec3 s, double clampValue) {
-    Vec3 ret = new Vec3(s);
-    
-    ret.x = (ret.x > clampValue)?clampValue:ret.x;
-    ret.y = (ret.y > clampValue)?clampValue:ret.y;
-    ret.z = (ret.z > clampValue)?clampValue:ret.z;
-    ret.x = (ret.x < -clampValue)?-clampValue:ret.x;
-    ret.y = (ret.y < -clampValue)?-clampValue:ret.y;
-    ret.z = (ret.z < -clampValue)?-clampValue:ret.z;
-
-    return ret;
+  private static double clamp(double s, double clampValue) {
+    if(s > clampValue) return clampValue;
+    if(s < -clampValue) return -clampValue;
+    return s;
   }
 
 }
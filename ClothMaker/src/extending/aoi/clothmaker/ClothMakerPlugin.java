@@ -18,6 +18,9 @@
 package extending.aoi.clothmaker;
 
 import java.util.Collection;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
 
 import artofillusion.LayoutWindow;
 import artofillusion.Plugin;
@@ -28,6 +31,7 @@ import artofillusion.object.Object3D;
 import artofillusion.object.ObjectInfo;
 import artofillusion.ui.ComponentsDialog;
 import artofillusion.ui.EditingWindow;
+import artofillusion.ui.MessageDialog;
 import artofillusion.ui.ToolPalette;
 import artofillusion.ui.Translate;
 import artofillusion.ui.ValueField;
@@ -61,7 +65,18 @@ public class ClothMakerPlugin implements Plugin {
   public static final boolean DEFAULT_SELF_COLLISION = true;
   public static final boolean DEFAULT_FLOOR_COLLISION = false;
   public static final double DEFAULT_WIND_MAGNITUDE = 0.02;
-  public static final int DEFAULT_SUBFRAMES = 4;
+  public static final int DEFAULT_SUBFRAMES = 4; // fixed sub frames of scenes saved before they became adaptive
+  public static final int DEFAULT_MIN_SUBFRAMES = 1;
+  public static final int DEFAULT_MAX_SUBFRAMES = 8;
+  public static final int DEFAULT_INTEGRATOR = ClothDistortion.EXPLICIT;
+  public static final double DEFAULT_COMPLIANCE = 0.0001;
+  public static final int DEFAULT_ITERATIONS = 10;
+  public static final boolean DEFAULT_JACOBI = false;
+  public static final boolean DEFAULT_DISTANCE_FIELDS = false;
+  public static final double DEFAULT_FIELD_RESOLUTION = 0.01;
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+  public static final boolean DEFAULT_MAPPED_FRAMES = false;
+  public static final int DEFAULT_PARALLEL_SIMULATIONS = Math.max(1, Runtime.getRuntime().availableProcessors()/4); // cloths simulated at once by Simulate All Cloth
   private LayoutWindow layout;
   private ToolPalette toolPalette;
   private CreateFanTool theFanTool;
@@ -72,6 +87,8 @@ public class ClothMakerPlugin implements Plugin {
   private double collisionDistance;
   private int counter;
   private int triMeshCounter;
+  private BMenuItem simulateAllMenuItem;
+  private volatile ClothSimScheduler scheduler; // the Simulate All Cloth run, or null
 
   /**
    * Constructor
@@ -122,7 +139,10 @@ public class ClothMakerPlugin implements Plugin {
       BMenuItem menuItem3 = Translate.menuItem("Duplicate Cloth as TriangleMesh", this, "dupClothTriMeshMenuAction");
       objectMenu.add(menuItem3, posConvertToActor+2);
 
-      new ClothMenuItemActivator(layout, menuItem1, menuItem2, menuItem3).start();
+      simulateAllMenuItem = Translate.menuItem("Simulate All Cloth", this, "simulateAllClothMenuAction");
+      objectMenu.add(simulateAllMenuItem, posConvertToActor+3);
+
+      new ClothMenuItemActivator(layout, menuItem1, menuItem2, menuItem3, simulateAllMenuItem, this).start();
     }
 
   }
@@ -190,6 +210,64 @@ public class ClothMakerPlugin implements Plugin {
 
   }
   
+  /**
+   * Simulates every cloth in the scene, several at a time, with the
+   * settings in its track. Choosing the menu item again while they run
+   * cancels them.
+   */
+  @SuppressWarnings("unused")
+  private void simulateAllClothMenuAction() {
+    if (scheduler != null) {
+      scheduler.cancel();
+      return;
+    }
+    List<ClothTrack> tracks = ClothSimScheduler.findTracks(layout.getScene());
+    if (tracks.isEmpty())
+      return;
+
+    simulateAllMenuItem.setText("Cancel Cloth Simulation");
+    scheduler = new ClothSimScheduler(tracks, DEFAULT_PARALLEL_SIMULATIONS, new SimulationJob.Listener() {
+      @Override
+      public void progress(final SimulationProgress progress) {
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            layout.setHelpText("Simulating cloth [ "+progress+" ]");
+          }
+        });
+      }
+
+      @Override
+      public void preview(Cloth cloth) {}
+
+      @Override
+      public void finished(SimulationProgress progress, boolean cancelled, final Throwable error) {
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            scheduler = null;
+            simulateAllMenuItem.setText("Simulate All Cloth");
+            layout.setHelpText("");
+            layout.getScene().setTime(layout.getScene().getTime());
+            layout.updateImage();
+            if (error != null) {
+              new MessageDialog(layout, "Cloth simulation stopped with an error: " + error);
+            }
+          }
+        });
+      }
+    });
+    scheduler.start();
+  }
+
+  /**
+   * Returns true while Simulate All Cloth is running.
+   * @return
+   */
+  boolean isSimulatingAll() {
+    return scheduler != null;
+  }
+
   @SuppressWarnings("unused")
   private void dupClothTriMeshMenuAction() {
 		
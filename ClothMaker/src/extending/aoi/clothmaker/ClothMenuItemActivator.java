@@ -18,12 +18,15 @@
 package extending.aoi.clothmaker;
 
 import artofillusion.LayoutWindow;
+import artofillusion.Scene;
+import artofillusion.animation.Track;
 import artofillusion.object.ObjectInfo;
 import buoy.widget.BMenuItem;
 
 /**
  * Thread that activates/deactivates menu items based on whether a
- * cloth object is selected.
+ * cloth object is selected. Simulate All Cloth is deactivated while a
+ * cloth is being simulated in its editor window.
  * 
  * @author Timothy Fish
  *
@@ -33,6 +36,8 @@ public class ClothMenuItemActivator extends Thread {
   private BMenuItem theConvertMenuItem;
   private BMenuItem theCopyToTriMenuItem;
   private BMenuItem theGenerateMenuItem;
+  private BMenuItem theSimulateAllMenuItem;
+  private ClothMakerPlugin thePlugin;
   private LayoutWindow theLayout;
   private CollisionDetector theCollisionDetector;
   private static final long inverseRefreshRate = 250; // refresh menuItem every quarter-second
@@ -41,15 +46,21 @@ public class ClothMenuItemActivator extends Thread {
    * Constructor
    * @param convertMenuItem Non-null menu item
    * @param generateMenuItem Non-null menu item 
+   * @param simulateAllMenuItem Non-null menu item
+   * @param plugin the plugin that runs Simulate All Cloth
    * @param layout non-null layout window
    */
   public ClothMenuItemActivator(LayoutWindow layout, 
   		                          BMenuItem convertMenuItem, 
   		                          BMenuItem copyToTriMenuItem,
-  		                          BMenuItem generateMenuItem) {
+  		                          BMenuItem generateMenuItem,
+  		                          BMenuItem simulateAllMenuItem,
+  		                          ClothMakerPlugin plugin) {
     theConvertMenuItem = convertMenuItem;
     theCopyToTriMenuItem = copyToTriMenuItem;
     theGenerateMenuItem = generateMenuItem;
+    theSimulateAllMenuItem = simulateAllMenuItem;
+    thePlugin = plugin;
     theLayout = layout;
     theCollisionDetector = new CollisionDetector(layout.getScene());
 
@@ -94,6 +105,16 @@ public class ClothMenuItemActivator extends Thread {
         }        
       }
 
+      if(theSimulateAllMenuItem != null) {
+        // it stays active while it runs, so it can be cancelled
+        if(thePlugin.isSimulatingAll() || !clothBeingSimulated()) {
+          theSimulateAllMenuItem.setEnabled(true);
+        }
+        else {
+          theSimulateAllMenuItem.setEnabled(false);
+        }
+      }
+
       try {
         // Sleep most of the time so processor can do other things
         // Updating every quarter-second is more than sufficient since
@@ -125,6 +146,23 @@ public class ClothMenuItemActivator extends Thread {
     return false;
   }
 
+  /**
+   * Returns true when the track of a cloth in the scene is being simulated.
+   * @return
+   */
+  private boolean clothBeingSimulated() {
+    Scene scene = theLayout.getScene();
+    for(int i = 0; i < scene.getNumObjects(); i++) {
+      for(Track T : scene.getObject(i).getTracks()) {
+        if(T instanceof ClothTrack && ((ClothTrack) T).isSimulating()) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
   /**
    * Returns true when a single Cloth object is selected.
    * @return
@@ -140,5 +178,5 @@ public class ClothMenuItemActivator extends Thread {
 
     return false;
   }
-
+
 }
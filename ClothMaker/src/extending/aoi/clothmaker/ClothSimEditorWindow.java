@@ -24,6 +24,8 @@ import java.awt.Rectangle;
 import java.util.Arrays;
 import java.util.Vector;
 
+import javax.swing.SwingUtilities;
+
 import artofillusion.MeshEditorWindow;
 import artofillusion.MoveViewTool;
 import artofillusion.RotateViewTool;
@@ -39,6 +41,7 @@ import artofillusion.object.TriangleMesh.Face;
 import artofillusion.object.TriangleMesh.Vertex;
 import artofillusion.ui.EditingTool;
 import artofillusion.ui.EditingWindow;
+import artofillusion.ui.MessageDialog;
 import artofillusion.ui.ToolPalette;
 import artofillusion.ui.Translate;
 import artofillusion.ui.UIUtilities;
@@ -52,7 +55,6 @@ import buoy.widget.*;
  */
 public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWindow {
 
-  static int subFrames = ClothMakerPlugin.DEFAULT_SUBFRAMES;
   private BMenuItem meshMenuItem[];
   boolean hideVert[], hideFace[], hideEdge[], selected[], showQuads, tolerant;
   boolean lockedPoints[];
@@ -67,9 +69,17 @@ public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWin
   private double spring_constant = ClothMakerPlugin.DEFAULT_SPRING_CONST;
   private double damping_constant = ClothMakerPlugin.DEFAULT_DAMPING_CONST;
   private double vertex_mass = ClothMakerPlugin.DEFAULT_VERTEX_MASS;
+  private int minSubFrames = ClothMakerPlugin.DEFAULT_MIN_SUBFRAMES;
+  private int maxSubFrames = ClothMakerPlugin.DEFAULT_MAX_SUBFRAMES;
+  private int threads = ClothMakerPlugin.DEFAULT_THREADS;
+  private int integrator = ClothMakerPlugin.DEFAULT_INTEGRATOR;
+  private double compliance = ClothMakerPlugin.DEFAULT_COMPLIANCE;
+  private int iterations = ClothMakerPlugin.DEFAULT_ITERATIONS;
+  private double fieldResolution = ClothMakerPlugin.DEFAULT_FIELD_RESOLUTION;
   private ValueField timeField;
   private ValueField gravityField;
   private BComboBox axisChoice;
+  private BComboBox integratorChoice;
   private ValueField kField;
   private ValueField cField;
   private ValueField mField;
@@ -77,12 +87,25 @@ public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWin
   private ValueField drapeFramesField;
   private ValueField simFramesField;
   private ValueField fpsField;
-  private ValueField subFramesField;
-  static double fps = ClothMakerPlugin.DEFAULT_FRAMES_PER_SECOND;
+  private ValueField minSubFramesField;
+  private ValueField maxSubFramesField;
+  private ValueField threadsField;
+  private ValueField complianceField;
+  private ValueField iterationsField;
+  private ValueField fieldResolutionField;
+  private double fps = ClothMakerPlugin.DEFAULT_FRAMES_PER_SECOND;
   private BCheckBox selfCheck;
   private BCheckBox floorCheck;
+  private BCheckBox jacobiCheck;
+  private BCheckBox fieldsCheck;
+  private BCheckBox mappedFramesCheck;
   private boolean selfCollision;
   private boolean floorCollision;
+  private boolean jacobi;
+  private boolean distanceFields;
+  private boolean mappedFrames;
+  private SimulationJob job; // the simulation that is running, or null
+  private BButton okButton;
   protected static boolean lastProjectOntoSurface, lastTolerant, lastShowQuads;
 
   /**
@@ -107,22 +130,34 @@ public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWin
 
     axisChoice = new BComboBox(new String [] {"X", "Y", "Z"});
     axisChoice.setSelectedIndex(gravityAxis);
+    integratorChoice = new BComboBox(new String [] {"Explicit", "Implicit", "XPBD"});
+    integratorChoice.setSelectedIndex(integrator);
     timeField = new ValueField(startTime, ValueField.NONE, 5);
     fpsField = new ValueField(fps, ValueField.NONZERO&ValueField.NONNEGATIVE & ValueField.INTEGER, 5);
     drapeFramesField = new ValueField(drapeFrames, ValueField.NONNEGATIVE & ValueField.INTEGER, 5);
     simFramesField = new ValueField(simFrames, ValueField.NONNEGATIVE & ValueField.INTEGER, 5);
-    subFramesField = new ValueField(subFrames, ValueField.NONNEGATIVE & ValueField.NONZERO & ValueField.INTEGER);
+    minSubFramesField = new ValueField(minSubFrames, ValueField.NONNEGATIVE & ValueField.NONZERO & ValueField.INTEGER, 5);
+    maxSubFramesField = new ValueField(maxSubFrames, ValueField.NONNEGATIVE & ValueField.NONZERO & ValueField.INTEGER, 5);
+    threadsField = new ValueField(threads, ValueField.NONNEGATIVE & ValueField.NONZERO & ValueField.INTEGER, 5);
     collisionField = new ValueField(collision_distance, ValueField.NONE, 5);
     gravityField = new ValueField(gravity, ValueField.NONE, 5);
     kField = new ValueField(spring_constant, ValueField.NONE, 5);
     cField = new ValueField(damping_constant, ValueField.NONE, 5);
     mField = new ValueField(vertex_mass, ValueField.NONZERO&ValueField.NONNEGATIVE, 5);
+    complianceField = new ValueField(compliance, ValueField.NONNEGATIVE, 5);
+    iterationsField = new ValueField(iterations, ValueField.NONNEGATIVE & ValueField.NONZERO & ValueField.INTEGER, 5);
+    jacobiCheck = new BCheckBox("Jacobi Iterations", ClothMakerPlugin.DEFAULT_JACOBI);
     selfCheck = new BCheckBox("Self Collision Detection", true);
     floorCheck = new BCheckBox("Floor Collision Detection", false);
+    fieldsCheck = new BCheckBox("Distance Fields for Still Objects", ClothMakerPlugin.DEFAULT_DISTANCE_FIELDS);
+    fieldResolutionField = new ValueField(fieldResolution, ValueField.NONZERO&ValueField.NONNEGATIVE, 5);
+    mappedFramesCheck = new BCheckBox("Keep Frames in Scratch File", ClothMakerPlugin.DEFAULT_MAPPED_FRAMES);
 
     ColumnContainer parameters = new ColumnContainer();
     parameters.add(new BLabel("Gravity Axis"));
     parameters.add(axisChoice);
+    parameters.add(new BLabel("Integrator"));
+    parameters.add(integratorChoice);
     parameters.add(new BLabel("Start Time"));
     parameters.add(timeField);
     parameters.add(new BLabel("Frames/Second"));
@@ -131,8 +166,12 @@ public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWin
     parameters.add(drapeFramesField);
     parameters.add(new BLabel("Sim Frames"));
     parameters.add(simFramesField);
-    parameters.add(new BLabel("Sub Frames"));
-    parameters.add(subFramesField);
+    parameters.add(new BLabel("Min Sub Frames"));
+    parameters.add(minSubFramesField);
+    parameters.add(new BLabel("Max Sub Frames"));
+    parameters.add(maxSubFramesField);
+    parameters.add(new BLabel("Threads"));
+    parameters.add(threadsField);
     parameters.add(new BLabel("Collision Distance"));
     parameters.add(collisionField);
     parameters.add(new BLabel("Gravity"));
@@ -143,13 +182,22 @@ public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWin
     parameters.add(cField);
     parameters.add(new BLabel("Vertex Mass"));
     parameters.add(mField);
+    parameters.add(new BLabel("Compliance"));
+    parameters.add(complianceField);
+    parameters.add(new BLabel("Iterations"));
+    parameters.add(iterationsField);
+    parameters.add(jacobiCheck);
     parameters.add(selfCheck);
     parameters.add(floorCheck);
+    parameters.add(fieldsCheck);
+    parameters.add(new BLabel("Field Resolution"));
+    parameters.add(fieldResolutionField);
+    parameters.add(mappedFramesCheck);
     content.add(parameters, 2, 0);
 
 
     RowContainer buttons = new RowContainer();
-    buttons.add(Translate.button("ok", this, "doOk"));
+    buttons.add(okButton = Translate.button("ok", this, "doOk"));
     buttons.add(Translate.button("cancel", this, "doCancel"));
     content.add(buttons, 0, 2, 2, 1, new LayoutInfo());
 
@@ -503,18 +551,28 @@ public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWin
   @Override
   protected void doOk() {
     // TODO add save
-    doSim();
-    setVisible(false);
+    if(job == null) {
+      doSim();
+    }
   }
 
   @Override
   protected void doCancel() {
     // TODO reset to pre-edit state
+    if(job != null) {
+      job.cancel();
+      return;
+    }
     setVisible(false);
   }
 
   /** 
-   * Calculates the distorted simframes for the simulation.
+   * Calculates the distorted simframes for the simulation. The frames are
+   * simulated by a SimulationJob on a thread of its own, and the window
+   * shows how far it has got in the title and the cloth as it was a
+   * moment ago. The window closes when the job is done, unless it was
+   * cancelled. Nothing is changed if the cloth is already being simulated
+   * by Simulate All Cloth.
    */
   protected void doSim() {
     ClothTrack theTrack = null;
@@ -530,38 +588,86 @@ public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWin
     fps  = fpsField.getValue();
     drapeFrames = (int) drapeFramesField.getValue();
     simFrames = (int) simFramesField.getValue();
-    subFrames = (int) subFramesField.getValue();
+    minSubFrames = (int) minSubFramesField.getValue();
+    maxSubFrames = Math.max(minSubFrames, (int) maxSubFramesField.getValue());
+    threads = (int) threadsField.getValue();
     gravity = gravityField.getValue();
     gravityAxis = axisChoice.getSelectedIndex();
+    integrator = integratorChoice.getSelectedIndex();
+    compliance = complianceField.getValue();
+    iterations = (int) iterationsField.getValue();
+    jacobi = jacobiCheck.getState();
     spring_constant = kField.getValue();
     damping_constant = cField.getValue();
     vertex_mass = mField.getValue();
     collision_distance = collisionField.getValue();
     selfCollision = selfCheck.getState();
     floorCollision = floorCheck.getState();
+    distanceFields = fieldsCheck.getState();
+    fieldResolution = fieldResolutionField.getValue();
+    mappedFrames = mappedFramesCheck.getState();
+
+    final Object3D original = getObject().getObject();
+    final String orgTitle = new String(this.getTitle());
+    final String workingTitle = new String(orgTitle)+"[ ";
+    job = new SimulationJob(theTrack, -drapeFrames, simFrames, new SimulationJob.Listener() {
+      @Override
+      public void progress(final SimulationProgress progress) {
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            setTitle(workingTitle+progress+" ]");
+          }
+        });
+      }
 
-    theTrack.setParams(startTime, fps*subFrames, gravity, gravityAxis, spring_constant, damping_constant, vertex_mass, collision_distance, selfCollision, floorCollision, drapeFrames, simFrames);
-
-    setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-    Object3D original = getObject().getObject();
-    String orgTitle = new String(this.getTitle());
-    String workingTitle = new String(orgTitle)+"[ ";
-    int maxFrames = simFrames*subFrames*subFrames;
-    for(int i = -drapeFrames*subFrames; i <= maxFrames; i++) {
-      SimFrame frame = theTrack.simulateCloth(i);
-      
-      
-      this.setTitle(workingTitle+i+" : "+maxFrames+" ]");
+      @Override
+      public void preview(final Cloth cloth) {
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            if(job != null) {
+              setObject(cloth);
+              updateImage();
+            }
+          }
+        });
+      }
 
-      this.updateImage();
+      @Override
+      public void finished(SimulationProgress progress, final boolean cancelled, final Throwable error) {
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            job = null;
+            okButton.setEnabled(true);
+            setTitle(orgTitle);
+            setObject(original);
+            setCursor(Cursor.getDefaultCursor());
+            updateImage();
+            if(error != null) {
+              // the window stays open so the settings can be changed and tried again
+              new MessageDialog(ClothSimEditorWindow.this, "The simulation stopped with an error: " + error);
+            }
+            else if(!cancelled) {
+              setVisible(false);
+            }
+          }
+        });
+      }
+    });
+    if(!job.claimTrack()) {
+      job = null;
+      new MessageDialog(this, "The cloth is already being simulated.");
+      return;
+    }
 
-      setObject(frame.M);
+    theTrack.setParams(startTime, fps, gravity, gravityAxis, spring_constant, damping_constant, vertex_mass, collision_distance, selfCollision, floorCollision, drapeFrames, simFrames, integrator, compliance, iterations, jacobi, minSubFrames, maxSubFrames, distanceFields, fieldResolution, threads, mappedFrames);
 
-    }
-    this.setTitle(orgTitle);
-    setObject(original);
-    setCursor(Cursor.getDefaultCursor());
+    theTrack.resetSimulation();
 
+    setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+    job.start();
   }
 
   /**
@@ -580,17 +686,12 @@ public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWin
     return dynamicPoints;
   }
 
-  /**
-   * Get Frames Per Second
-   * @return
-   */
-  public static double getFPS() {
-    return fps;
-  }
-
   @Override
   public void setVisible(boolean visible)
   {
+    if(!visible && job != null) {
+      job.cancel();
+    }
 
     ClothTrack theTrack = null;
     for(int i = 0; i < objInfo.getTracks().length; i++) {
@@ -600,20 +701,32 @@ public class ClothSimEditorWindow extends MeshEditorWindow implements EditingWin
     }
 
     if(theTrack != null) {
+      // a cloth that Simulate All Cloth is working on can't be simulated here too
+      okButton.setEnabled(job != null || !theTrack.isSimulating());
       this.collision_distance = theTrack.collision_distance;
 
       timeField.setValue(theTrack.startTime);
-      fpsField.setValue(theTrack.tfps/ClothSimEditorWindow.subFrames);
+      fpsField.setValue(theTrack.tfps);
       drapeFramesField.setValue(theTrack.drapeFrames);
       simFramesField.setValue(theTrack.simFrames);
       gravityField.setValue(theTrack.gravity);
       axisChoice.setSelectedIndex(theTrack.gravityAxis);
+      integratorChoice.setSelectedIndex(theTrack.integrator);
+      complianceField.setValue(theTrack.compliance);
+      iterationsField.setValue(theTrack.iterations);
+      jacobiCheck.setState(theTrack.jacobi);
       kField.setValue(theTrack.spring_constant);
       cField.setValue(theTrack.damping_constant);
       mField.setValue(theTrack.vertex_mass);
       collisionField.setValue(theTrack.collision_distance);
       selfCheck.setState(theTrack.selfCollision);
       floorCheck.setState(theTrack.floorCollision);      
+      minSubFramesField.setValue(theTrack.minSubFrames);
+      maxSubFramesField.setValue(theTrack.maxSubFrames);
+      threadsField.setValue(theTrack.threads);
+      fieldsCheck.setState(theTrack.distanceFields);
+      fieldResolutionField.setValue(theTrack.fieldResolution);
+      mappedFramesCheck.setState(theTrack.mappedFrames);
     }
 
     super.setVisible(visible);
@@ -0,0 +1,207 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import artofillusion.Scene;
+import artofillusion.animation.Track;
+import artofillusion.object.ObjectInfo;
+
+/**
+ * Simulates several cloths at once, each with a SimulationJob of its own.
+ * The jobs are run on a pool of a fixed number of threads, so a scene
+ * with many cloths does not start them all together. Each track runs
+ * with the settings it had when the scheduler was started, except that
+ * its threads are shared with the jobs that run beside it, and the
+ * cloths do not collide with each other's simulated frames, only with
+ * the objects as they are in the scene.
+ * <p>
+ * The listener is told about the jobs as if they were one: the progress
+ * counts the frames of every job, and finished is called once, after the
+ * last job stops. The calls are made on the simulation threads.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ClothSimScheduler {
+  private final List<ClothTrack> tracks;
+  private final int poolSize;
+  private final SimulationJob.Listener listener;
+  private final List<SimulationJob> jobs;
+  private ExecutorService pool;
+  private volatile boolean cancelled;
+  private long startTime;
+  private int frameCount; // of all the jobs
+  private int framesDone;
+  private int running; // jobs that have not finished
+  private Throwable error; // the first thing that stopped a job
+
+  /**
+   * Constructor
+   * @param tracks the tracks to simulate
+   * @param poolSize the most jobs run at one time
+   * @param listener
+   */
+  public ClothSimScheduler(List<ClothTrack> tracks, int poolSize, SimulationJob.Listener listener) {
+    this.tracks = new ArrayList<ClothTrack>(tracks);
+    this.poolSize = Math.max(1, poolSize);
+    this.listener = listener;
+    jobs = new ArrayList<SimulationJob>();
+  }
+
+  /**
+   * Finds the cloth tracks of the objects in a scene.
+   * @param scene
+   * @return
+   */
+  public static List<ClothTrack> findTracks(Scene scene) {
+    List<ClothTrack> tracks = new ArrayList<ClothTrack>();
+    for(int i = 0; i < scene.getNumObjects(); i++) {
+      ObjectInfo info = scene.getObject(i);
+      if(!(info.getObject() instanceof Cloth)) {
+        continue;
+      }
+      for(Track T : info.getTracks()) {
+        if(T instanceof ClothTrack && T.isEnabled()) {
+          tracks.add((ClothTrack) T);
+        }
+      }
+    }
+    return tracks;
+  }
+
+  /**
+   * Resets every track and starts the jobs. A track that is already being
+   * simulated, in its editor window, is left alone.
+   */
+  public synchronized void start() {
+    if(pool != null) {
+      throw new IllegalStateException("The scheduler was already started");
+    }
+    startTime = System.currentTimeMillis();
+    List<ClothTrack> claimed = new ArrayList<ClothTrack>();
+    for(ClothTrack track : tracks) {
+      // the run settings are the settings of the track once it is reset
+      ClothSimSettings settings = track.getSettings();
+      SimulationJob job = new SimulationJob(track, settings.getFirstFrame(), settings.getLastFrame(), new JobListener());
+      if(job.claimTrack()) {
+        claimed.add(track);
+        jobs.add(job);
+      }
+    }
+    int atOnce = Math.max(1, Math.min(poolSize, claimed.size()));
+    for(ClothTrack track : claimed) {
+      track.resetSimulation();
+      track.shareThreads(atOnce);
+      frameCount += track.getRunSettings().getFrameCount();
+    }
+    running = jobs.size();
+    pool = Executors.newFixedThreadPool(atOnce, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Cloth Simulation");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    for(SimulationJob job : jobs) {
+      pool.execute(job);
+    }
+    pool.shutdown();
+    if(jobs.isEmpty()) {
+      listener.finished(new SimulationProgress(0, 0, 0, 0), false, null);
+    }
+  }
+
+  /**
+   * Asks every job to stop. A job that has not started yet stops before
+   * its first frame.
+   */
+  public synchronized void cancel() {
+    cancelled = true;
+    for(SimulationJob job : jobs) {
+      job.cancel();
+    }
+  }
+
+  /**
+   * Returns true if cancel was called.
+   * @return
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Waits for every job to stop.
+   * @throws InterruptedException
+   */
+  public void join() throws InterruptedException {
+    ExecutorService p;
+    synchronized(this) {
+      p = pool;
+    }
+    if(p != null) {
+      p.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Adds up what the jobs tell it and passes it on to the listener.
+   */
+  private class JobListener implements SimulationJob.Listener {
+    @Override
+    public void progress(SimulationProgress progress) {
+      SimulationProgress total;
+      synchronized(ClothSimScheduler.this) {
+        framesDone++;
+        total = new SimulationProgress(progress.getFrameNumber(), framesDone, frameCount, System.currentTimeMillis() - startTime);
+      }
+      listener.progress(total);
+    }
+
+    @Override
+    public void preview(Cloth cloth) {
+      listener.preview(cloth);
+    }
+
+    @Override
+    public void finished(SimulationProgress progress, boolean jobCancelled, Throwable jobError) {
+      SimulationProgress total;
+      Throwable firstError;
+      synchronized(ClothSimScheduler.this) {
+        if(error == null) {
+          error = jobError;
+        }
+        running--;
+        if(running > 0) {
+          return;
+        }
+        total = new SimulationProgress(progress.getFrameNumber(), framesDone, frameCount, System.currentTimeMillis() - startTime);
+        firstError = error;
+      }
+      listener.finished(total, cancelled, firstError);
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+/**
+ * The parameters of one run of a cloth simulation. A ClothTrack takes a
+ * copy of its parameters when a simulation is reset, and the run uses
+ * only that copy, so changing the track while it runs does not change
+ * the run, and simulations of different cloths share nothing.
+ * <p>
+ * Settings never change once they are made.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ClothSimSettings {
+  final double startTime;
+  final double fps;
+  final double gravity;
+  final int gravityAxis;
+  final double spring_constant;
+  final double damping_constant;
+  final double vertex_mass;
+  final double collision_distance;
+  final boolean selfCollision;
+  final boolean floorCollision;
+  final int drapeFrames;
+  final int simFrames;
+  final int integrator;
+  final double compliance;
+  final int iterations;
+  final boolean jacobi;
+  final int minSubFrames;
+  final int maxSubFrames;
+  final boolean distanceFields;
+  final double fieldResolution;
+  final int threads;
+  final boolean mappedFrames;
+
+  /**
+   * Constructor
+   * Copies the parameters of a track.
+   * @param track
+   */
+  ClothSimSettings(ClothTrack track) {
+    startTime = track.startTime;
+    fps = track.tfps;
+    gravity = track.gravity;
+    gravityAxis = track.gravityAxis;
+    spring_constant = track.spring_constant;
+    damping_constant = track.damping_constant;
+    vertex_mass = track.vertex_mass;
+    collision_distance = track.collision_distance;
+    selfCollision = track.selfCollision;
+    floorCollision = track.floorCollision;
+    drapeFrames = (int) track.drapeFrames;
+    simFrames = (int) track.simFrames;
+    integrator = track.integrator;
+    compliance = track.compliance;
+    iterations = track.iterations;
+    jacobi = track.jacobi;
+    minSubFrames = track.minSubFrames;
+    maxSubFrames = track.maxSubFrames;
+    distanceFields = track.distanceFields;
+    fieldResolution = track.fieldResolution;
+    threads = track.threads;
+    mappedFrames = track.mappedFrames;
+  }
+
+  /**
+   * Constructor
+   * Copies other settings with a different number of threads.
+   * @param from
+   * @param threads
+   */
+  ClothSimSettings(ClothSimSettings from, int threads) {
+    startTime = from.startTime;
+    fps = from.fps;
+    gravity = from.gravity;
+    gravityAxis = from.gravityAxis;
+    spring_constant = from.spring_constant;
+    damping_constant = from.damping_constant;
+    vertex_mass = from.vertex_mass;
+    collision_distance = from.collision_distance;
+    selfCollision = from.selfCollision;
+    floorCollision = from.floorCollision;
+    drapeFrames = from.drapeFrames;
+    simFrames = from.simFrames;
+    integrator = from.integrator;
+    compliance = from.compliance;
+    iterations = from.iterations;
+    jacobi = from.jacobi;
+    minSubFrames = from.minSubFrames;
+    maxSubFrames = from.maxSubFrames;
+    distanceFields = from.distanceFields;
+    fieldResolution = from.fieldResolution;
+    this.threads = threads;
+    mappedFrames = from.mappedFrames;
+  }
+
+  /**
+   * Get the frames per second.
+   * @return
+   */
+  public double getFPS() {
+    return fps;
+  }
+
+  /**
+   * Get the number of the first frame simulated. The frames before 0
+   * drape the cloth and are not stored.
+   * @return
+   */
+  public int getFirstFrame() {
+    return -drapeFrames;
+  }
+
+  /**
+   * Get the number of the last frame simulated.
+   * @return
+   */
+  public int getLastFrame() {
+    return simFrames;
+  }
+
+  /**
+   * Get the number of frames simulated, draping included.
+   * @return
+   */
+  public int getFrameCount() {
+    return getLastFrame() - getFirstFrame() + 1;
+  }
+}
@@ -0,0 +1,183 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import artofillusion.math.Mat4;
+import artofillusion.math.Vec3;
+
+/**
+ * The state of a Cloth as the simulator sees it. Positions and velocities
+ * are stored in flat arrays (x, y, z for vertex 0, then vertex 1, ...)
+ * together with the mass and pinned flag of each vertex, so a simulation
+ * step can run without allocating a Vec3 per value. The Masses of the
+ * Cloth stay a view of this state: it is read from them at the start of
+ * a step and written back with applyTo() at the end.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ClothState {
+  private final ClothTopology topology;
+  private final double position[];
+  private final double velocity[];
+  private final double mass[];
+  private final boolean pinned[];
+
+  /**
+   * Constructor
+   * Reads the positions and velocities from the masses.
+   * @param topology
+   * @param masses
+   * @param vertexMass
+   * @param pinnedVerts
+   */
+  public ClothState(ClothTopology topology, Mass masses[], double vertexMass, boolean pinnedVerts[]) {
+    this.topology = topology;
+    int count = topology.getVertexCount();
+    position = new double[count*3];
+    velocity = new double[count*3];
+    mass = new double[count];
+    pinned = new boolean[count];
+    for(int i = 0; i < count; i++) {
+      Vec3 p = masses[i].getPosition();
+      Vec3 v = masses[i].getVelocity();
+      position[i*3] = p.x;
+      position[i*3+1] = p.y;
+      position[i*3+2] = p.z;
+      velocity[i*3] = v.x;
+      velocity[i*3+1] = v.y;
+      velocity[i*3+2] = v.z;
+      mass[i] = vertexMass;
+      pinned[i] = pinnedVerts[i];
+    }
+  }
+
+  /**
+   * Copy Constructor
+   * The topology, masses and pinned flags are shared, the positions
+   * and velocities are copied.
+   * @param state
+   */
+  public ClothState(ClothState state) {
+    topology = state.topology;
+    position = state.position.clone();
+    velocity = state.velocity.clone();
+    mass = state.mass;
+    pinned = state.pinned;
+  }
+
+  /**
+   * Get the springs connecting the vertices.
+   * @return
+   */
+  public ClothTopology getTopology() {
+    return topology;
+  }
+
+  /**
+   * Get the number of vertices.
+   * @return
+   */
+  public int getVertexCount() {
+    return mass.length;
+  }
+
+  /**
+   * Get a reference to the positions, three values per vertex.
+   * @return
+   */
+  public double[] getPositions() {
+    return position;
+  }
+
+  /**
+   * Get a reference to the velocities, three values per vertex.
+   * @return
+   */
+  public double[] getVelocities() {
+    return velocity;
+  }
+
+  /**
+   * Get a reference to the weight of each vertex.
+   * @return
+   */
+  public double[] getMasses() {
+    return mass;
+  }
+
+  /**
+   * Get a reference to the flags of the vertices that are locked in place.
+   * @return
+   */
+  public boolean[] getPinned() {
+    return pinned;
+  }
+
+  /**
+   * Get the position of a vertex as a new Vec3.
+   * @param i
+   * @return
+   */
+  public Vec3 getPosition(int i) {
+    return new Vec3(position[i*3], position[i*3+1], position[i*3+2]);
+  }
+
+  /**
+   * Set the position of a vertex.
+   * @param i
+   * @param p
+   */
+  public void setPosition(int i, Vec3 p) {
+    position[i*3] = p.x;
+    position[i*3+1] = p.y;
+    position[i*3+2] = p.z;
+  }
+
+  /**
+   * Set the velocity of a vertex.
+   * @param i
+   * @param x
+   * @param y
+   * @param z
+   */
+  public void setVelocity(int i, double x, double y, double z) {
+    velocity[i*3] = x;
+    velocity[i*3+1] = y;
+    velocity[i*3+2] = z;
+  }
+
+  /**
+   * Writes the state back into the cloth. Positions are transformed by
+   * toLocal before they are given to the mesh.
+   * @param cloth
+   * @param toLocal
+   */
+  public void applyTo(Cloth cloth, Mat4 toLocal) {
+    Vec3 newvert[] = new Vec3[mass.length];
+    for(int i = 0; i < newvert.length; i++) {
+      newvert[i] = toLocal.times(getPosition(i));
+    }
+    cloth.setVertexPositions(newvert);
+
+    Mass masses[] = cloth.getMasses();
+    for(int i = 0; i < masses.length; i++) {
+      masses[i].setVelocity(new Vec3(velocity[i*3], velocity[i*3+1], velocity[i*3+2]));
+    }
+  }
+}
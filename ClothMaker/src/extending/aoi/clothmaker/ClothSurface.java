@@ -0,0 +1,260 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import artofillusion.math.Vec3;
+import artofillusion.object.TriangleMesh;
+import artofillusion.object.TriangleMesh.Edge;
+import artofillusion.object.TriangleMesh.Face;
+
+/**
+ * The triangles and edges of a Cloth as flat tables, together with a
+ * bounding volume hierarchy (BVH) over the triangles. Only the shape of
+ * the tree is kept here: which triangles go under which node. The boxes
+ * of the nodes change every step and are worked out by whoever walks the
+ * tree, so the surface never changes once it is built and every copy of a
+ * Cloth shares the same one.
+ * <p>
+ * The tree is built by splitting the triangles in half along the longest
+ * side of their bounds, using the positions the cloth had when it was
+ * made. The children of a node always come after it in the node tables,
+ * so going through the nodes from last to first visits every child
+ * before its parent.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ClothSurface {
+  private final int faceVertex[]; // three vertices per triangle
+  private final int faceEdge[]; // three edges per triangle
+  private final int edgeVertex[]; // two vertices per edge
+  private final int nodeLeft[]; // first child of each node, or -1 for a leaf
+  private final int nodeRight[]; // second child of each node, or -1 for a leaf
+  private final int nodeFace[]; // triangle of each leaf, or -1 for an inner node
+  private int nodeCount;
+  private int depth;
+
+  /**
+   * Constructor
+   * @param mesh
+   */
+  public ClothSurface(TriangleMesh mesh) {
+    Face faces[] = mesh.getFaces();
+    Edge edges[] = mesh.getEdges();
+    Vec3 vert[] = mesh.getVertexPositions();
+
+    faceVertex = new int[faces.length*3];
+    faceEdge = new int[faces.length*3];
+    for(int f = 0; f < faces.length; f++) {
+      faceVertex[f*3] = faces[f].v1;
+      faceVertex[f*3+1] = faces[f].v2;
+      faceVertex[f*3+2] = faces[f].v3;
+      faceEdge[f*3] = faces[f].e1;
+      faceEdge[f*3+1] = faces[f].e2;
+      faceEdge[f*3+2] = faces[f].e3;
+    }
+    edgeVertex = new int[edges.length*2];
+    for(int e = 0; e < edges.length; e++) {
+      edgeVertex[e*2] = edges[e].v1;
+      edgeVertex[e*2+1] = edges[e].v2;
+    }
+
+    int size = Math.max(1, faces.length*2 - 1);
+    nodeLeft = new int[size];
+    nodeRight = new int[size];
+    nodeFace = new int[size];
+    if(faces.length > 0) {
+      double centroid[] = new double[faces.length*3];
+      int order[] = new int[faces.length];
+      for(int f = 0; f < faces.length; f++) {
+        Vec3 c = vert[faces[f].v1].plus(vert[faces[f].v2]).plus(vert[faces[f].v3]);
+        centroid[f*3] = c.x/3.0;
+        centroid[f*3+1] = c.y/3.0;
+        centroid[f*3+2] = c.z/3.0;
+        order[f] = f;
+      }
+      build(order, 0, faces.length, centroid, 1);
+    }
+  }
+
+  /**
+   * Adds the node for the triangles order[first] to order[last-1] and
+   * the nodes below it.
+   * @param order
+   * @param first
+   * @param last
+   * @param centroid
+   * @param level
+   * @return the index of the new node
+   */
+  private int build(int order[], int first, int last, double centroid[], int level) {
+    int node = nodeCount++;
+    depth = Math.max(depth, level);
+    if(last - first == 1) {
+      nodeLeft[node] = nodeRight[node] = -1;
+      nodeFace[node] = order[first];
+      return node;
+    }
+    nodeFace[node] = -1;
+
+    // Split along the axis where the centers are most spread out.
+    double min[] = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+    double max[] = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+    for(int i = first; i < last; i++) {
+      for(int k = 0; k < 3; k++) {
+        min[k] = Math.min(min[k], centroid[order[i]*3+k]);
+        max[k] = Math.max(max[k], centroid[order[i]*3+k]);
+      }
+    }
+    int axis = 0;
+    for(int k = 1; k < 3; k++) {
+      if(max[k] - min[k] > max[axis] - min[axis]) {
+        axis = k;
+      }
+    }
+
+    int middle = (first + last) >>> 1;
+    select(order, first, last, middle, centroid, axis);
+    nodeLeft[node] = build(order, first, middle, centroid, level+1);
+    nodeRight[node] = build(order, middle, last, centroid, level+1);
+    return node;
+  }
+
+  /**
+   * Reorders order[first] to order[last-1] so that the triangle that
+   * belongs at position k when sorted along axis is there, with the ones
+   * before it no greater and the ones after no less.
+   * @param order
+   * @param first
+   * @param last
+   * @param k
+   * @param centroid
+   * @param axis
+   */
+  private static void select(int order[], int first, int last, int k, double centroid[], int axis) {
+    int lo = first;
+    int hi = last - 1;
+    while(lo < hi) {
+      double pivot = centroid[order[(lo + hi) >>> 1]*3+axis];
+      int i = lo;
+      int j = hi;
+      while(i <= j) {
+        while(centroid[order[i]*3+axis] < pivot) {
+          i++;
+        }
+        while(centroid[order[j]*3+axis] > pivot) {
+          j--;
+        }
+        if(i <= j) {
+          int swap = order[i];
+          order[i++] = order[j];
+          order[j--] = swap;
+        }
+      }
+      if(k <= j) {
+        hi = j;
+      }
+      else if(k >= i) {
+        lo = i;
+      }
+      else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Get the number of triangles.
+   * @return
+   */
+  public int getFaceCount() {
+    return faceVertex.length/3;
+  }
+
+  /**
+   * Get the number of edges.
+   * @return
+   */
+  public int getEdgeCount() {
+    return edgeVertex.length/2;
+  }
+
+  /**
+   * Get the three vertices of each triangle.
+   * @return
+   */
+  public int[] getFaceVertices() {
+    return faceVertex;
+  }
+
+  /**
+   * Get the three edges of each triangle.
+   * @return
+   */
+  public int[] getFaceEdges() {
+    return faceEdge;
+  }
+
+  /**
+   * Get the two vertices of each edge.
+   * @return
+   */
+  public int[] getEdgeVertices() {
+    return edgeVertex;
+  }
+
+  /**
+   * Get the number of nodes in the tree. Node 0 is the root.
+   * @return
+   */
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * Get the number of levels in the tree.
+   * @return
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Get the first child of each node, or -1 for a leaf.
+   * @return
+   */
+  public int[] getNodeLeft() {
+    return nodeLeft;
+  }
+
+  /**
+   * Get the second child of each node, or -1 for a leaf.
+   * @return
+   */
+  public int[] getNodeRight() {
+    return nodeRight;
+  }
+
+  /**
+   * Get the triangle of each leaf, or -1 for an inner node.
+   * @return
+   */
+  public int[] getNodeFace() {
+    return nodeFace;
+  }
+}
@@ -0,0 +1,267 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.Arrays;
+
+/**
+ * Flat description of how the Springs of a Cloth connect its vertices.
+ * The springs are kept twice, once as a list of edges and once as a
+ * compressed adjacency table (CSR) that gives the springs of each vertex,
+ * so the solver can walk them by index instead of through Mass and Spring
+ * objects. The topology never changes once it is built, so every copy of
+ * a Cloth shares the same one.
+ * <p>
+ * The springs are also sorted into colors such that no two springs of
+ * the same color share a vertex. All the springs of one color can then
+ * add their forces to their vertices at the same time without two of
+ * them writing to the same vertex.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ClothTopology {
+  private final int vertexCount;
+  private final int springA[]; // first vertex of each spring
+  private final int springB[]; // second vertex of each spring
+  private final double restLength[]; // resting length of each spring
+  private final int adjStart[]; // adjacency of vertex i is adjStart[i] to adjStart[i+1]-1
+  private final int adjVertex[]; // vertex at the other end of the spring
+  private final int adjSpring[]; // spring the adjacency entry belongs to
+  private final double adjRestLength[]; // resting length of the spring, repeated for locality
+  private final int colorStart[]; // springs of color c are coloredSprings[colorStart[c]] to coloredSprings[colorStart[c+1]-1]
+  private final int coloredSprings[]; // spring indices grouped by color
+
+  /**
+   * Constructor
+   * Builds the tables from the springs of a cloth.
+   * @param vertexCount
+   * @param springs
+   */
+  public ClothTopology(int vertexCount, Spring springs[]) {
+    this.vertexCount = vertexCount;
+    springA = new int[springs.length];
+    springB = new int[springs.length];
+    restLength = new double[springs.length];
+
+    int degree[] = new int[vertexCount];
+    for(int s = 0; s < springs.length; s++) {
+      springA[s] = springs[s].getMassA().getIndex();
+      springB[s] = springs[s].getMassB().getIndex();
+      restLength[s] = springs[s].getRestLength();
+      degree[springA[s]]++;
+      degree[springB[s]]++;
+    }
+
+    adjStart = new int[vertexCount+1];
+    for(int i = 0; i < vertexCount; i++) {
+      adjStart[i+1] = adjStart[i] + degree[i];
+    }
+
+    adjVertex = new int[adjStart[vertexCount]];
+    adjSpring = new int[adjStart[vertexCount]];
+    adjRestLength = new double[adjStart[vertexCount]];
+    int fill[] = new int[vertexCount];
+    System.arraycopy(adjStart, 0, fill, 0, vertexCount);
+    for(int s = 0; s < springs.length; s++) {
+      int a = springA[s];
+      int b = springB[s];
+      adjVertex[fill[a]] = b;
+      adjSpring[fill[a]] = s;
+      adjRestLength[fill[a]++] = restLength[s];
+      adjVertex[fill[b]] = a;
+      adjSpring[fill[b]] = s;
+      adjRestLength[fill[b]++] = restLength[s];
+    }
+
+    // Greedy coloring: each spring takes the lowest color not already
+    // used by a spring at either of its ends.
+    int springColor[] = new int[springs.length];
+    Arrays.fill(springColor, -1);
+    int maxDegree = 0;
+    for(int i = 0; i < vertexCount; i++) {
+      maxDegree = Math.max(maxDegree, degree[i]);
+    }
+    boolean used[] = new boolean[Math.max(1, 2*maxDegree)];
+    int colorCount = 0;
+    for(int s = 0; s < springs.length; s++) {
+      markColors(springA[s], springColor, used, true);
+      markColors(springB[s], springColor, used, true);
+      int c = 0;
+      while(used[c]) {
+        c++;
+      }
+      markColors(springA[s], springColor, used, false);
+      markColors(springB[s], springColor, used, false);
+      springColor[s] = c;
+      colorCount = Math.max(colorCount, c+1);
+    }
+
+    colorStart = new int[colorCount+1];
+    for(int s = 0; s < springs.length; s++) {
+      colorStart[springColor[s]+1]++;
+    }
+    for(int c = 0; c < colorCount; c++) {
+      colorStart[c+1] += colorStart[c];
+    }
+    coloredSprings = new int[springs.length];
+    fill = new int[colorCount];
+    System.arraycopy(colorStart, 0, fill, 0, colorCount);
+    for(int s = 0; s < springs.length; s++) {
+      coloredSprings[fill[springColor[s]]++] = s;
+    }
+  }
+
+  /**
+   * Sets or clears the used flag of the colors of the springs at a vertex.
+   * @param vertex
+   * @param springColor
+   * @param used
+   * @param value
+   */
+  private void markColors(int vertex, int springColor[], boolean used[], boolean value) {
+    for(int j = adjStart[vertex]; j < adjStart[vertex+1]; j++) {
+      int c = springColor[adjSpring[j]];
+      if(c >= 0) {
+        used[c] = value;
+      }
+    }
+  }
+
+  /**
+   * Get the number of vertices.
+   * @return
+   */
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  /**
+   * Get the number of springs.
+   * @return
+   */
+  public int getSpringCount() {
+    return springA.length;
+  }
+
+  /**
+   * Get the first vertex of each spring.
+   * @return
+   */
+  public int[] getSpringA() {
+    return springA;
+  }
+
+  /**
+   * Get the second vertex of each spring.
+   * @return
+   */
+  public int[] getSpringB() {
+    return springB;
+  }
+
+  /**
+   * Get the resting length of each spring.
+   * @return
+   */
+  public double[] getRestLengths() {
+    return restLength;
+  }
+
+  /**
+   * Get the start of each vertex's run in the adjacency table. The table
+   * has one extra entry, so the run of vertex i ends at getAdjacencyStart()[i+1].
+   * @return
+   */
+  public int[] getAdjacencyStart() {
+    return adjStart;
+  }
+
+  /**
+   * Get the vertex at the other end of each adjacency entry.
+   * @return
+   */
+  public int[] getAdjacentVertices() {
+    return adjVertex;
+  }
+
+  /**
+   * Get the spring of each adjacency entry.
+   * @return
+   */
+  public int[] getAdjacentSprings() {
+    return adjSpring;
+  }
+
+  /**
+   * Get the resting length of the spring of each adjacency entry.
+   * @return
+   */
+  public double[] getAdjacentRestLengths() {
+    return adjRestLength;
+  }
+
+  /**
+   * Get the number of spring colors.
+   * @return
+   */
+  public int getColorCount() {
+    return colorStart.length - 1;
+  }
+
+  /**
+   * Get the start of each color's run in getColoredSprings(). The table
+   * has one extra entry, so the run of color c ends at getColorStart()[c+1].
+   * @return
+   */
+  public int[] getColorStart() {
+    return colorStart;
+  }
+
+  /**
+   * Get the spring indices grouped by color.
+   * @return
+   */
+  public int[] getColoredSprings() {
+    return coloredSprings;
+  }
+
+  /**
+   * Returns true if a spring joins vertex a to vertex b.
+   * @param a
+   * @param b
+   * @return
+   */
+  public boolean isJoined(int a, int b) {
+    for(int j = adjStart[a]; j < adjStart[a+1]; j++) {
+      if(adjVertex[j] == b) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the number of springs connected to a vertex.
+   * @param vertex
+   * @return
+   */
+  public int getDegree(int vertex) {
+    return adjStart[vertex+1] - adjStart[vertex];
+  }
+}
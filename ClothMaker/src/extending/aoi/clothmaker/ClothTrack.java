@@ -19,13 +19,17 @@ package extending.aoi.clothmaker;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InvalidObjectException;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import artofillusion.LayoutWindow;
 import artofillusion.Scene;
 import artofillusion.animation.Track;
+import artofillusion.math.Vec3;
 import artofillusion.object.ObjectInfo;
 import extending.aoi.clothmaker.ClothDistortion;
 import extending.aoi.clothmaker.SimFrame;
@@ -37,7 +41,7 @@ import extending.aoi.clothmaker.SimFrame;
  */
 public class ClothTrack extends Track {
   ObjectInfo clothInfo;
-  Vector<SimFrame> storedFrames;
+  FrameStore storedFrames;
   SimFrame prevDrapeFrame;
   double startTime;
   double gravity;
@@ -52,6 +56,25 @@ public class ClothTrack extends Track {
   boolean floorCollision;
   double drapeFrames;
   double simFrames;
+  int integrator;
+  double compliance;
+  int iterations;
+  boolean jacobi;
+  int minSubFrames;
+  int maxSubFrames;
+  SubstepController substeps;
+  int threads; // threads used while simulating, not saved with the scene
+  ForkJoinPool pool;
+  TriangleSoupCache colliderCache; // triangles of the colliders, kept between steps
+  boolean distanceFields;
+  double fieldResolution;
+  DistanceFieldCache fieldCache;
+  MotionCache motionCache; // where the colliders are at each time, kept between steps
+  boolean mappedFrames; // keep the frames in a mapped scratch file, not saved with the scene
+  MappedFrameStore frameStore;
+  Cloth simCloth; // the cloth at the last frame simulated, not saved with the scene
+  ClothSimSettings settings; // parameters of the simulation that is running, not saved with the scene
+  SimulationJob job; // the job simulating the track, or null, not saved with the scene
 
   /**
    * Constructor
@@ -61,7 +84,7 @@ public class ClothTrack extends Track {
   {
     super("Cloth");
     this.clothInfo = info;
-    storedFrames = new Vector<SimFrame>();
+    storedFrames = new FrameStore();
 
     gravityAxis = ClothMakerPlugin.DEFAULT_GRAVITY_AXIS;
     tfps = ClothMakerPlugin.DEFAULT_FRAMES_PER_SECOND;
@@ -75,6 +98,16 @@ public class ClothTrack extends Track {
     simFrames = ClothMakerPlugin.DEFAULT_SIM_FRAMES;
     selfCollision = ClothMakerPlugin.DEFAULT_SELF_COLLISION;
     floorCollision = ClothMakerPlugin.DEFAULT_FLOOR_COLLISION;
+    integrator = ClothMakerPlugin.DEFAULT_INTEGRATOR;
+    compliance = ClothMakerPlugin.DEFAULT_COMPLIANCE;
+    iterations = ClothMakerPlugin.DEFAULT_ITERATIONS;
+    jacobi = ClothMakerPlugin.DEFAULT_JACOBI;
+    minSubFrames = ClothMakerPlugin.DEFAULT_MIN_SUBFRAMES;
+    maxSubFrames = ClothMakerPlugin.DEFAULT_MAX_SUBFRAMES;
+    distanceFields = ClothMakerPlugin.DEFAULT_DISTANCE_FIELDS;
+    fieldResolution = ClothMakerPlugin.DEFAULT_FIELD_RESOLUTION;
+    threads = ClothMakerPlugin.DEFAULT_THREADS;
+    mappedFrames = ClothMakerPlugin.DEFAULT_MAPPED_FRAMES;
 
     scene = null;
   }
@@ -88,10 +121,10 @@ public class ClothTrack extends Track {
   {
     super("Cloth");
     this.clothInfo = info;
-    storedFrames = new Vector<SimFrame>();
+    storedFrames = new FrameStore();
 
     gravityAxis = ClothMakerPlugin.DEFAULT_GRAVITY_AXIS;
-    tfps = ClothMakerPlugin.DEFAULT_FRAMES_PER_SECOND*ClothSimEditorWindow.subFrames;
+    tfps = ClothMakerPlugin.DEFAULT_FRAMES_PER_SECOND;
     startTime = ClothMakerPlugin.DEFAULT_START_TIME;
     collision_distance = ClothMakerPlugin.DEFAULT_COLLISION_DISTANCE;
     gravity = ClothMakerPlugin.DEFAULT_GRAVITY;
@@ -102,6 +135,16 @@ public class ClothTrack extends Track {
     simFrames = ClothMakerPlugin.DEFAULT_SIM_FRAMES;
     selfCollision = ClothMakerPlugin.DEFAULT_SELF_COLLISION;
     floorCollision = ClothMakerPlugin.DEFAULT_FLOOR_COLLISION;
+    integrator = ClothMakerPlugin.DEFAULT_INTEGRATOR;
+    compliance = ClothMakerPlugin.DEFAULT_COMPLIANCE;
+    iterations = ClothMakerPlugin.DEFAULT_ITERATIONS;
+    jacobi = ClothMakerPlugin.DEFAULT_JACOBI;
+    minSubFrames = ClothMakerPlugin.DEFAULT_MIN_SUBFRAMES;
+    maxSubFrames = ClothMakerPlugin.DEFAULT_MAX_SUBFRAMES;
+    distanceFields = ClothMakerPlugin.DEFAULT_DISTANCE_FIELDS;
+    fieldResolution = ClothMakerPlugin.DEFAULT_FIELD_RESOLUTION;
+    threads = ClothMakerPlugin.DEFAULT_THREADS;
+    mappedFrames = ClothMakerPlugin.DEFAULT_MAPPED_FRAMES;
 
     scene = s;
   }
@@ -115,7 +158,7 @@ public class ClothTrack extends Track {
 
   @Override
   public void apply(double time) {
-    clothInfo.addDistortion(new ClothDistortion(clothInfo, storedFrames, prevDrapeFrame, time, tfps, gravity, gravityAxis, spring_constant, damping_constant, collision_distance, vertex_mass, selfCollision, floorCollision, scene));  
+    clothInfo.addDistortion(new ClothDistortion(clothInfo, storedFrames, prevDrapeFrame, time, tfps, 1, gravity, gravityAxis, spring_constant, damping_constant, collision_distance, vertex_mass, selfCollision, floorCollision, integrator, compliance, iterations, jacobi, scene, null, null, null, null, null));  
 
   }
 
@@ -161,14 +204,29 @@ public class ClothTrack extends Track {
   @Override
   public void writeToStream(DataOutputStream out, Scene scene) throws IOException {
 
-    out.writeShort(0); // Version number
+    // Frames of a cloth whose vertices changed part way can only be
+    // written the old way, a whole cloth per frame. Frames that were
+    // damaged in the file they were read from are left out.
+    List<SimFrame> frames = storedFrames.getSnapshot().toList();
+    for(int i = frames.size()-1; i >= 0; i--) {
+      if(!frames.get(i).isReadable()) {
+        frames.remove(i);
+      }
+    }
+    boolean packed = FrameCodec.canWrite(frames);
+    out.writeShort(packed ? 5 : 4); // Version number
     out.writeUTF(name);
     out.writeBoolean(enabled);
 
-    out.writeInt(storedFrames.size());
-    for(int i = 0; i < storedFrames.size(); i++) {
-      out.writeInt(storedFrames.elementAt(i).frameNumber);
-      storedFrames.elementAt(i).M.writeToFile(out, scene);
+    if(packed) {
+      FrameCodec.write(out, scene, frames);
+    }
+    else {
+      out.writeInt(frames.size());
+      for(int i = 0; i < frames.size(); i++) {
+        out.writeInt(frames.get(i).frameNumber);
+        frames.get(i).getCloth().writeToFile(out, scene);
+      }
     }
 
     out.writeDouble(startTime);
@@ -178,11 +236,19 @@ public class ClothTrack extends Track {
     out.writeDouble(damping_constant);
     out.writeDouble(collision_distance);
     out.writeDouble(vertex_mass);
-    out.writeDouble(tfps/ClothSimEditorWindow.subFrames);
+    out.writeDouble(tfps);
     out.writeBoolean(selfCollision);
     out.writeBoolean(floorCollision);
     out.writeDouble(drapeFrames);
     out.writeDouble(simFrames);
+    out.writeInt(integrator);
+    out.writeDouble(compliance);
+    out.writeInt(iterations);
+    out.writeBoolean(jacobi);
+    out.writeInt(minSubFrames);
+    out.writeInt(maxSubFrames);
+    out.writeBoolean(distanceFields);
+    out.writeDouble(fieldResolution);
 
   }
 
@@ -190,18 +256,23 @@ public class ClothTrack extends Track {
   public void initFromStream(DataInputStream in, Scene scene) throws IOException, InvalidObjectException {
 
     short version = in.readShort();
-    if (version != 0)
+    if (version < 0 || version > 5)
       throw new InvalidObjectException("");
     name = in.readUTF();
     enabled = in.readBoolean();
 
-    int size = in.readInt();
-    this.storedFrames.clear();
-    for(int i = 0; i < size; i++) {
-      int frameNum = in.readInt();
-      Cloth cloth = new Cloth(in, scene);
-      SimFrame SF = new SimFrame(frameNum, cloth); 
-      storedFrames.add(SF);
+    ArrayList<SimFrame> frames = new ArrayList<SimFrame>();
+    if (version >= 5) {
+      FrameCodec.read(in, scene, frames);
+    }
+    else {
+      int size = in.readInt();
+      for(int i = 0; i < size; i++) {
+        int frameNum = in.readInt();
+        Cloth cloth = new Cloth(in, scene);
+        SimFrame SF = new SimFrame(frameNum, cloth, frames.isEmpty() ? null : frames.get(frames.size()-1), false, null); 
+        frames.add(SF);
+      }
     }
 
     startTime = in.readDouble();
@@ -211,26 +282,281 @@ public class ClothTrack extends Track {
     damping_constant = in.readDouble();
     collision_distance = in.readDouble();
     vertex_mass = in.readDouble();
-    tfps = in.readDouble()*ClothSimEditorWindow.subFrames;
+    tfps = in.readDouble();
     selfCollision = in.readBoolean();
     floorCollision = in.readBoolean();
     drapeFrames = in.readDouble();
     simFrames = in.readDouble();
+    if (version >= 1)
+      integrator = in.readInt();
+    else
+      integrator = ClothDistortion.EXPLICIT;
+    if (version >= 2) {
+      compliance = in.readDouble();
+      iterations = in.readInt();
+      jacobi = in.readBoolean();
+    }
+    else {
+      compliance = ClothMakerPlugin.DEFAULT_COMPLIANCE;
+      iterations = ClothMakerPlugin.DEFAULT_ITERATIONS;
+      jacobi = ClothMakerPlugin.DEFAULT_JACOBI;
+    }
+    if (version >= 3) {
+      minSubFrames = in.readInt();
+      maxSubFrames = in.readInt();
+    }
+    else {
+      minSubFrames = ClothMakerPlugin.DEFAULT_MIN_SUBFRAMES;
+      maxSubFrames = ClothMakerPlugin.DEFAULT_MAX_SUBFRAMES;
+
+      // Older versions stored every sub frame of the simulation and played
+      // them back at the frame rate times the number of sub frames. That
+      // number was never saved, so, as those versions did when they read a
+      // scene, ClothMakerPlugin.DEFAULT_SUBFRAMES is assumed. Every frame is
+      // kept and the rate is raised to match.
+      tfps *= ClothMakerPlugin.DEFAULT_SUBFRAMES;
+    }
+    storedFrames.setFrames(frames);
+    if (version >= 4) {
+      distanceFields = in.readBoolean();
+      fieldResolution = in.readDouble();
+    }
+    else {
+      distanceFields = ClothMakerPlugin.DEFAULT_DISTANCE_FIELDS;
+      fieldResolution = ClothMakerPlugin.DEFAULT_FIELD_RESOLUTION;
+    }
+    substeps = null;
+    fieldCache = null;
     this.scene = scene;
 
   }
 
   /**
-   * Calls the functions to simulate cloth at frame i.
+   * Calls the functions to simulate cloth at frame i. The frame is split
+   * into as many sub frames as the SubstepController asks for, and only
+   * the cloth at the end of the frame is stored. Each frame starts from
+   * the cloth the one before it ended with, or from the object if it is
+   * the first since resetSimulation.
    * @param i
    * @return
    */
   public SimFrame simulateCloth(int i) {
-    SimFrame frame = new SimFrame(i, (Cloth) clothInfo.getObject());
-    ClothDistortion distort = new ClothDistortion(clothInfo, storedFrames, prevDrapeFrame, (double)(i) / tfps, tfps, gravity, gravityAxis, spring_constant, damping_constant, collision_distance, vertex_mass, selfCollision, floorCollision, scene);
-    frame.M = distort.transform(frame.M, frame.frameNumber);
+    ClothSimSettings s = getRunSettings();
+    Cloth cloth = simCloth != null ? simCloth : (Cloth) clothInfo.getObject();
+    int subFrames = getSubstepController().chooseSubFrames(cloth, clothInfo.getCoords().fromLocal());
+    for(int sub = 0; sub < subFrames; sub++) {
+      double time = (i - 1 + (sub + 1.0)/subFrames) / s.fps;
+      ClothDistortion distort = new ClothDistortion(clothInfo, storedFrames, prevDrapeFrame, time, s.fps, subFrames, s.gravity, s.gravityAxis, s.spring_constant, s.damping_constant, s.collision_distance, s.vertex_mass, s.selfCollision, s.floorCollision, s.integrator, s.compliance, s.iterations, s.jacobi, scene, getPool(), getColliderCache(), getFieldCache(), getMotionCache(), getFrameStore(cloth));
+      cloth = distort.transform(cloth, i, sub);
+    }
+    simCloth = cloth;
+
+    return new SimFrame(i, cloth, storedFrames.getSnapshot().last(), true, null);
+  }
+
+  /**
+   * Get a copy of the parameters of the track.
+   * @return
+   */
+  public ClothSimSettings getSettings() {
+    return new ClothSimSettings(this);
+  }
+
+  /**
+   * Returns the settings of the simulation that is running, or of the
+   * track if no simulation has been reset.
+   * @return
+   */
+  ClothSimSettings getRunSettings() {
+    if(settings == null) {
+      settings = getSettings();
+    }
+    return settings;
+  }
+
+  /**
+   * Splits the threads of the simulation that was reset between jobs
+   * that run at the same time, so together they use no more threads than
+   * one of them would alone. Each gets at least one.
+   * @param jobs
+   */
+  void shareThreads(int jobs) {
+    ClothSimSettings s = getRunSettings();
+    settings = new ClothSimSettings(s, Math.max(1, s.threads/Math.max(1, jobs)));
+  }
+
+  /**
+   * Gives the track to a job. A track is simulated by one job at a time,
+   * since the jobs would share its cloth, frames and caches.
+   * @param job
+   * @return false if another job has the track
+   */
+  synchronized boolean claim(SimulationJob job) {
+    if(this.job != null && this.job != job) {
+      return false;
+    }
+    this.job = job;
+    return true;
+  }
 
-    return frame;
+  /**
+   * Takes the track back from a job once it stops.
+   * @param job
+   */
+  synchronized void release(SimulationJob job) {
+    if(this.job == job) {
+      this.job = null;
+    }
+  }
+
+  /**
+   * Returns true if a job has the track.
+   * @return
+   */
+  public synchronized boolean isSimulating() {
+    return job != null;
+  }
+
+  /**
+   * Puts the cloth at rest before a new simulation starts, so it does
+   * not carry on with the velocity left over from the last one. The
+   * parameters of the track are copied for the new simulation, and its
+   * frames go to a new scratch file.
+   */
+  public void resetSimulation() {
+    settings = getSettings();
+    simCloth = null;
+    // the frames of the last run can still be read from the old store
+    if(frameStore != null) {
+      frameStore.close();
+      frameStore = null;
+    }
+    getSubstepController().reset();
+    getColliderCache().clear();
+    getMotionCache().clear();
+    if(fieldCache != null) {
+      fieldCache.clear();
+    }
+    for(Mass mass : ((Cloth) clothInfo.getObject()).getMasses()) {
+      mass.setVelocity(new Vec3());
+    }
+  }
+
+  /**
+   * Returns the cache that keeps the triangles of the objects the cloth
+   * collides with from one step to the next.
+   * @return
+   */
+  TriangleSoupCache getColliderCache() {
+    if(colliderCache == null) {
+      colliderCache = new TriangleSoupCache(CollisionDetector.SOUP_CACHE_SIZE);
+    }
+    return colliderCache;
+  }
+
+  /**
+   * Returns the cache that keeps where the objects the cloth collides with
+   * are at each time, from one step to the next.
+   * @return
+   */
+  MotionCache getMotionCache() {
+    if(motionCache == null) {
+      motionCache = new MotionCache(CollisionDetector.MOTION_CACHE_SIZE);
+    }
+    return motionCache;
+  }
+
+  /**
+   * Returns the cache of distance fields for the objects that don't move,
+   * or null if they are not used. The fields are kept on disk in a folder
+   * beside the scene file, so they don't have to be made again the next
+   * time the scene is simulated. A scene that has not been saved keeps
+   * them only in memory.
+   * @return
+   */
+  DistanceFieldCache getFieldCache() {
+    ClothSimSettings s = getRunSettings();
+    if(!s.distanceFields) {
+      return null;
+    }
+    if(fieldCache == null || fieldCache.getCellSize() != s.fieldResolution) {
+      File directory = null;
+      if(scene != null && scene.getDirectory() != null && scene.getName() != null) {
+        String name = scene.getName();
+        if(name.toLowerCase().endsWith(".aoi")) {
+          name = name.substring(0, name.length()-4);
+        }
+        directory = new File(scene.getDirectory(), name + "_fields");
+      }
+      fieldCache = new DistanceFieldCache(s.fieldResolution, directory);
+    }
+    return fieldCache;
+  }
+
+  /**
+   * Returns the controller that picks the number of sub frames, making
+   * a new one if the limits have changed.
+   * @return
+   */
+  SubstepController getSubstepController() {
+    ClothSimSettings s = getRunSettings();
+    if(substeps == null || substeps.getMinSubFrames() != s.minSubFrames || substeps.getMaxSubFrames() != s.maxSubFrames) {
+      substeps = new SubstepController(s.minSubFrames, s.maxSubFrames);
+    }
+    return substeps;
+  }
+
+  /**
+   * Returns the store the frames of the cloth are kept in, or null if they
+   * are kept on the heap. A new store is made when the cloth has a
+   * different number of vertices, and the old one is closed. The frames
+   * already made can still read the store they were written to after it
+   * is closed. If the scratch file can't be made, the frames are kept on
+   * the heap.
+   * @param cloth
+   * @return
+   */
+  MappedFrameStore getFrameStore(Cloth cloth) {
+    if(!getRunSettings().mappedFrames) {
+      return null;
+    }
+    int vertexCount = cloth.getVertexPositions().length;
+    if(frameStore == null || frameStore.getVertexCount() != vertexCount) {
+      if(frameStore != null) {
+        frameStore.close();
+      }
+      try {
+        frameStore = new MappedFrameStore(null, vertexCount);
+      } catch (IOException e) {
+        // no room for a scratch file, so the frames are kept on the heap
+        frameStore = null;
+      }
+    }
+    return frameStore;
+  }
+
+  /**
+   * Returns the pool used to spread a simulation step over the threads,
+   * or null if only one thread should be used. The pool is replaced when
+   * the number of threads changes.
+   * @return
+   */
+  ForkJoinPool getPool() {
+    int threads = getRunSettings().threads;
+    if(threads < 2) {
+      if(pool != null) {
+        pool.shutdown();
+        pool = null;
+      }
+      return null;
+    }
+    if(pool == null || pool.getParallelism() != threads) {
+      if(pool != null) {
+        pool.shutdown();
+      }
+      pool = new ForkJoinPool(threads);
+    }
+    return pool;
   }
 
   /**
@@ -247,10 +573,21 @@ public class ClothTrack extends Track {
    * @param floorCollision2
    * @param drapeFrames2
    * @param simFrames2
+   * @param integrator2
+   * @param compliance2
+   * @param iterations2
+   * @param jacobi2
+   * @param minSubFrames2
+   * @param maxSubFrames2
+   * @param distanceFields2
+   * @param fieldResolution2
+   * @param threads2
+   * @param mappedFrames2
    */
   public void setParams(double startTime2, double fps2, double gravity2, int gravityAxis2, double spring_constant2,
       double damping_constant2, double vertex_mass2, double collision_distance2, boolean selfCollision2, boolean floorCollision2, 
-      double drapeFrames2, double simFrames2) {
+      double drapeFrames2, double simFrames2, int integrator2, double compliance2, int iterations2, boolean jacobi2, int minSubFrames2, int maxSubFrames2,
+      boolean distanceFields2, double fieldResolution2, int threads2, boolean mappedFrames2) {
 
     gravityAxis = gravityAxis2;
     tfps = fps2;
@@ -264,5 +601,15 @@ public class ClothTrack extends Track {
     floorCollision = floorCollision2;
     drapeFrames = drapeFrames2;
     simFrames = simFrames2;
+    integrator = integrator2;
+    compliance = compliance2;
+    iterations = iterations2;
+    jacobi = jacobi2;
+    minSubFrames = minSubFrames2;
+    maxSubFrames = maxSubFrames2;
+    distanceFields = distanceFields2;
+    fieldResolution = fieldResolution2;
+    threads = threads2;
+    mappedFrames = mappedFrames2;
   }
 }
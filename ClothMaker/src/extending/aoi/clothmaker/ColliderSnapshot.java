@@ -0,0 +1,179 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import artofillusion.math.BoundingBox;
+import artofillusion.math.CoordinateSystem;
+import artofillusion.math.Vec3;
+import artofillusion.object.ObjectInfo;
+
+/**
+ * The objects of a scene that a cloth could run into at one point in
+ * time, with their world bounds grown by the collision distance and
+ * whether they are moving. Going through the scene, finding the bounds
+ * and checking the tracks for movement is slow, so it is done once per
+ * step by CollisionDetector.findColliders, and each vertex then only
+ * compares its own box against the list. The snapshot also holds how
+ * far each object moves just before the time, which the collision
+ * queries use to follow moving objects, and the TriangleHierarchy or
+ * DistanceField each object is checked with, so the queries never have
+ * to look them up in the caches of the CollisionDetector.
+ * <p>
+ * A snapshot never changes once it is made, so the vertices of a step
+ * can be checked against it from several threads.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ColliderSnapshot {
+  private final ObjectInfo objects[];
+  private final BoundingBox bounds[]; // world bounds grown by the collision distance
+  private final boolean moved[]; // true if the object moved during the last step
+  private final Vec3 motion[]; // how far the object moved just before the time
+  private final boolean inMotion[]; // true if the object was moving at the time
+  private final CoordinateSystem coords[]; // where the object is at the time
+  private final TriangleHierarchy hierarchies[]; // null if the object is not checked by its triangles
+  private final DistanceField fields[]; // null if the object has no field
+
+  /**
+   * Constructor
+   * @param objects
+   * @param bounds
+   * @param moved
+   * @param motion
+   * @param inMotion
+   * @param coords
+   * @param hierarchies
+   * @param fields
+   */
+  public ColliderSnapshot(ObjectInfo objects[], BoundingBox bounds[], boolean moved[], Vec3 motion[], boolean inMotion[], CoordinateSystem coords[],
+      TriangleHierarchy hierarchies[], DistanceField fields[]) {
+    this.objects = objects.clone();
+    this.bounds = new BoundingBox[bounds.length];
+    this.motion = new Vec3[motion.length];
+    for(int i = 0; i < bounds.length; i++) {
+      this.bounds[i] = new BoundingBox(bounds[i]);
+      this.motion[i] = new Vec3(motion[i]);
+    }
+    this.moved = moved.clone();
+    this.inMotion = inMotion.clone();
+    this.coords = new CoordinateSystem[coords.length];
+    for(int i = 0; i < coords.length; i++) {
+      this.coords[i] = coords[i].duplicate();
+      // find the matrices now rather than while threads are using them
+      this.coords[i].fromLocal();
+      this.coords[i].toLocal();
+    }
+    this.hierarchies = hierarchies.clone();
+    this.fields = fields.clone();
+  }
+
+  /**
+   * Get the number of objects in the snapshot.
+   * @return
+   */
+  public int getColliderCount() {
+    return objects.length;
+  }
+
+  /**
+   * Get object i of the snapshot.
+   * @param i
+   * @return
+   */
+  public ObjectInfo getCollider(int i) {
+    return objects[i];
+  }
+
+  /**
+   * Get the coordinate system of object i at the time. The object itself
+   * is not moved there, since other simulations may be using it.
+   * @param i
+   * @return
+   */
+  public CoordinateSystem getCoords(int i) {
+    return coords[i];
+  }
+
+  /**
+   * Get the tree of the triangles object i is checked with, or null if it
+   * is checked by the shape of its primitive or by a field.
+   * @param i
+   * @return
+   */
+  public TriangleHierarchy getHierarchy(int i) {
+    return hierarchies[i];
+  }
+
+  /**
+   * Get the DistanceField object i is checked with, or null if it has none.
+   * @param i
+   * @return
+   */
+  public DistanceField getField(int i) {
+    return fields[i];
+  }
+
+  /**
+   * Get how far object i moved just before the time.
+   * @param i
+   * @return
+   */
+  public Vec3 getMotion(int i) {
+    return new Vec3(motion[i]);
+  }
+
+  /**
+   * Returns true if object i was moving at the time.
+   * @param i
+   * @return
+   */
+  public boolean isInMotion(int i) {
+    return inMotion[i];
+  }
+
+  /**
+   * Returns true if object i could collide with something inside box.
+   * @param i
+   * @param box
+   * @return
+   */
+  public boolean isCandidate(int i, BoundingBox box) {
+    return moved[i] || box.intersects(bounds[i]);
+  }
+
+  /**
+   * Finds the objects that could collide with something inside box. An
+   * object that is moving is always included, since its bounds are only
+   * known for the current time.
+   * @param box
+   * @return
+   */
+  public Collection<ObjectInfo> findCandidates(BoundingBox box) {
+    ArrayList<ObjectInfo> candidates = new ArrayList<ObjectInfo>();
+    for(int i = 0; i < objects.length; i++) {
+      if(isCandidate(i, box)) {
+        candidates.add(objects[i]);
+      }
+    }
+    return candidates;
+  }
+}
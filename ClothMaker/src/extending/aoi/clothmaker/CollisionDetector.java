@@ -26,6 +26,7 @@ import artofillusion.animation.RotationTrack;
 import artofillusion.animation.Track;
 import artofillusion.animation.VisibilityTrack;
 import artofillusion.math.BoundingBox;
+import artofillusion.math.CoordinateSystem;
 import artofillusion.math.Mat4;
 import artofillusion.math.Vec3;
 import artofillusion.object.Cube;
@@ -50,10 +51,16 @@ public class CollisionDetector {
 
 	private Scene scene;
 
-	private double lastDistanceToCollision;
-	private Vec3 lastCollisionPoint;
-	private Triangle lastCollisionTriangle;
 	private static final double MESH_TOLERANCE_NOMINEE = 0.010;
+	// Time over which the motion of a collider is measured
+	private static final double MOTION_WINDOW = 1.0/3000.0; // TODO base on proper sim inputs
+	// Most objects whose triangles are kept at one time
+	static final int SOUP_CACHE_SIZE = 32;
+	// Most object transforms kept at one time
+	static final int MOTION_CACHE_SIZE = 256;
+	private final TriangleSoupCache soupCache;
+	private final DistanceFieldCache fieldCache;
+	private final MotionCache motionCache;
 
 	private static final double TOL = 1e-12;
 
@@ -70,7 +77,48 @@ public class CollisionDetector {
 	 * @param s
 	 */
 	public CollisionDetector(Scene s) {
+		this(s, null);
+	}
+
+	/**
+	 * Constructor
+	 * The triangles of the objects are kept in soupCache, so a cache that is
+	 * passed to the detector of each step lets them be refit rather than
+	 * built again when the objects move.
+	 * @param s
+	 * @param soupCache the cache to use, or null for one of its own
+	 */
+	public CollisionDetector(Scene s, TriangleSoupCache soupCache) {
+		this(s, soupCache, null);
+	}
+
+	/**
+	 * Constructor
+	 * When fieldCache is given, objects that don't move are checked against
+	 * a DistanceField from the cache instead of their triangles.
+	 * @param s
+	 * @param soupCache the cache to use, or null for one of its own
+	 * @param fieldCache the fields to use, or null to always use the triangles
+	 */
+	public CollisionDetector(Scene s, TriangleSoupCache soupCache, DistanceFieldCache fieldCache) {
+		this(s, soupCache, fieldCache, null);
+	}
+
+	/**
+	 * Constructor
+	 * Where the objects are at each time is kept in motionCache, so a cache
+	 * that is passed to the detector of each step lets the tracks of an
+	 * object be applied only once for each time any step asks about.
+	 * @param s
+	 * @param soupCache the cache to use, or null for one of its own
+	 * @param fieldCache the fields to use, or null to always use the triangles
+	 * @param motionCache the cache to use, or null for one of its own
+	 */
+	public CollisionDetector(Scene s, TriangleSoupCache soupCache, DistanceFieldCache fieldCache, MotionCache motionCache) {
 		scene = s;
+		this.soupCache = soupCache != null ? soupCache : new TriangleSoupCache(SOUP_CACHE_SIZE);
+		this.fieldCache = fieldCache;
+		this.motionCache = motionCache != null ? motionCache : new MotionCache(MOTION_CACHE_SIZE);
 	}
 
 
@@ -105,75 +153,147 @@ public class CollisionDetector {
 	}
 
 	/**
-	 * Return the bounding box of the object.
+	 * Finds objects that are close enough they could collide.
 	 * @param obj
+	 * @param deformationBox
+	 * @param time
+	 * @param collisionDistance
+	 * @param timeIncrement
 	 * @return
 	 */
-	public BoundingBox getBounds(ObjectInfo obj) {
-		BoundingBox B;
-		if(obj.isDistorted()) {
-			TriangleMesh TMesh = obj.getObject().convertToTriangleMesh(ClothMakerPlugin.DEFAULT_MESH_TOLERANCE);
-			if(TMesh != null) {
-				B = new BoundingBox(TMesh.getVertex(0).r.x, TMesh.getVertex(0).r.y, TMesh.getVertex(0).r.z, 
-						TMesh.getVertex(0).r.x,  TMesh.getVertex(0).r.y, TMesh.getVertex(0).r.z);
-
-				for(int i = 0; i < TMesh.getVertexPositions().length; i++) {
-					B.maxx = Math.max(B.maxx, TMesh.getVertex(i).r.x);
-					B.minx = Math.min(B.minx, TMesh.getVertex(i).r.x);
-					B.maxy = Math.max(B.maxy, TMesh.getVertex(i).r.y);
-					B.miny = Math.min(B.miny, TMesh.getVertex(i).r.y);
-					B.maxz = Math.max(B.maxz, TMesh.getVertex(i).r.z);
-					B.minz = Math.max(B.minz, TMesh.getVertex(i).r.z);
-				}
-			}
-			else {
-				B = new BoundingBox(0,0,0,0,0,0);
-			}
-		}
-		else {
-			B = obj.getBounds().transformAndOutset(obj.getCoords().fromLocal());
-		}
-
-		return B;
+	public Collection<ObjectInfo> findCandidateObjects(ObjectInfo obj, BoundingBox deformationBox, double time, double collisionDistance, double timeIncrement) {
+		return findColliders(obj, time, collisionDistance, timeIncrement).findCandidates(deformationBox);
 	}
 
 	/**
-	 * Finds objects that are close enough they could collide.
+	 * Finds every object obj could collide with at this time, along with its
+	 * bounds and how it is moving. The scene is only gone through once, so
+	 * when many boxes are checked at the same time, this should be called once
+	 * and the snapshot asked for the candidates of each box.
+	 * <p>
+	 * The objects are left where they are at time, and the triangles and
+	 * distance fields they will be checked with are made here and kept in
+	 * the snapshot, so that the snapshot can be used by several threads at
+	 * once without any of them changing the scene or waiting on the caches.
 	 * @param obj
-	 * @param deformationBox
 	 * @param time
 	 * @param collisionDistance
 	 * @param timeIncrement
 	 * @return
 	 */
-	public Collection<ObjectInfo> findCandidateObjects(ObjectInfo obj, BoundingBox deformationBox, double time, double collisionDistance, double timeIncrement) {
-		// Determine if the boundary boxes are close enough to
-		// what we're looking for.
-		BoundingBox OB = deformationBox;
-
+	public ColliderSnapshot findColliders(ObjectInfo obj, double time, double collisionDistance, double timeIncrement) {
 		ArrayList<ObjectInfo> objects = new ArrayList<ObjectInfo>();
-
+		ArrayList<BoundingBox> bounds = new ArrayList<BoundingBox>();
+		ArrayList<Boolean> moved = new ArrayList<Boolean>();
+		ArrayList<Vec3> motion = new ArrayList<Vec3>();
+		ArrayList<Boolean> inMotion = new ArrayList<Boolean>();
+		ArrayList<CoordinateSystem> coords = new ArrayList<CoordinateSystem>();
+		ArrayList<TriangleHierarchy> hierarchies = new ArrayList<TriangleHierarchy>();
+		ArrayList<DistanceField> fields = new ArrayList<DistanceField>();
+
+		soupCache.ensureCapacity(scene.getNumObjects());
+		// each object is asked for where it is now, where it was a window ago and a step ago
+		motionCache.ensureCapacity(scene.getNumObjects()*3);
 		for(ObjectInfo candidate : scene.getAllObjects()){
 			if(!candidate.isVisible() || isSpecial(candidate)) {
 			} // skip this object
-			else if(candidate.isDistorted()) { // TODO figure out how to deal with distorted recursion
-			}
+			else if(candidate.getObject() instanceof Cloth) {
+			} // distorting another cloth would run its simulation from inside this one
 			else if(candidate == obj) {
 			} // no self collisions
 			else
 			{
-				BoundingBox CB = addCollisionDistance(getBounds(candidate), collisionDistance);
-				if (!OB.intersects(CB) && !objectMoved(candidate, time-timeIncrement, time)){
+				Vec3 moveVec = objectMovement(candidate, time-MOTION_WINDOW, time);
+				boolean moving = objectMoved(candidate, time-MOTION_WINDOW, time);
+				// The tracks are applied to a copy, so the object in the scene is
+				// not moved and simulations at other times can run alongside. An
+				// object that only moves is found in the motion cache, which the
+				// motion above has already filled for this time.
+				ObjectInfo posed = null;
+				CoordinateSystem C;
+				if(changesShape(candidate)) {
+					posed = pose(candidate, time);
+					if(!posed.isVisible()) {
+						continue;
+					}
+					C = posed.getCoords().duplicate();
 				}
-				else 
-				{
-					// bounding boxes intersect
-					objects.add(candidate);
+				else {
+					if(!motionCache.isVisible(candidate, time)) {
+						continue;
+					}
+					C = motionCache.getCoords(candidate, time);
+				}
+				boolean distorted = posed != null && posed.isDistorted();
+
+				// the bounds of a distorted object come from its distorted triangles
+				BoundingBox CB = distorted ? getTriangleSoup(candidate, posed, C, time).getBounds()
+						: candidate.getBounds().transformAndOutset(C.fromLocal());
+				objects.add(candidate);
+				bounds.add(addCollisionDistance(CB, collisionDistance));
+				moved.add(objectMoved(candidate, time-timeIncrement, time));
+				motion.add(moveVec);
+				inMotion.add(moving);
+				coords.add(C);
+
+				// find the triangles and field now rather than while threads are using them
+				DistanceField field = getDistanceField(candidate, C, time, collisionDistance);
+				TriangleHierarchy tree = null;
+				if(field == null && usesTriangles(candidate, distorted, moving)) {
+					tree = getTriangleSoup(candidate, posed, C, time).getHierarchy();
 				}
+				hierarchies.add(tree);
+				fields.add(field);
+			}
+		}
+
+		boolean movedFlags[] = new boolean[moved.size()];
+		boolean inMotionFlags[] = new boolean[inMotion.size()];
+		for(int i = 0; i < movedFlags.length; i++) {
+			movedFlags[i] = moved.get(i);
+			inMotionFlags[i] = inMotion.get(i);
+		}
+		return new ColliderSnapshot(objects.toArray(new ObjectInfo[objects.size()]), bounds.toArray(new BoundingBox[bounds.size()]), movedFlags,
+				motion.toArray(new Vec3[motion.size()]), inMotionFlags, coords.toArray(new CoordinateSystem[coords.size()]),
+				hierarchies.toArray(new TriangleHierarchy[hierarchies.size()]), fields.toArray(new DistanceField[fields.size()]));
+	}
+
+	/**
+	 * Returns a copy of an object whose tracks change its shape, with its
+	 * distortion cleared and every enabled track applied at time, so the
+	 * copy has the shape it has at time rather than the one it has in the
+	 * scene now.
+	 * @param obj
+	 * @param time
+	 * @return
+	 */
+	private ObjectInfo pose(ObjectInfo obj, double time) {
+		ObjectInfo posed = obj.duplicate();
+		posed.clearDistortion();
+		for(Track T : posed.getTracks()) {
+			if(T.isEnabled()) {
+				T.apply(time);        
 			}
+		}
+		return posed;
+	}
 
+	/**
+	 * Returns true if the object is distorted, or has a track that could
+	 * change its shape.
+	 * @param obj
+	 * @return
+	 */
+	private boolean changesShape(ObjectInfo obj) {
+		if(obj.isDistorted()) {
+			return true;
+		}
+		for(Track T : obj.getTracks()) {
+			if(T.isEnabled() && !(T instanceof PositionTrack) && !(T instanceof RotationTrack) && !(T instanceof VisibilityTrack)) {
+				return true;
+			}
 		}
-		return objects;
+		return false;
 	}
 
 	/**
@@ -200,35 +320,10 @@ public class CollisionDetector {
 	 * @return
 	 */
 	public boolean objectMoved(ObjectInfo obj, double timePrev, double timeNow) {
-		// see if any movement has occurred
-		boolean ret = false;
 		if(timePrev <= 0 ) timePrev = 0.001;
-		if(timePrev >= timeNow) return ret;
-
-		ObjectInfo prevObj = obj.duplicate();
-		ObjectInfo nowObj = obj.duplicate();
-		Vec3 prevOrigin = new Vec3(prevObj.coords.getOrigin());
-		Vec3 nowOrigin = new Vec3(nowObj.coords.getOrigin());
-
-
-		for(Track T : prevObj.getTracks()) {
-			if(T instanceof PositionTrack) {
-				T.apply(timePrev);
-				prevOrigin = new Vec3(prevObj.coords.getOrigin());
-			}
-		}
-		for(Track T : nowObj.getTracks()) {
-			if(T instanceof RotationTrack) {
-				T.apply(timeNow);
-				nowOrigin = new Vec3(nowObj.coords.getOrigin());
-			}
-		}
-
-		if(!nowOrigin.equals(prevOrigin)) {
-			ret = true;
-		}
+		if(timePrev >= timeNow) return false;
 
-		return ret;
+		return !motionCache.getOrigin(obj, timeNow).equals(motionCache.getOrigin(obj, timePrev));
 	}
 
 	/**
@@ -240,32 +335,10 @@ public class CollisionDetector {
 	 */
 	public Vec3 objectMovement(ObjectInfo obj, double timePrev, double timeNow) {
 		// get the distance it has moved between time1 and time2
-		Vec3 ret = new Vec3();
 		if(timePrev <= 0 ) timePrev = 0.001;
-		if(timePrev >= timeNow) return ret;
-
-		ObjectInfo prevObj = obj.duplicate();
-		ObjectInfo nowObj = obj.duplicate();
-		Vec3 prevOrigin = new Vec3(prevObj.coords.getOrigin());
-		Vec3 nowOrigin = new Vec3(nowObj.coords.getOrigin());
-
-		for(Track T : prevObj.getTracks()) {
-			if(T instanceof PositionTrack) {
-				T.apply(timePrev);
-				prevOrigin = new Vec3(prevObj.coords.getOrigin());
-			}
-		}
-
-		for(Track T : nowObj.getTracks()) {
-			if(T instanceof PositionTrack) {
-				T.apply(timeNow);
-				nowOrigin = new Vec3(nowObj.coords.getOrigin());
-			}
-		}
-
-		ret = nowOrigin.minus(prevOrigin);
-		return ret;
+		if(timePrev >= timeNow) return new Vec3();
 
+		return motionCache.getOrigin(obj, timeNow).minus(motionCache.getOrigin(obj, timePrev));
 	}
 
 	/**
@@ -277,57 +350,148 @@ public class CollisionDetector {
 	 * @return
 	 */
 	public double findDistanceToCollisionPoint(Vec3 point, ObjectInfo nominee, Vec3 direction,  double collisionDistance, boolean isInMotion) {  
-		double ret = Double.MAX_VALUE;
+		return findDistanceToCollisionPoint(point, nominee, direction, collisionDistance, isInMotion, Double.NaN);
+	}
+
+	/**
+	 * Finds the distance a point will travel before colliding with an object
+	 * that has been moved to where it is at time.
+	 * @param point
+	 * @param nominee
+	 * @param direction
+	 * @param collisionDistance
+	 * @param isInMotion
+	 * @param time
+	 * @return
+	 */
+	public double findDistanceToCollisionPoint(Vec3 point, ObjectInfo nominee, Vec3 direction,  double collisionDistance, boolean isInMotion, double time) {  
+		CollisionHit hit = findHit(point, nominee, direction, collisionDistance, isInMotion, time);
+		return hit == null ? Double.MAX_VALUE : hit.getDistance();
+	}
+
+	/**
+	 * Finds where a point will collide with an object that has been moved to
+	 * where it is at time. The distance of the hit is the one
+	 * findDistanceToCollisionPoint returns.
+	 * @param point
+	 * @param nominee
+	 * @param direction
+	 * @param collisionDistance
+	 * @param isInMotion
+	 * @param time
+	 * @return the hit, or null if there is none
+	 */
+	public CollisionHit findHit(Vec3 point, ObjectInfo nominee, Vec3 direction,  double collisionDistance, boolean isInMotion, double time) {  
+		return findHit(point, nominee, nominee.getCoords(), direction, collisionDistance, isInMotion, time);
+	}
+
+	/**
+	 * Finds where a point will collide with an object that has the given
+	 * coordinate system at time, rather than the one it has now.
+	 * @param point
+	 * @param nominee
+	 * @param coords
+	 * @param direction
+	 * @param collisionDistance
+	 * @param isInMotion
+	 * @param time
+	 * @return the hit, or null if there is none
+	 */
+	public CollisionHit findHit(Vec3 point, ObjectInfo nominee, CoordinateSystem coords, Vec3 direction,  double collisionDistance, boolean isInMotion, double time) {  
+		if(!usesTriangles(nominee, isInMotion)) {
+			return findPrimitiveHit(point, nominee, coords, direction, collisionDistance);
+		}
+		return findHit(point, getTriangleSoup(nominee, coords, time).getHierarchy(), direction);
+	}
 
+	/**
+	 * Finds where a point will collide with an object from the shape of its
+	 * primitive.
+	 * @param point
+	 * @param nominee a sphere, cube or cylinder
+	 * @param coords
+	 * @param direction
+	 * @param collisionDistance
+	 * @return the hit, or null if there is none
+	 */
+	private CollisionHit findPrimitiveHit(Vec3 point, ObjectInfo nominee, CoordinateSystem coords, Vec3 direction,  double collisionDistance) {
 		if(nominee.getObject() instanceof Sphere) {
-			ret = findDistanceToEllipsoid(point, nominee, direction, collisionDistance);
+			return findEllipsoidHit(point, nominee, coords, direction, collisionDistance);
 		}
 		else if(nominee.getObject() instanceof Cube) {
-			ret = findDistanceToCube(point, nominee, direction, collisionDistance);
-		}
-		else if(nominee.getObject() instanceof Cylinder && !isInMotion) {
-			// TODO Figure out why findDistanceToCylinder doesn't work when the cylinder is in motion, so we can handle all with special case.
-			ret = findDistanceToCylinder(point, nominee, direction, collisionDistance);
-		}
-		else if(nominee.getDistortedObject(MESH_TOLERANCE_NOMINEE).canConvertToTriangleMesh() == Object3D.CANT_CONVERT){
-			// if we can't do anything, just quit
+			return findCubeHit(point, nominee, coords, direction, collisionDistance);
 		}
 		else {
-			TriangleMesh meshB = nominee.getDistortedObject(MESH_TOLERANCE_NOMINEE).convertToTriangleMesh(MESH_TOLERANCE_NOMINEE);
-
-			// check for collision with each face
-			for(Face faceB : meshB.getFaces()){
-				Mat4 fromB = nominee.getCoords().fromLocal();
-				Triangle triangleB = convertFaceToTriangle(meshB, faceB, fromB);
-
-				double currentCollisionDistance = findPointTriangleCollisionDistance(point, triangleB, direction);
-				if(currentCollisionDistance < ret){
-					lastCollisionTriangle = triangleB;
+			// TODO Figure out why findCylinderHit doesn't work when the cylinder is in motion, so we can handle all with special case.
+			return findCylinderHit(point, nominee, coords, direction, collisionDistance);
+		}
+	}
 
-					// check to see if this is the first collision
-					ret = currentCollisionDistance;
-				}  
-			}
+	/**
+	 * Finds where a point will collide with the triangles in a tree.
+	 * @param point
+	 * @param treeB
+	 * @param direction
+	 * @return the hit, or null if there is none
+	 */
+	private CollisionHit findHit(Vec3 point, TriangleHierarchy treeB, Vec3 direction) {
+		// the tree only visits the faces the line could pass through
+		TriangleSoup soupB = treeB.getSoup();
+		int t = treeB.findNearestHit(point, direction, Double.MAX_VALUE);
+		if(t < 0) {
+			return null;
 		}
+		double hitDistance = treeB.findHitDistance(point, direction, t);
+		double normal[] = soupB.getNormals();
+		return new CollisionHit(direction.times(hitDistance).plus(point), hitDistance,
+				new Vec3(normal[t*3], normal[t*3+1], normal[t*3+2]), t);
+	}
 
-		return ret;
+	/**
+	 * Returns true if collisions with the object are found from its
+	 * triangles, rather than from the shape of its primitive. A distorted
+	 * object no longer has the shape of its primitive.
+	 * @param nominee
+	 * @param isInMotion
+	 * @return
+	 */
+	private boolean usesTriangles(ObjectInfo nominee, boolean isInMotion) {
+		return usesTriangles(nominee, nominee.isDistorted(), isInMotion);
+	}
 
+	/**
+	 * Returns true if collisions with the object are found from its
+	 * triangles, when whether it is distorted at the time asked about is
+	 * already known.
+	 * @param nominee
+	 * @param distorted
+	 * @param isInMotion
+	 * @return
+	 */
+	private boolean usesTriangles(ObjectInfo nominee, boolean distorted, boolean isInMotion) {
+		Object obj = nominee.getObject();
+		if(distorted) {
+			return true;
+		}
+		if(obj instanceof Sphere || obj instanceof Cube) {
+			return false;
+		}
+		return !(obj instanceof Cylinder) || isInMotion;
 	}
 
 	/**
-	 * Finds distance a point will travel before colliding with the cylinder
+	 * Finds where a point will collide with the cylinder
 	 * @param point
 	 * @param nominee
+	 * @param coords
 	 * @param direction
 	 * @param collisionDistance
-	 * @return
+	 * @return the hit, or null if there is none
 	 */
-	private double findDistanceToCylinder(Vec3 point, ObjectInfo nominee, Vec3 direction, double collisionDistance) {
-		double ret = Double.MAX_VALUE;
-
+	private CollisionHit findCylinderHit(Vec3 point, ObjectInfo nominee, CoordinateSystem coords, Vec3 direction, double collisionDistance) {
 		Cylinder dup = (Cylinder) nominee.getObject().duplicate();
-		Mat4 fromLocal = nominee.getCoords().fromLocal();
-		Mat4 toLocal = nominee.getCoords().toLocal();
+		Mat4 fromLocal = coords.fromLocal();
+		Mat4 toLocal = coords.toLocal();
 		double cx = fromLocal.m14/fromLocal.m44;
 		double cy = fromLocal.m24/fromLocal.m44;
 		double cz = fromLocal.m34/fromLocal.m44;
@@ -399,16 +563,11 @@ public class CollisionDetector {
 							v2.set(orig.x+dist2*rdir.x, orig.y+dist2*rdir.y, orig.z+dist2*rdir.z);
 
 							if(dist1 < dist2) {
-								lastCollisionPoint = v1;
-								lastDistanceToCollision = dist1;
+								return new CollisionHit(v1, dist1, findCylinderNormal(coords, v1, halfh), CollisionHit.NO_TRIANGLE);
 							}
 							else {
-								lastCollisionPoint = v2;
-								lastDistanceToCollision = dist2;
+								return new CollisionHit(v2, dist2, findCylinderNormal(coords, v2, halfh), CollisionHit.NO_TRIANGLE);
 							}
-
-							ret = lastDistanceToCollision;
-							return ret;
 						}
 						else {
 							hit = TOP;
@@ -481,7 +640,7 @@ public class CollisionDetector {
 			}
 		}
 		if (mint == Double.MAX_VALUE)
-			return Double.MAX_VALUE;
+			return null;
 		if (dist2 < mint){
 
 			temp1 = dist2;
@@ -507,30 +666,48 @@ public class CollisionDetector {
 		}
 
 		if((intersections == 1) || (dist1 < dist2)) {
-			lastCollisionPoint = v1;
-			lastDistanceToCollision = TOL;
+			return new CollisionHit(v1, TOL, findCylinderNormal(coords, v1, halfh), CollisionHit.NO_TRIANGLE);
 		}
 		else {
-			lastCollisionPoint = v2;
-			lastDistanceToCollision = TOL;
+			return new CollisionHit(v2, TOL, findCylinderNormal(coords, v2, halfh), CollisionHit.NO_TRIANGLE);
 		}
+	}
 
-		ret = lastDistanceToCollision;
-		return ret;
+	/**
+	 * Finds the normal of a cylinder at a point on its surface. Points past
+	 * the top or bottom get the normal of that face, and the rest the
+	 * normal of the side.
+	 * @param coords
+	 * @param surfacePoint
+	 * @param halfh half the height of the cylinder, grown by the collision distance
+	 * @return
+	 */
+	private Vec3 findCylinderNormal(CoordinateSystem coords, Vec3 surfacePoint, double halfh) {
+		Vec3 local = coords.toLocal().times(surfacePoint);
+		Vec3 normal;
+		if(Math.abs(local.y) >= halfh*(1.0-1e-6) || local.x*local.x + local.z*local.z < TOL) {
+			normal = new Vec3(0.0, local.y < 0.0 ? -1.0 : 1.0, 0.0);
+		}
+		else {
+			normal = new Vec3(local.x, 0.0, local.z);
+		}
+		normal = coords.fromLocal().timesDirection(normal);
+		normal.normalize();
+		return normal;
 	}
 
 	/**
-	 * Find distance point will travel before colliding with the ellipsoid
+	 * Find where point will collide with the ellipsoid
 	 * @param point
 	 * @param nominee
+	 * @param coords
 	 * @param direction
 	 * @param collisionDistance
 	 * @return
 	 */
-	private double findDistanceToEllipsoid(Vec3 point, ObjectInfo nominee, Vec3 direction, double collisionDistance) {
-		double ret = Double.MAX_VALUE;
+	private CollisionHit findEllipsoidHit(Vec3 point, ObjectInfo nominee, CoordinateSystem coords, Vec3 direction, double collisionDistance) {
 		Sphere localSphere = (Sphere) nominee.getObject().duplicate();
-		Mat4 fromLocal = nominee.getCoords().fromLocal();
+		Mat4 fromLocal = coords.fromLocal();
 		double cx = fromLocal.m14/fromLocal.m44;
 		double cy = fromLocal.m24/fromLocal.m44;
 		double cz = fromLocal.m34/fromLocal.m44;
@@ -545,152 +722,191 @@ public class CollisionDetector {
 		// raySphere is the vector from the ray to the sphere center
 		Vec3 raySphere = origin.times(-1);
 
-		lastCollisionPoint = ellipsoidCenter.plus(raySphere);
+		Vec3 hitPoint = ellipsoidCenter.plus(raySphere);
 
 		Vec3 surfacePoint = new Vec3(raySphere);
 		surfacePoint.normalize();
 		surfacePoint.multiply(localSphere.getRadii());
-		lastDistanceToCollision = ellipsoidCenter.distance(point)-surfacePoint.length();
+		double hitDistance = ellipsoidCenter.distance(point)-surfacePoint.length();
 
-		ret = lastDistanceToCollision;
-		return ret;
+		Vec3 normal = point.minus(ellipsoidCenter);
+		normal.normalize();
+		return new CollisionHit(hitPoint, hitDistance, normal, CollisionHit.NO_TRIANGLE);
 	}
 	
 	/**
-	 * Find distance point will travel before colliding with the cube
+	 * Find where point will collide with the cube, looking
+	 * both ways along the line. The line is clipped against the three pairs
+	 * of faces in the cube's own coordinates, and the nearer of the two
+	 * places it crosses the surface is used.
 	 * @param point
 	 * @param nominee
 	 * @param direction
 	 * @param collisionDistance
-	 * @return
+	 * @return the hit, or null if there is none
 	 */
-	private double findDistanceToCube(Vec3 point, ObjectInfo nominee, Vec3 direction, double collisionDistance) {
-		// TODO Auto-generated method stub
-		Mat4 toLocal = nominee.getCoords().toLocal();
-		
-		Cube localCube = (Cube)nominee.getObject().duplicate();
-		BoundingBox B = localCube.getBounds();
-		double retval = Double.MAX_VALUE;
-
-		Vec3 localPt = new Vec3(toLocal.times(point));
-		Vec3 localDir = new Vec3(toLocal.times(direction));
-		localDir.normalize();
-		
-		Triangle T[] = new Triangle[12];
-		T[0] = new Triangle(new Vec3(B.minx, B.miny, B.minz), new Vec3(B.maxx, B.miny, B.minz), new Vec3(B.minx, B.miny, B.maxz));
-		T[1] = new Triangle(new Vec3(B.maxx, B.miny, B.minz), new Vec3(B.minx, B.miny, B.maxz), new Vec3(B.maxx, B.miny, B.maxz));
-		T[2] = new Triangle(new Vec3(B.minx, B.maxy, B.minz), new Vec3(B.maxx, B.maxy, B.minz), new Vec3(B.minx, B.maxy, B.maxz));
-		T[3] = new Triangle(new Vec3(B.maxx, B.maxy, B.minz), new Vec3(B.minx, B.maxy, B.maxz), new Vec3(B.maxx, B.maxy, B.maxz));
-		T[4] = new Triangle(new Vec3(B.minx, B.miny, B.minz), new Vec3(B.maxx, B.miny, B.minz), new Vec3(B.minx, B.maxy, B.minz));
-		T[5] = new Triangle(new Vec3(B.maxx, B.miny, B.minz), new Vec3(B.minx, B.maxy, B.minz), new Vec3(B.maxx, B.maxy, B.minz));
-		T[6] = new Triangle(new Vec3(B.minx, B.miny, B.maxz), new Vec3(B.maxx, B.miny, B.maxz), new Vec3(B.maxx, B.maxy, B.maxz));
-		T[7] = new Triangle(new Vec3(B.minx, B.miny, B.maxz), new Vec3(B.maxx, B.maxy, B.maxz), new Vec3(B.minx, B.maxy, B.maxz));
-		T[8] = new Triangle(new Vec3(B.maxx, B.miny, B.minz), new Vec3(B.maxx, B.miny, B.maxz), new Vec3(B.maxx, B.maxy, B.maxz));
-		T[9] = new Triangle(new Vec3(B.maxx, B.miny, B.minz), new Vec3(B.maxx, B.maxy, B.minz), new Vec3(B.maxx, B.maxy, B.maxz));
-		T[10] = new Triangle(new Vec3(B.minx, B.miny, B.minz), new Vec3(B.minx, B.miny, B.maxz), new Vec3(B.minx, B.maxy, B.maxz));
-		T[11] = new Triangle(new Vec3(B.minx, B.miny, B.minz), new Vec3(B.minx, B.maxy, B.minz), new Vec3(B.minx, B.maxy, B.maxz));
-		
-		double lastVal = Double.MAX_VALUE;
-		for(int i = 0; i < 12; i++) {
-			
-			double dist = findPointTriangleCollisionDistance(localPt, T[i], localDir);
-			if(dist < retval) {
-				lastVal = dist;
-				lastCollisionPoint = nominee.getCoords().fromLocal().times(localDir.times(dist-collisionDistance).plus(localPt));
-				retval = lastCollisionPoint.distance(point);
+	private CollisionHit findCubeHit(Vec3 point, ObjectInfo nominee, CoordinateSystem coords, Vec3 direction, double collisionDistance) {
+		Mat4 toLocal = coords.toLocal();
+		BoundingBox B = nominee.getObject().getBounds();
+
+		// the point and direction in the cube's coordinates
+		double px = toLocal.m11*point.x + toLocal.m12*point.y + toLocal.m13*point.z + toLocal.m14;
+		double py = toLocal.m21*point.x + toLocal.m22*point.y + toLocal.m23*point.z + toLocal.m24;
+		double pz = toLocal.m31*point.x + toLocal.m32*point.y + toLocal.m33*point.z + toLocal.m34;
+		double dx = toLocal.m11*direction.x + toLocal.m12*direction.y + toLocal.m13*direction.z;
+		double dy = toLocal.m21*direction.x + toLocal.m22*direction.y + toLocal.m23*direction.z;
+		double dz = toLocal.m31*direction.x + toLocal.m32*direction.y + toLocal.m33*direction.z;
+		double length = Math.sqrt(dx*dx + dy*dy + dz*dz);
+		if(length == 0) {
+			return null;
+		}
+		dx /= length;
+		dy /= length;
+		dz /= length;
+
+		double near = -Double.MAX_VALUE;
+		double far = Double.MAX_VALUE;
+		int nearAxis = 0, farAxis = 0; // the pair of faces each crossing is on
+		if(dx != 0) {
+			double t1 = (B.minx - px)/dx;
+			double t2 = (B.maxx - px)/dx;
+			if(Math.min(t1, t2) > near) {
+				near = Math.min(t1, t2);
+				nearAxis = 0;
+			}
+			if(Math.max(t1, t2) < far) {
+				far = Math.max(t1, t2);
+				farAxis = 0;
+			}
+		}
+		else if(px < B.minx || px > B.maxx) {
+			return null;
+		}
+		if(dy != 0) {
+			double t1 = (B.miny - py)/dy;
+			double t2 = (B.maxy - py)/dy;
+			if(Math.min(t1, t2) > near) {
+				near = Math.min(t1, t2);
+				nearAxis = 1;
+			}
+			if(Math.max(t1, t2) < far) {
+				far = Math.max(t1, t2);
+				farAxis = 1;
+			}
+		}
+		else if(py < B.miny || py > B.maxy) {
+			return null;
+		}
+		if(dz != 0) {
+			double t1 = (B.minz - pz)/dz;
+			double t2 = (B.maxz - pz)/dz;
+			if(Math.min(t1, t2) > near) {
+				near = Math.min(t1, t2);
+				nearAxis = 2;
+			}
+			if(Math.max(t1, t2) < far) {
+				far = Math.max(t1, t2);
+				farAxis = 2;
 			}
 		}
-		
-		return retval;
+		else if(pz < B.minz || pz > B.maxz) {
+			return null;
+		}
+		if(near > far) {
+			return null; // the line misses the cube
+		}
+
+		// the line enters through the near face and leaves through the far one
+		double localDir[] = {dx, dy, dz};
+		double localNormal[] = new double[3];
+		double dist;
+		if(Math.abs(near) <= Math.abs(far)) {
+			dist = Math.abs(near);
+			localNormal[nearAxis] = localDir[nearAxis] > 0 ? -1.0 : 1.0;
+		}
+		else {
+			dist = Math.abs(far);
+			localNormal[farAxis] = localDir[farAxis] > 0 ? 1.0 : -1.0;
+		}
+		double step = dist-collisionDistance;
+		Mat4 fromLocal = coords.fromLocal();
+		Vec3 hitPoint = fromLocal.times(new Vec3(px + dx*step, py + dy*step, pz + dz*step));
+		Vec3 normal = fromLocal.timesDirection(new Vec3(localNormal[0], localNormal[1], localNormal[2]));
+		normal.normalize();
+		return new CollisionHit(hitPoint, hitPoint.distance(point), normal, CollisionHit.NO_TRIANGLE);
 	}
 	
 	
 	/**
-	 * Return true if a collision will occur with an object.
+	 * Finds the first of the objects a point would collide with.
 	 * @param dir
 	 * @param newV
 	 * @param candidate_objects
 	 * @param distance
 	 * @param collisionDistance
-	 * @return
+	 * @return the hit, or null if there is none
 	 */
-	public boolean detectObjectCollision(Vec3 dir, Vec3 newV, Collection<ObjectInfo> candidate_objects, double distance, double collisionDistance) {
+	public CollisionHit findCollision(Vec3 dir, Vec3 newV, Collection<ObjectInfo> candidate_objects, double distance, double collisionDistance) {
 		Vec3 direction = new Vec3(dir);
 		direction.normalize();
 		for(ObjectInfo I : candidate_objects) {
-			double distanceToCollision = findDistanceToCollisionPoint(newV, I, direction, collisionDistance, false);
-			if( distanceToCollision < distance) {
-				lastDistanceToCollision = TOL;
-				lastCollisionPoint = direction.times(lastDistanceToCollision).plus(newV);
-
-				return true;
+			CollisionHit hit = findHit(newV, I, direction, collisionDistance, false, Double.NaN);
+			if(hit != null && hit.getDistance() < distance) {
+				return hit.moveTo(direction.times(TOL).plus(newV), TOL);
 			}
 
 		}
-		return false;
+		return null;
 	}
 
 	/**
-	 * Return true if a collision will occur with an object.
+	 * Finds the first of the objects in colliders that could reach box that
+	 * a point would collide with. The objects are where the snapshot was
+	 * taken for, and a moving object is followed by the motion the snapshot
+	 * holds for it. The point of the hit is where the point should be moved
+	 * to. Nothing is changed, so several threads can ask at the same time.
 	 * @param dir
 	 * @param newV
-	 * @param candidate_objects
+	 * @param colliders
+	 * @param box
 	 * @param time
 	 * @param distance
 	 * @param collisionDistance
-	 * @return
+	 * @return the hit, or null if there is none
 	 */
-	public boolean detectObjectCollision(Vec3 dir, Vec3 newV, Collection<ObjectInfo> candidate_objects, double time, double distance, double collisionDistance) {
+	public CollisionHit findCollision(Vec3 dir, Vec3 newV, ColliderSnapshot colliders, BoundingBox box, double time, double distance, double collisionDistance) {
 		Vec3 direction = new Vec3(dir);
 		direction.normalize();
-		double prevTime = time-(1.0/3000.0); // TODO base on proper sim inputs
-		Vec3 moveVec = new Vec3();
-		for(ObjectInfo I : candidate_objects) {
-			moveVec = objectMovement(I, prevTime, time);
-			for(Track T : I.getTracks()) {
-				if((T instanceof PositionTrack) || (T instanceof RotationTrack) || (T instanceof VisibilityTrack)) {
-					T.apply(time);        
+		for(int i = 0; i < colliders.getColliderCount(); i++) {
+			if(!colliders.isCandidate(i, box)) {
+				continue;
+			}
+			ObjectInfo I = colliders.getCollider(i);
+			CoordinateSystem C = colliders.getCoords(i);
+
+			DistanceField field = colliders.getField(i);
+			if(field != null) {
+				double gradient[] = new double[3];
+				double d = field.findDistance(newV.x, newV.y, newV.z, gradient);
+				if(d < distance) {
+					Vec3 normal = new Vec3(gradient[0], gradient[1], gradient[2]);
+					Vec3 hitPoint = normal.times(distance-d).plus(newV);
+					return new CollisionHit(hitPoint, newV.distance(hitPoint), normal, CollisionHit.NO_TRIANGLE);
 				}
+				continue;
 			}
-			if(I.isVisible()) {
-
-				Vec3 dynamicDirection = new Vec3(moveVec.times(-1.0));
-				dynamicDirection.normalize();
 
-				double distanceToCollision = findDistanceToCollisionPoint(newV.plus(moveVec), I, direction, collisionDistance, objectMoved(I, prevTime, time));
-				if( distanceToCollision < distance) {
-					lastCollisionPoint = direction.times(distanceToCollision).plus(newV).plus(moveVec);
-					lastDistanceToCollision = newV.distance(lastCollisionPoint);
-
-					return true;
-				}      
-			}
+			Vec3 moveVec = colliders.getMotion(i);
+			TriangleHierarchy tree = colliders.getHierarchy(i);
+			CollisionHit hit = tree != null ? findHit(newV.plus(moveVec), tree, direction)
+					: findPrimitiveHit(newV.plus(moveVec), I, C, direction, collisionDistance);
+			if(hit != null && hit.getDistance() < distance) {
+				Vec3 hitPoint = direction.times(hit.getDistance()).plus(newV).plus(moveVec);
+				return hit.moveTo(hitPoint, newV.distance(hitPoint));
+			}      
 		}
-		return false;
-	}
-
-	/**
-	 * Returns the distance that was found the last time a distance to collision was calculated.
-	 * @return
-	 */
-	public double getLastDistanceToCollision() { return lastDistanceToCollision; }
-
-	/**
-	 * Returns the point of collision that was calculated last.
-	 * @return
-	 */
-	public Vec3 getLastCollisionPoint() {
-		Vec3 ps = lastCollisionPoint;
-		ps.x = Math.round(ps.x*100.0)/100.0;
-		ps.y = Math.round(ps.y*100.0)/100.0;
-		ps.z = Math.round(ps.z*100.0)/100.0;
-		return ps;
+		return null;
 	}
-	/**
-	 * Returns the triangle that was found the last time a collision was found.
-	 * @return
-	 */
-	public Triangle getLastCollisionTriangle() { return lastCollisionTriangle; }
 
 	/**
 	 * Finds the nearest triangle to point V.
@@ -700,27 +916,27 @@ public class CollisionDetector {
 	 * @return
 	 */
 	public Triangle findNearestTriangle(ObjectInfo candidate, Vec3 V, double time) {
-		Triangle T = null;
-
-		// if we can't do anything, just quit
-		if(candidate.getDistortedObject(MESH_TOLERANCE_NOMINEE).canConvertToTriangleMesh() == Object3D.CANT_CONVERT){ return T; }
-
-		TriangleMesh meshB = candidate.getDistortedObject(MESH_TOLERANCE_NOMINEE).convertToTriangleMesh(MESH_TOLERANCE_NOMINEE);
+		TriangleSoup soupB = getTriangleSoup(candidate, time);
+		double vertB[] = soupB.getVertices();
 
+		int nearest = -1;
 		double leastDistance = Double.MAX_VALUE;
-		// check distance of each face
-		for(Face faceB : meshB.getFaces()){
-			Mat4 fromB = candidate.getCoords().fromLocal();
-			Triangle triangleB = convertFaceToTriangle(meshB, faceB, fromB);
-
-			double triangleLeast = distanceToNearestTriangleVertex(V, triangleB);
-			if(triangleLeast < leastDistance) {
-				T = triangleB;
-				leastDistance = triangleLeast;
+		// check distance of each corner
+		for(int i = 0; i < vertB.length; i += 3){
+			double dx = vertB[i] - V.x;
+			double dy = vertB[i+1] - V.y;
+			double dz = vertB[i+2] - V.z;
+			double distance = Math.sqrt(dx*dx + dy*dy + dz*dz);
+			if(distance < leastDistance) {
+				nearest = i/9;
+				leastDistance = distance;
 			}  
 		}
 
-		return T;
+		// if we can't do anything, just quit
+		if(nearest < 0) { return null; }
+
+		return soupB.getTriangle(nearest);
 	}
 
 	/**
@@ -765,36 +981,6 @@ public class CollisionDetector {
 	}
 
 
-	/**
-	 * Returns true if the cloth collides with itself. Neighboring vertices are ignored.
-	 * @param mesh
-	 * @param pt
-	 * @param ptRadius
-	 * @return
-	 */
-	public boolean detectSelfCollision(Cloth mesh, int pt, double ptRadius) {
-		Mass point = mesh.getMasses()[pt];
-		for(int i = 0; i < mesh.getMasses().length; i++) {
-			// i is the point or a vertex connected to the point then ignore how close they are
-			Mass point2 = mesh.getMasses()[i];
-			if(i == pt) continue;
-
-			boolean matched = false;
-			for(int j = 0; j < point.getSprings().size(); j++) {
-				Spring S = point.getSprings().elementAt(j);
-
-				if(S.getMassA() == point2 || S.getMassB() == point2) {
-					matched = true;
-				}
-			}
-
-			if(!matched && Math.abs(point2.getPosition().distance(point.getPosition())) <= (ptRadius*2.0)) {
-				return true;
-			}
-		}
-		return false;
-	}
-
 	/**
 	 * Given a face defined in a Triangle Mesh, creates a triangle
 	 * with point values transformed from local to by the matrix.
@@ -815,6 +1001,139 @@ public class CollisionDetector {
 		return triangle;
 	}
 
+	/**
+	 * Returns the faces of an object in world coordinates, as it is at time.
+	 * The faces are kept, so the object is only converted to a triangle mesh
+	 * the first time they are asked for at that time. When the object was
+	 * kept for another time and its mesh still has the same faces, the old
+	 * faces are refit to the new positions. If time is NaN, the faces are
+	 * found but not kept. An object that can't be converted has no faces.
+	 * <p>
+	 * An object whose tracks change its shape is meshed from a copy with
+	 * the tracks applied at time, so the faces have the shape the object has
+	 * then, and not the one it has in the scene now.
+	 * @param nominee
+	 * @param time
+	 * @return
+	 */
+	public TriangleSoup getTriangleSoup(ObjectInfo nominee, double time) {
+		return getTriangleSoup(nominee, nominee.getCoords(), time);
+	}
+
+	/**
+	 * Get the triangles of an object that has the given coordinate system
+	 * at time, rather than the one it has now.
+	 * @param nominee
+	 * @param coords
+	 * @param time
+	 * @return
+	 */
+	public TriangleSoup getTriangleSoup(ObjectInfo nominee, CoordinateSystem coords, double time) {
+		return getTriangleSoup(nominee, null, coords, time);
+	}
+
+	/**
+	 * Get the triangles of an object that has the given coordinate system
+	 * at time, meshed from posed.
+	 * @param nominee
+	 * @param posed the object with its tracks applied at time, or null to find it when it is needed
+	 * @param coords
+	 * @param time
+	 * @return
+	 */
+	private TriangleSoup getTriangleSoup(ObjectInfo nominee, ObjectInfo posed, CoordinateSystem coords, double time) {
+		boolean keep = !Double.isNaN(time);
+		TriangleSoup soup = keep ? soupCache.get(nominee, time, MESH_TOLERANCE_NOMINEE) : null;
+		if(soup == null) {
+			if(posed == null) {
+				posed = keep && changesShape(nominee) ? pose(nominee, time) : nominee;
+			}
+			Object3D distorted = posed.getDistortedObject(MESH_TOLERANCE_NOMINEE);
+			TriangleMesh mesh = null;
+			if(distorted.canConvertToTriangleMesh() != Object3D.CANT_CONVERT) {
+				mesh = distorted.convertToTriangleMesh(MESH_TOLERANCE_NOMINEE);
+			}
+			TriangleSoup old = keep ? soupCache.getLatest(nominee, MESH_TOLERANCE_NOMINEE) : null;
+			if(mesh == null) {
+				soup = new TriangleSoup();
+			}
+			else if(old != null && old.hasSameFaces(mesh)) {
+				old.refit(mesh, coords.fromLocal());
+				soup = old;
+			}
+			else {
+				soup = new TriangleSoup(mesh, coords.fromLocal());
+			}
+			if(keep) {
+				soupCache.put(nominee, time, MESH_TOLERANCE_NOMINEE, soup);
+			}
+		}
+		return soup;
+	}
+
+	/**
+	 * Returns true if nothing about the object changes over time, other
+	 * than whether it can be seen.
+	 * @param obj
+	 * @return
+	 */
+	public boolean isStill(ObjectInfo obj) {
+		if(obj.isDistorted()) {
+			return false;
+		}
+		for(Track T : obj.getTracks()) {
+			if(T.isEnabled() && !(T instanceof VisibilityTrack)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the DistanceField of an object, or null if the object should
+	 * be checked against its triangles. Only objects that don't move get a
+	 * field, and only if they are made of triangles, since spheres, cubes
+	 * and cylinders are checked exactly already. The field reaches at least
+	 * twice the collision distance from the surface.
+	 * @param nominee
+	 * @param time
+	 * @param collisionDistance
+	 * @return
+	 */
+	public DistanceField getDistanceField(ObjectInfo nominee, double time, double collisionDistance) {
+		return getDistanceField(nominee, nominee.getCoords(), time, collisionDistance);
+	}
+
+	/**
+	 * Returns the DistanceField of an object that has the given coordinate
+	 * system, rather than the one it has now.
+	 * @param nominee
+	 * @param coords
+	 * @param time
+	 * @param collisionDistance
+	 * @return
+	 */
+	public DistanceField getDistanceField(ObjectInfo nominee, CoordinateSystem coords, double time, double collisionDistance) {
+		if(fieldCache == null || !isStill(nominee)) {
+			return null;
+		}
+		Object obj = nominee.getObject();
+		if(obj instanceof Sphere || obj instanceof Cube || obj instanceof Cylinder) {
+			return null;
+		}
+		// the object doesn't move, so the triangles are only needed to make the field
+		double band = Math.max(DistanceField.BAND_CELLS*fieldCache.getCellSize(), 2.0*collisionDistance);
+		DistanceField field = fieldCache.getField(nominee, band);
+		if(field != null) {
+			return field;
+		}
+		TriangleSoup soup = getTriangleSoup(nominee, coords, time);
+		if(soup.getTriangleCount() == 0) {
+			return null;
+		}
+		return fieldCache.getField(nominee, soup, band);
+	}
+
 	/**
 	 * Given a point and a triangle in the same coordinate system, finds the
 	 * distance between them along the direction vector. If ptA
@@ -840,17 +1159,13 @@ public class CollisionDetector {
 
 		// point A0
 		Vec3 a0 = ptA;
-		numerator = a0.minus(b).dot(normal);
+		numerator = (a0.x-b.x)*normal.x + (a0.y-b.y)*normal.y + (a0.z-b.z)*normal.z;
 		dist = Math.abs(numerator/denominator);
 
-		Vec3 P0 = a0.plus(direction.times(dist));
-
-		if(!pointInTriangle(triangleB, P0, direction)){
+		// the point where the line meets the plane is on the same line, so a0 is tested
+		if(!pointInTriangle(triangleB, a0, direction)){
 			dist = Double.MAX_VALUE;
 		}
-		else {
-			lastCollisionTriangle = triangleB;
-		} 
 
 		return dist;
 	}
@@ -863,128 +1178,7 @@ public class CollisionDetector {
 	 * @return
 	 */
 	public boolean pointInTriangle(Triangle triangleB, Vec3 P, Vec3 direction) {
-		// Transpose triangleB onto the plane perpendicular to direction.
-		Mat4 xRotMatrix = Mat4.xrotation(calculateXRotate(direction));
-		Mat4 yRotMatrix = Mat4.yrotation(calculateYRotate(direction));
-		Mat4 zRotMatrix = Mat4.zrotation(calculateZRotate(direction));
-		Mat4 rotationMatrix = xRotMatrix.times(yRotMatrix).times(zRotMatrix);
-
-		Triangle projB = new Triangle(
-				rotationMatrix.times(triangleB.getP0()), 
-				rotationMatrix.times(triangleB.getP1()), 
-				rotationMatrix.times(triangleB.getP2())); 
-
-		// Transpose P onto the plane perpendicular to direction.
-		Vec3 projP = rotationMatrix.times(P);
-
-		// Determine if P is on the same side of each edge as the opposite point.
-		if(SameSide(projP, projB.getP0(), projB.getP1(), projB.getP2())
-				&& SameSide(projP, projB.getP1(), projB.getP2(), projB.getP0())
-				&& SameSide(projP, projB.getP2(), projB.getP0(), projB.getP1())){
-			return true;
-		}
-		// else
-		return false;
-	}
-
-	/**
-	 * Returns true if the two points are on the same side of the line
-	 * given by linePoint1 and linePoint2.
-	 * @param point1
-	 * @param point2
-	 * @param linePoint1
-	 * @param linePoint2
-	 * @return
-	 */
-	public boolean SameSide(Vec3 point1, Vec3 point2, Vec3 linePoint1, Vec3 linePoint2) {
-		// Two points are on the same side of a line if the dot product of the
-		// cross product of each point minus a point on the line and a second
-		// point on the line minus the first point is >= 0.
-		Vec3 crossPoint1 = (linePoint2.minus(linePoint1)).cross(point1.minus(linePoint1));
-		Vec3 crossPoint2 = (linePoint2.minus(linePoint1)).cross(point2.minus(linePoint1));
-		if(crossPoint1.dot(crossPoint2) >= 0){
-			return true;
-		}
-		//else
-
-		return false;
-	}
-
-	/**
-	 * Calculates the second rotation, which will align the direction
-	 * vector with the y axis.
-	 * @param x
-	 * @param y
-	 * @param z
-	 * @return
-	 */
-	private double calculateZRotate(Vec3 direction) {
-		// Note that this is essentially the same code as we used
-		// for the Point At Plugin
-		double x = direction.x;
-		double y = direction.y;
-		double z = direction.z;
-		double sqrtYYZZ = Math.sqrt(y*y + z*z);
-		double ret = 0; // return value;
-		if(sqrtYYZZ != 0){
-
-			ret = Math.toDegrees(Math.atan(x/sqrtYYZZ));
-
-			if(sqrtYYZZ < 0){
-				// angle is on the other size
-				ret += 180.0; 
-			}
-		}
-		// Handle differently because the angle gives two possible directions.
-		else if(x > 0){
-			ret = 90.0;
-		}
-		else if(x < 0){
-			ret = -90.0;
-		}
-		return ret;
-	}
-
-	/**
-	 * Returns a valid angle for Y.
-	 * @return
-	 */
-	private double calculateYRotate(Vec3 direction) {
-		// Note that this is essentially the same code as we used
-		// for the Point At Plugin
-
-		// Zero is as good as any value.
-		return 0.0;
-	}
-
-	/**
-	 * Calculates rotation that will put direction vector in the XY plane. 
-	 * @param y
-	 * @param z
-	 * @return
-	 */
-	private double calculateXRotate(Vec3 direction) {
-		// Note that this is essentially the same code as we used
-		// for the Point At Plugin
-		double y = direction.y;
-		double z = direction.z;
-		double ret = 0;
-
-		if(y != 0){
-			ret = Math.toDegrees(Math.atan(-z/y));
-
-			if(y < 0){
-				ret += 180.0;
-			}
-		}
-		// Handle differently because the angle gives two possible directions.
-		else if(z > 0){
-			ret = -90.0;
-		}
-		else if(z < 0){
-			ret = 90.0;
-		}
-		return  ret;
+		return Geometry.lineCrossesTriangle(P, direction, triangleB.getP0(), triangleB.getP1(), triangleB.getP2());
 	}
 
 }
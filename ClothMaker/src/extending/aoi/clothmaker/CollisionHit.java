@@ -0,0 +1,97 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import artofillusion.math.Vec3;
+
+/**
+ * A collision found by CollisionDetector. It holds the point the
+ * collision puts the vertex at, the distance, the normal of the surface
+ * that was hit and, for objects made of triangles, which triangle it was.
+ * <p>
+ * A hit never changes once it is made, and hands out copies of its
+ * vectors, so it can be passed between threads.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class CollisionHit {
+  public static final int NO_TRIANGLE = -1;
+
+  private final Vec3 point;
+  private final double distance;
+  private final Vec3 normal;
+  private final int triangle;
+
+  /**
+   * Constructor
+   * @param point
+   * @param distance
+   * @param normal unit normal of the surface that was hit
+   * @param triangle index of the triangle in the object's TriangleSoup, or NO_TRIANGLE
+   */
+  public CollisionHit(Vec3 point, double distance, Vec3 normal, int triangle) {
+    this.point = new Vec3(point);
+    this.distance = distance;
+    this.normal = new Vec3(normal);
+    this.triangle = triangle;
+  }
+
+  /**
+   * Get the point of the collision.
+   * @return
+   */
+  public Vec3 getPoint() {
+    return new Vec3(point);
+  }
+
+  /**
+   * Get the distance to the collision.
+   * @return
+   */
+  public double getDistance() {
+    return distance;
+  }
+
+  /**
+   * Get the normal of the surface that was hit.
+   * @return
+   */
+  public Vec3 getNormal() {
+    return new Vec3(normal);
+  }
+
+  /**
+   * Get the triangle that was hit, or NO_TRIANGLE if the object was not
+   * checked by its triangles.
+   * @return
+   */
+  public int getTriangle() {
+    return triangle;
+  }
+
+  /**
+   * Makes a hit at another point, with the same normal and triangle.
+   * @param point
+   * @param distance
+   * @return
+   */
+  public CollisionHit moveTo(Vec3 point, double distance) {
+    return new CollisionHit(point, distance, normal, triangle);
+  }
+}
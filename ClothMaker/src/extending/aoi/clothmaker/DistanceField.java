@@ -0,0 +1,384 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The signed distance to the surface of an object that does not move,
+ * sampled on a grid so that a cloth vertex can be checked against the
+ * object with one lookup instead of a search through its triangles. The
+ * distance is positive on the side the normals point to.
+ * <p>
+ * Only the samples near the surface are kept. The grid is cut into bricks
+ * of BRICK_SIZE samples on a side, and a brick is only made if a triangle
+ * comes within the band of it. Away from the surface there are no bricks,
+ * and the field reports that the point is far from everything.
+ * <p>
+ * A vertex looks up eight samples each time it is checked, so once the
+ * field is made its bricks are also put in a table of their own, found
+ * by the key itself rather than by a Long made from it.
+ * <p>
+ * Making the field is slow for a big object, so it can be written to a
+ * file and read back the next time the scene is simulated. The signature
+ * is worked out from the triangles and the grid, and tells whether a file
+ * still matches the object.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class DistanceField {
+  public static final int BRICK_SIZE = 8;
+  public static final int BAND_CELLS = 3; // fewest cells of band around the surface
+  private static final int SHIFT = 3; // log2 of BRICK_SIZE
+  private static final int MASK = BRICK_SIZE - 1;
+  private static final long OFFSET = 1L << 20; // keeps brick indices positive in the key
+  private static final short VERSION = 1;
+
+  private final double cellSize;
+  private final double band;
+  private final long signature;
+  private final Map<Long, float[]> bricks;
+  private final long tableKey[]; // key of the brick in each slot of the table
+  private final float tableSample[][]; // samples of the brick in each slot, or null for an empty slot
+
+  /**
+   * Constructor
+   * Samples the distance to the soup at every grid point within band of
+   * a triangle.
+   * @param soup
+   * @param cellSize the distance between grid points
+   * @param band how far from the surface the field is kept
+   */
+  public DistanceField(TriangleSoup soup, double cellSize, double band) {
+    this.cellSize = cellSize;
+    this.band = band;
+    signature = findSignature(soup, cellSize, band);
+    bricks = new HashMap<Long, float[]>();
+
+    double vert[] = soup.getVertices();
+    for(int t = 0; t < soup.getTriangleCount(); t++) {
+      int v = t*9;
+      int lo[] = new int[3];
+      int hi[] = new int[3];
+      for(int k = 0; k < 3; k++) {
+        double min = Math.min(vert[v+k], Math.min(vert[v+3+k], vert[v+6+k]));
+        double max = Math.max(vert[v+k], Math.max(vert[v+3+k], vert[v+6+k]));
+        lo[k] = (int) Math.floor((min - band)/cellSize) >> SHIFT;
+        hi[k] = (int) Math.floor((max + band)/cellSize) >> SHIFT;
+      }
+      for(int bx = lo[0]; bx <= hi[0]; bx++) {
+        for(int by = lo[1]; by <= hi[1]; by++) {
+          for(int bz = lo[2]; bz <= hi[2]; bz++) {
+            Long key = key(bx, by, bz);
+            if(!bricks.containsKey(key)) {
+              bricks.put(key, null);
+            }
+          }
+        }
+      }
+    }
+
+    TriangleHierarchy tree = soup.getHierarchy();
+    double normal[] = soup.getNormals();
+    double p[] = new double[3];
+    double q[] = new double[3];
+    for(Map.Entry<Long, float[]> entry : bricks.entrySet()) {
+      long k = entry.getKey();
+      int x0 = (int)((k >>> 42) - OFFSET) << SHIFT;
+      int y0 = (int)(((k >>> 21) & 0x1FFFFF) - OFFSET) << SHIFT;
+      int z0 = (int)((k & 0x1FFFFF) - OFFSET) << SHIFT;
+      float sample[] = new float[BRICK_SIZE*BRICK_SIZE*BRICK_SIZE];
+      for(int i = 0; i < BRICK_SIZE; i++) {
+        for(int j = 0; j < BRICK_SIZE; j++) {
+          // The surface is never more than a cell further from a sample
+          // than from the one before it, so that bounds the search.
+          double limit = Double.MAX_VALUE;
+          for(int l = 0; l < BRICK_SIZE; l++) {
+            p[0] = (x0 + i)*cellSize;
+            p[1] = (y0 + j)*cellSize;
+            p[2] = (z0 + l)*cellSize;
+            int t = tree.findNearestTriangle(p, limit);
+            if(t < 0) {
+              t = tree.findNearestTriangle(p, Double.MAX_VALUE);
+            }
+            double d = Math.sqrt(tree.findClosestPoint(p, t, q));
+            limit = d + cellSize*1.001;
+            double side = (p[0] - q[0])*normal[t*3] + (p[1] - q[1])*normal[t*3+1] + (p[2] - q[2])*normal[t*3+2];
+            sample[(i*BRICK_SIZE + j)*BRICK_SIZE + l] = (float)(side < 0.0 ? -d : d);
+          }
+        }
+      }
+      entry.setValue(sample);
+    }
+    tableKey = new long[tableSize(bricks.size())];
+    tableSample = new float[tableKey.length][];
+    fillTable();
+  }
+
+  /**
+   * Constructor
+   * Used when reading a field from a file.
+   * @param cellSize
+   * @param band
+   * @param signature
+   * @param bricks
+   */
+  private DistanceField(double cellSize, double band, long signature, Map<Long, float[]> bricks) {
+    this.cellSize = cellSize;
+    this.band = band;
+    this.signature = signature;
+    this.bricks = bricks;
+    tableKey = new long[tableSize(bricks.size())];
+    tableSample = new float[tableKey.length][];
+    fillTable();
+  }
+
+  /**
+   * Get the number of slots in a table for count bricks, a power of two
+   * at least twice count so a lookup seldom has to step past another brick.
+   * @param count
+   * @return
+   */
+  private static int tableSize(int count) {
+    int size = 2;
+    while(size < count*2) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  /**
+   * Puts every brick in the table.
+   */
+  private void fillTable() {
+    int mask = tableKey.length - 1;
+    for(Map.Entry<Long, float[]> entry : bricks.entrySet()) {
+      long k = entry.getKey();
+      int slot = slot(k, mask);
+      while(tableSample[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      tableKey[slot] = k;
+      tableSample[slot] = entry.getValue();
+    }
+  }
+
+  /**
+   * Get the slot of the table a key is looked for first.
+   * @param k
+   * @param mask one less than the size of the table
+   * @return
+   */
+  private static int slot(long k, int mask) {
+    long h = (k ^ (k >>> 21) ^ (k >>> 42))*0x9E3779B97F4A7C15L;
+    return (int)(h >>> 32) & mask;
+  }
+
+  /**
+   * Get the sample at a grid point, or NaN if it is in no brick.
+   * @param x
+   * @param y
+   * @param z
+   * @return
+   */
+  private double sample(int x, int y, int z) {
+    long k = key(x >> SHIFT, y >> SHIFT, z >> SHIFT);
+    int mask = tableKey.length - 1;
+    for(int slot = slot(k, mask); tableSample[slot] != null; slot = (slot + 1) & mask) {
+      if(tableKey[slot] == k) {
+        return tableSample[slot][((x & MASK)*BRICK_SIZE + (y & MASK))*BRICK_SIZE + (z & MASK)];
+      }
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Finds the signature of a field made from the soup with the given grid.
+   * @param soup
+   * @param cellSize
+   * @param band
+   * @return
+   */
+  public static long findSignature(TriangleSoup soup, double cellSize, double band) {
+    long hash = 1125899906842597L;
+    hash = hash*31 + Double.doubleToLongBits(cellSize);
+    hash = hash*31 + Double.doubleToLongBits(band);
+    double vert[] = soup.getVertices();
+    for(int i = 0; i < vert.length; i++) {
+      hash = hash*31 + Double.doubleToLongBits(vert[i]);
+    }
+    return hash;
+  }
+
+  /**
+   * Get the signature of the triangles and grid the field was made from.
+   * @return
+   */
+  public long getSignature() {
+    return signature;
+  }
+
+  /**
+   * Get the distance between grid points.
+   * @return
+   */
+  public double getCellSize() {
+    return cellSize;
+  }
+
+  /**
+   * Get how far from the surface the field is kept.
+   * @return
+   */
+  public double getBand() {
+    return band;
+  }
+
+  /**
+   * Get the number of bricks in the field.
+   * @return
+   */
+  public int getBrickCount() {
+    return bricks.size();
+  }
+
+  /**
+   * Finds the signed distance from a point to the surface, blending the
+   * eight grid points around it.
+   * @param x
+   * @param y
+   * @param z
+   * @param gradient set to the unit direction the distance grows fastest in
+   * @return the distance, or Double.MAX_VALUE if the point is outside the band
+   */
+  public double findDistance(double x, double y, double z, double gradient[]) {
+    double gx = x/cellSize, gy = y/cellSize, gz = z/cellSize;
+    int ix = (int) Math.floor(gx), iy = (int) Math.floor(gy), iz = (int) Math.floor(gz);
+    double fx = gx - ix, fy = gy - iy, fz = gz - iz;
+    // sn is the corner at x + (n >> 2), y + ((n >> 1) & 1), z + (n & 1)
+    double s0 = sample(ix, iy, iz), s1 = sample(ix, iy, iz+1);
+    double s2 = sample(ix, iy+1, iz), s3 = sample(ix, iy+1, iz+1);
+    double s4 = sample(ix+1, iy, iz), s5 = sample(ix+1, iy, iz+1);
+    double s6 = sample(ix+1, iy+1, iz), s7 = sample(ix+1, iy+1, iz+1);
+    if(Double.isNaN(s0 + s1 + s2 + s3 + s4 + s5 + s6 + s7)) {
+      return Double.MAX_VALUE;
+    }
+
+    double c00 = s0 + (s4 - s0)*fx, c01 = s1 + (s5 - s1)*fx;
+    double c10 = s2 + (s6 - s2)*fx, c11 = s3 + (s7 - s3)*fx;
+    double c0 = c00 + (c10 - c00)*fy, c1 = c01 + (c11 - c01)*fy;
+    double d = c0 + (c1 - c0)*fz;
+
+    double dx = ((s4 - s0)*(1-fy) + (s6 - s2)*fy)*(1-fz) + ((s5 - s1)*(1-fy) + (s7 - s3)*fy)*fz;
+    double dy = (c10 - c00)*(1-fz) + (c11 - c01)*fz;
+    double dz = c1 - c0;
+    double length = Math.sqrt(dx*dx + dy*dy + dz*dz);
+    if(length > 0.0) {
+      gradient[0] = dx/length;
+      gradient[1] = dy/length;
+      gradient[2] = dz/length;
+    }
+    else {
+      gradient[0] = 0.0;
+      gradient[1] = 0.0;
+      gradient[2] = 1.0;
+    }
+    return d;
+  }
+
+  /**
+   * Writes the field to a file.
+   * @param file
+   * @throws IOException
+   */
+  public void writeToFile(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeShort(VERSION);
+      out.writeDouble(cellSize);
+      out.writeDouble(band);
+      out.writeLong(signature);
+      out.writeInt(bricks.size());
+      for(Map.Entry<Long, float[]> entry : bricks.entrySet()) {
+        out.writeLong(entry.getKey());
+        float sample[] = entry.getValue();
+        for(int i = 0; i < sample.length; i++) {
+          out.writeFloat(sample[i]);
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads a field written by writeToFile.
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static DistanceField readFromFile(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      short version = in.readShort();
+      if(version != VERSION) {
+        throw new InvalidObjectException("");
+      }
+      double cellSize = in.readDouble();
+      double band = in.readDouble();
+      long signature = in.readLong();
+      int count = in.readInt();
+      Map<Long, float[]> bricks = new HashMap<Long, float[]>();
+      for(int b = 0; b < count; b++) {
+        long key = in.readLong();
+        float sample[] = new float[BRICK_SIZE*BRICK_SIZE*BRICK_SIZE];
+        for(int i = 0; i < sample.length; i++) {
+          sample[i] = in.readFloat();
+        }
+        bricks.put(key, sample);
+      }
+      return new DistanceField(cellSize, band, signature, bricks);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Packs the index of a brick into a key.
+   * @param bx
+   * @param by
+   * @param bz
+   * @return
+   */
+  private static long key(int bx, int by, int bz) {
+    return ((bx + OFFSET) << 42) | ((by + OFFSET) << 21) | (bz + OFFSET);
+  }
+}
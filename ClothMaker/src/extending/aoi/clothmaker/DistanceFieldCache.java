@@ -0,0 +1,131 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import artofillusion.object.ObjectInfo;
+
+/**
+ * Holds the DistanceFields of the objects a cloth collides with that do
+ * not move. A field is made the first time an object is asked for, and is
+ * kept until the cache is cleared.
+ * <p>
+ * If the cache has a directory, each field is also written there, named
+ * by the id of its object, and is read back instead of being made again
+ * if the file's signature still matches the object. The files only save
+ * time, so a file that can't be read or written is passed over and the
+ * field is made in memory instead.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class DistanceFieldCache {
+  private static final String EXTENSION = ".sdf";
+
+  private final double cellSize;
+  private final File directory;
+  private final Map<ObjectInfo, DistanceField> fields;
+
+  /**
+   * Constructor
+   * @param cellSize the distance between grid points of the fields
+   * @param directory where fields are kept on disk, or null to keep them only in memory
+   */
+  public DistanceFieldCache(double cellSize, File directory) {
+    this.cellSize = cellSize;
+    this.directory = directory;
+    fields = new IdentityHashMap<ObjectInfo, DistanceField>();
+  }
+
+  /**
+   * Get the distance between grid points of the fields.
+   * @return
+   */
+  public double getCellSize() {
+    return cellSize;
+  }
+
+  /**
+   * Get the field of an object that reaches at least band from the
+   * surface, or null if the cache does not have one.
+   * @param info
+   * @param band
+   * @return
+   */
+  public synchronized DistanceField getField(ObjectInfo info, double band) {
+    DistanceField field = fields.get(info);
+    return field != null && field.getBand() >= band ? field : null;
+  }
+
+  /**
+   * Get the field of an object, reading or making it if it is not in the
+   * cache.
+   * @param info
+   * @param soup the triangles of the object
+   * @param band how far from the surface the field must reach
+   * @return
+   */
+  public synchronized DistanceField getField(ObjectInfo info, TriangleSoup soup, double band) {
+    DistanceField field = fields.get(info);
+    if(field != null && field.getBand() >= band) {
+      return field;
+    }
+
+    long signature = DistanceField.findSignature(soup, cellSize, band);
+    File file = directory == null ? null : new File(directory, info.getId() + EXTENSION);
+    field = null;
+    if(file != null && file.isFile()) {
+      try {
+        field = DistanceField.readFromFile(file);
+        if(field.getSignature() != signature) {
+          field = null;
+        }
+      } catch (IOException e) {
+        // an old or damaged file; the field is made again and the file replaced
+        field = null;
+      }
+    }
+    if(field == null) {
+      field = new DistanceField(soup, cellSize, band);
+      if(file != null) {
+        try {
+          if(directory.isDirectory() || directory.mkdirs()) {
+            field.writeToFile(file);
+          }
+        } catch (IOException e) {
+          // the field is still in memory; drop what was written so it is made again next time
+          file.delete();
+        }
+      }
+    }
+    fields.put(info, field);
+    return field;
+  }
+
+  /**
+   * Drops every field from memory. The files are left alone, since they
+   * are checked against their objects before they are used.
+   */
+  public synchronized void clear() {
+    fields.clear();
+  }
+}
@@ -0,0 +1,183 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.io.InvalidObjectException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A block of frames as FrameCodec wrote it, still compressed. Reading a
+ * scene only keeps the bytes of each block, and a block is decoded the
+ * first time one of its frames is asked for, so opening a scene does not
+ * take longer the more frames it has.
+ * <p>
+ * The blocks that were read together share a cache of the decoded
+ * frames. When the cache is full, the block that was used longest ago is
+ * dropped, and is decoded again if it is needed.
+ * <p>
+ * Only the size of a block is checked when the scene is read, so a block
+ * that was damaged in the file is only found out when it is decoded. It
+ * is then marked as unreadable, and the frames in it are passed over in
+ * favour of the nearest ones that can be read.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class FrameBlock {
+  // Most blocks kept decoded at one time
+  static final int DECODED_BLOCKS = 4;
+
+  private final byte packed[];
+  private final int length; // bytes once inflated
+  private final int frameCount;
+  private final int vertexCount;
+  private final double min[];
+  private final double step[];
+  private final Map<FrameBlock, double[][]> decoded; // shared by the blocks read together
+  private volatile boolean unreadable; // true once decoding has failed
+
+  /**
+   * Constructor
+   * @param packed the compressed bytes
+   * @param length the number of bytes once inflated
+   * @param frameCount
+   * @param vertexCount
+   * @param min the corner of the grid
+   * @param step the size of a grid cell on each axis
+   * @param decoded the cache made by newCache for the blocks read together
+   */
+  FrameBlock(byte packed[], int length, int frameCount, int vertexCount, double min[], double step[], Map<FrameBlock, double[][]> decoded) {
+    this.packed = packed;
+    this.length = length;
+    this.frameCount = frameCount;
+    this.vertexCount = vertexCount;
+    this.min = min.clone();
+    this.step = step.clone();
+    this.decoded = decoded;
+  }
+
+  /**
+   * Makes a cache of decoded frames for blocks that are read together.
+   * @return
+   */
+  static Map<FrameBlock, double[][]> newCache() {
+    return new LinkedHashMap<FrameBlock, double[][]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<FrameBlock, double[][]> eldest) {
+        return size() > DECODED_BLOCKS;
+      }
+    };
+  }
+
+  /**
+   * Get the number of frames in the block.
+   * @return
+   */
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * Get the number of vertices in each frame.
+   * @return
+   */
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  /**
+   * Returns true if the block can be decoded.
+   * @return
+   */
+  public boolean isReadable() {
+    return decode() != null;
+  }
+
+  /**
+   * Get a copy of the positions of a frame, three values per vertex, or
+   * null if the block can't be decoded.
+   * @param index the frame within the block
+   * @return
+   */
+  public double[] getPositions(int index) {
+    double frames[][] = decode();
+    return frames == null ? null : frames[index].clone();
+  }
+
+  /**
+   * Get the positions of every frame in the block, decoding them if they
+   * are not in the cache. Two threads may both decode a block that is not
+   * cached, which does no harm.
+   * @return the positions, or null if the block can't be decoded
+   */
+  private double[][] decode() {
+    if(unreadable) {
+      return null;
+    }
+    synchronized(decoded) {
+      double frames[][] = decoded.get(this);
+      if(frames != null) {
+        return frames;
+      }
+    }
+
+    double frames[][] = new double[frameCount][vertexCount*3];
+    try {
+      byte block[] = new byte[length];
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(packed);
+        if(inflater.inflate(block) != length || !inflater.finished()) {
+          throw new InvalidObjectException("");
+        }
+      } catch (DataFormatException e) {
+        throw new InvalidObjectException(e.getMessage());
+      }
+      finally {
+        inflater.end();
+      }
+
+      int grid[] = new int[vertexCount*3];
+      int at[] = {0};
+      for(int f = 0; f < frameCount; f++) {
+        double p[] = frames[f];
+        for(int i = 0; i < p.length; i++) {
+          grid[i] += FrameCodec.readVarInt(block, at);
+          p[i] = min[i%3] + grid[i]*step[i%3];
+        }
+      }
+      if(at[0] != length) {
+        throw new InvalidObjectException("");
+      }
+    } catch (InvalidObjectException e) {
+      // the bytes were damaged in the file; this is not tried again
+      unreadable = true;
+      return null;
+    }
+
+    synchronized(decoded) {
+      decoded.put(this, frames);
+    }
+    return frames;
+  }
+}
@@ -0,0 +1,275 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import artofillusion.Scene;
+
+/**
+ * Writes and reads the stored frames of a ClothTrack in a compact form.
+ * The cloth is written once, with the positions of the first frame, and
+ * each frame after that is only its vertex positions.
+ * <p>
+ * A position is stored as the number of the point nearest to it on a grid
+ * of GRID_BITS bits per axis laid over the box that holds every frame.
+ * Each grid number is written as the change from the same number in the
+ * frame before, since a vertex moves little from one frame to the next,
+ * in as few bytes as it fits in. The frames are split into blocks of
+ * FRAMES_PER_BLOCK, and each block is compressed on its own. The first
+ * frame of a block is written as the change from zero, so a block can be
+ * read without the ones before it.
+ * <p>
+ * The grid is the only loss. A position comes back within half a grid
+ * step of where it was.
+ * <p>
+ * Reading keeps each block as it is in the stream, in a FrameBlock, and
+ * leaves the decoding until a frame in it is asked for.
+ *
+ * @author Timothy Fish
+ *
+ */
+public final class FrameCodec {
+  // Bits of the grid number on each axis
+  static final int GRID_BITS = 20;
+  // Frames that are compressed together
+  static final int FRAMES_PER_BLOCK = 16;
+  private static final int GRID_MAX = (1 << GRID_BITS) - 1;
+  // Most bytes writeVarInt writes for one number
+  private static final int MAX_VARINT_BYTES = 5;
+  // Most bytes of a block read from the stream at once
+  private static final int READ_CHUNK = 1 << 16;
+
+  private FrameCodec() {
+  }
+
+  /**
+   * Returns true if the frames can be written by write, which needs every
+   * frame to have the same number of vertices.
+   * @param frames
+   * @return
+   */
+  public static boolean canWrite(List<SimFrame> frames) {
+    for(SimFrame frame : frames) {
+      if(frame.getVertexCount() != frames.get(0).getVertexCount()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the frames.
+   * @param out
+   * @param scene
+   * @param frames
+   * @throws IOException
+   */
+  public static void write(DataOutputStream out, Scene scene, List<SimFrame> frames) throws IOException {
+    out.writeInt(frames.size());
+    if(frames.isEmpty()) {
+      return;
+    }
+    frames.get(0).getCloth().writeToFile(out, scene);
+    int count = frames.get(0).getVertexCount()*3;
+
+    // the box that holds every frame decides the grid
+    double min[] = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+    double max[] = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+    for(SimFrame frame : frames) {
+      double p[] = frame.getPositions();
+      for(int i = 0; i < count; i++) {
+        min[i%3] = Math.min(min[i%3], p[i]);
+        max[i%3] = Math.max(max[i%3], p[i]);
+      }
+    }
+    double step[] = new double[3];
+    for(int k = 0; k < 3; k++) {
+      if(count == 0) {
+        min[k] = 0.0;
+        max[k] = 0.0;
+      }
+      step[k] = max[k] > min[k] ? (max[k] - min[k])/GRID_MAX : 1.0;
+      out.writeDouble(min[k]);
+      out.writeDouble(step[k]);
+    }
+    out.writeInt(FRAMES_PER_BLOCK);
+    for(SimFrame frame : frames) {
+      out.writeInt(frame.frameNumber);
+    }
+
+    int prev[] = new int[count];
+    int grid[] = new int[count];
+    // no number takes more than five bytes
+    byte block[] = new byte[Math.min(frames.size(), FRAMES_PER_BLOCK)*count*5];
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    byte buffer[] = new byte[65536];
+    ByteArrayOutputStream packed = new ByteArrayOutputStream();
+    for(int first = 0; first < frames.size(); first += FRAMES_PER_BLOCK) {
+      int length = 0;
+      Arrays.fill(prev, 0);
+      for(int f = first; f < Math.min(frames.size(), first + FRAMES_PER_BLOCK); f++) {
+        double p[] = frames.get(f).getPositions();
+        for(int i = 0; i < count; i++) {
+          grid[i] = (int) Math.round((p[i] - min[i%3])/step[i%3]);
+          length = writeVarInt(block, length, grid[i] - prev[i]);
+        }
+        int swap[] = prev;
+        prev = grid;
+        grid = swap;
+      }
+
+      deflater.reset();
+      deflater.setInput(block, 0, length);
+      deflater.finish();
+      packed.reset();
+      while(!deflater.finished()) {
+        packed.write(buffer, 0, deflater.deflate(buffer));
+      }
+      out.writeInt(length);
+      out.writeInt(packed.size());
+      packed.writeTo(out);
+    }
+    deflater.end();
+  }
+
+  /**
+   * Reads frames written by write and adds them to frames. The positions
+   * are not decoded here; each frame keeps the FrameBlock it is in.
+   * @param in
+   * @param scene
+   * @param frames
+   * @throws IOException
+   * @throws InvalidObjectException
+   */
+  public static void read(DataInputStream in, Scene scene, List<SimFrame> frames) throws IOException, InvalidObjectException {
+    int size = in.readInt();
+    if(size < 0) {
+      throw new InvalidObjectException("");
+    }
+    if(size == 0) {
+      return;
+    }
+    Cloth template = new Cloth(in, scene);
+    int count = template.getVertexPositions().length*3;
+    double min[] = new double[3];
+    double step[] = new double[3];
+    for(int k = 0; k < 3; k++) {
+      min[k] = in.readDouble();
+      step[k] = in.readDouble();
+    }
+    int framesPerBlock = in.readInt();
+    if(framesPerBlock < 1) {
+      throw new InvalidObjectException("");
+    }
+    int frameNumber[] = new int[size];
+    for(int f = 0; f < size; f++) {
+      frameNumber[f] = in.readInt();
+    }
+
+    Map<FrameBlock, double[][]> decoded = FrameBlock.newCache();
+    for(int first = 0; first < size; first += framesPerBlock) {
+      int length = in.readInt();
+      int packedLength = in.readInt();
+      int frameCount = Math.min(size - first, framesPerBlock);
+      if(length < 0 || (long) length > (long) frameCount*count*MAX_VARINT_BYTES || packedLength < 0) {
+        throw new InvalidObjectException("");
+      }
+      byte packed[] = readBytes(in, packedLength);
+      FrameBlock block = new FrameBlock(packed, length, frameCount, count/3, min, step, decoded);
+      for(int f = 0; f < frameCount; f++) {
+        frames.add(new SimFrame(frameNumber[first + f], template, block, f));
+      }
+    }
+  }
+
+  /**
+   * Reads count bytes. They are read a chunk at a time, so a count that is
+   * more than is left in the stream ends at the end of the stream and
+   * not in making an array that big.
+   * @param in
+   * @param count
+   * @return
+   * @throws IOException
+   */
+  private static byte[] readBytes(DataInputStream in, int count) throws IOException {
+    byte bytes[] = new byte[Math.min(count, READ_CHUNK)];
+    int done = 0;
+    while(done < count) {
+      if(done == bytes.length) {
+        bytes = Arrays.copyOf(bytes, (int) Math.min(count, 2L*bytes.length));
+      }
+      int n = in.read(bytes, done, bytes.length - done);
+      if(n < 0) {
+        throw new EOFException();
+      }
+      done += n;
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes a number in as few bytes as it fits in, seven bits to a byte
+   * with the top bit set on all but the last. The sign is moved to the
+   * lowest bit first, so small negative numbers are short as well.
+   * @param out
+   * @param at the index in out to write the first byte at
+   * @param value
+   * @return the index after the last byte
+   */
+  private static int writeVarInt(byte out[], int at, int value) {
+    int v = (value << 1) ^ (value >> 31);
+    while((v & ~0x7F) != 0) {
+      out[at++] = (byte)((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out[at++] = (byte) v;
+    return at;
+  }
+
+  /**
+   * Reads a number written by writeVarInt.
+   * @param in
+   * @param at the index of the next byte in in, moved past the number
+   * @return
+   * @throws InvalidObjectException
+   */
+  static int readVarInt(byte in[], int at[]) throws InvalidObjectException {
+    int v = 0;
+    for(int shift = 0; shift < 35; shift += 7) {
+      if(at[0] >= in.length) {
+        throw new InvalidObjectException("");
+      }
+      int b = in[at[0]++];
+      v |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) {
+        return (v >>> 1) ^ -(v & 1);
+      }
+    }
+    throw new InvalidObjectException("");
+  }
+}
@@ -0,0 +1,285 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The frames stored from a simulation, in order of frame number. Each
+ * change to the store makes a new Snapshot, which never changes after
+ * that, so a thread that is rendering takes the current snapshot and
+ * looks frames up in it without locking, while the simulation adds more.
+ * <p>
+ * A snapshot finds a frame by its number in an index with one entry per
+ * frame number, so a look up takes the same time however many frames
+ * there are. Adding a frame after the last one writes past the end of
+ * the arrays the current snapshot uses, which it never reads, so only
+ * replacing or dropping frames needs the arrays to be copied.
+ * <p>
+ * Only one thread at a time changes the store.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class FrameStore {
+  private static final Snapshot EMPTY = new Snapshot(new SimFrame[0], 0, 0, new int[0], 0);
+
+  private final AtomicReference<Snapshot> current;
+
+  /**
+   * Constructor
+   */
+  public FrameStore() {
+    current = new AtomicReference<Snapshot>(EMPTY);
+  }
+
+  /**
+   * Get the frames as they are now.
+   * @return
+   */
+  public Snapshot getSnapshot() {
+    return current.get();
+  }
+
+  /**
+   * Adds a frame, in place of the one with the same frame number if there
+   * is one.
+   * @param frame
+   */
+  public synchronized void put(SimFrame frame) {
+    Snapshot s = current.get();
+    if(s.size > 0 && frame.frameNumber > s.last().frameNumber) {
+      current.set(s.append(frame));
+      return;
+    }
+    List<SimFrame> frames = s.toList();
+    int i = s.ceilingIndex(frame.frameNumber);
+    if(i < 0) {
+      frames.add(frame);
+    }
+    else if(frames.get(i).frameNumber == frame.frameNumber) {
+      frames.set(i, frame);
+    }
+    else {
+      frames.add(i, frame);
+    }
+    current.set(Snapshot.of(frames));
+  }
+
+  /**
+   * Drops every frame after the first one numbered frameNumber or more.
+   * @param frameNumber
+   */
+  public synchronized void truncateAfter(int frameNumber) {
+    Snapshot s = current.get();
+    int i = s.ceilingIndex(frameNumber);
+    if(i >= 0 && i+1 < s.size) {
+      current.set(Snapshot.of(s.toList().subList(0, i+1)));
+    }
+  }
+
+  /**
+   * Puts frames in place of every frame in the store. If two have the same
+   * frame number the later one is kept.
+   * @param frames
+   */
+  public synchronized void setFrames(List<SimFrame> frames) {
+    // the sort is stable, so of frames with the same number the later stays later
+    ArrayList<SimFrame> sorted = new ArrayList<SimFrame>(frames);
+    Collections.sort(sorted, new Comparator<SimFrame>() {
+      @Override
+      public int compare(SimFrame a, SimFrame b) {
+        return Integer.compare(a.frameNumber, b.frameNumber);
+      }
+    });
+    for(int i = sorted.size()-2; i >= 0; i--) {
+      if(sorted.get(i).frameNumber == sorted.get(i+1).frameNumber) {
+        sorted.remove(i);
+      }
+    }
+    current.set(Snapshot.of(sorted));
+  }
+
+  /**
+   * Drops every frame.
+   */
+  public synchronized void clear() {
+    current.set(EMPTY);
+  }
+
+  /**
+   * The frames of the store at one moment.
+   */
+  public static final class Snapshot {
+    private final SimFrame frames[]; // may be longer than size
+    private final int size;
+    private final int firstNumber; // frame number of frames[0]
+    private final int index[]; // entry k is the first frame numbered firstNumber+k or more
+    private final int span; // entries of index in use
+
+    private Snapshot(SimFrame frames[], int size, int firstNumber, int index[], int span) {
+      this.frames = frames;
+      this.size = size;
+      this.firstNumber = firstNumber;
+      this.index = index;
+      this.span = span;
+    }
+
+    /**
+     * Makes a snapshot with arrays of its own.
+     * @param sorted frames in order of frame number, no two the same
+     * @return
+     */
+    private static Snapshot of(List<SimFrame> sorted) {
+      if(sorted.isEmpty()) {
+        return EMPTY;
+      }
+      int firstNumber = sorted.get(0).frameNumber;
+      int span = sorted.get(sorted.size()-1).frameNumber - firstNumber + 1;
+      SimFrame frames[] = sorted.toArray(new SimFrame[Math.max(16, sorted.size()*2)]);
+      int index[] = new int[Math.max(16, span*2)];
+      int k = 0;
+      for(int i = 0; i < sorted.size(); i++) {
+        for(; k <= sorted.get(i).frameNumber - firstNumber; k++) {
+          index[k] = i;
+        }
+      }
+      return new Snapshot(frames, sorted.size(), firstNumber, index, span);
+    }
+
+    /**
+     * Makes a snapshot with frame added after the last one. The arrays are
+     * shared when there is room in them, since this snapshot never reads
+     * past size or span.
+     * @param frame numbered after the last frame
+     * @return
+     */
+    private Snapshot append(SimFrame frame) {
+      int newSpan = frame.frameNumber - firstNumber + 1;
+      SimFrame newFrames[] = frames;
+      if(size >= frames.length) {
+        newFrames = Arrays.copyOf(frames, frames.length*2);
+      }
+      int newIndex[] = index;
+      if(newSpan > index.length) {
+        newIndex = Arrays.copyOf(index, Math.max(newSpan, index.length*2));
+      }
+      newFrames[size] = frame;
+      for(int k = span; k < newSpan; k++) {
+        newIndex[k] = size;
+      }
+      return new Snapshot(newFrames, size+1, firstNumber, newIndex, newSpan);
+    }
+
+    /**
+     * Get the number of frames.
+     * @return
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Returns true if there are no frames.
+     * @return
+     */
+    public boolean isEmpty() {
+      return size == 0;
+    }
+
+    /**
+     * Get the frame at position i.
+     * @param i
+     * @return
+     */
+    public SimFrame get(int i) {
+      if(i < 0 || i >= size) {
+        throw new IndexOutOfBoundsException("frame " + i);
+      }
+      return frames[i];
+    }
+
+    /**
+     * Get the frame with the lowest number, or null if there are none.
+     * @return
+     */
+    public SimFrame first() {
+      return size == 0 ? null : frames[0];
+    }
+
+    /**
+     * Get the frame with the highest number, or null if there are none.
+     * @return
+     */
+    public SimFrame last() {
+      return size == 0 ? null : frames[size-1];
+    }
+
+    /**
+     * Get the first frame numbered frameNumber or more, or null if there
+     * is none.
+     * @param frameNumber
+     * @return
+     */
+    public SimFrame ceiling(int frameNumber) {
+      int i = ceilingIndex(frameNumber);
+      return i < 0 ? null : frames[i];
+    }
+
+    /**
+     * Get the last frame numbered less than frameNumber, or null if there
+     * is none.
+     * @param frameNumber
+     * @return
+     */
+    public SimFrame lower(int frameNumber) {
+      int i = ceilingIndex(frameNumber);
+      if(i < 0) {
+        i = size;
+      }
+      return i == 0 ? null : frames[i-1];
+    }
+
+    /**
+     * Get the position of the first frame numbered frameNumber or more, or
+     * -1 if there is none.
+     * @param frameNumber
+     * @return
+     */
+    private int ceilingIndex(int frameNumber) {
+      long k = (long) frameNumber - firstNumber;
+      if(size == 0 || k >= span) {
+        return -1;
+      }
+      return k < 0 ? 0 : index[(int) k];
+    }
+
+    /**
+     * Get a new list of the frames.
+     * @return
+     */
+    public List<SimFrame> toList() {
+      return new ArrayList<SimFrame>(Arrays.asList(frames).subList(0, size));
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import artofillusion.math.Vec3;
+
+/**
+ * Tests between lines, points, segments and triangles that are used in
+ * the innermost loops of collision detection. None of them make any
+ * objects. Points are passed as separate numbers, and triangles and
+ * segments as offsets into an array that holds x, y and z of each corner
+ * one after another, so the same method works on the faces of a mesh,
+ * on the positions of a cloth or on a small array the caller fills in.
+ * Results other than the return value are written into arrays the caller
+ * passes in.
+ * <p>
+ * The Place On plugin keeps its own copy of lineCrossesTriangle, so the
+ * two plugins give the same answers. A change to it belongs in both.
+ *
+ * @author Timothy Fish
+ *
+ */
+public final class Geometry {
+  private static final double EPSILON = 1e-12;
+
+  private Geometry() {
+  }
+
+  /**
+   * Finds where the line through p along d passes through the triangle
+   * with corners at offsets a, b and c of v, using the Moller-Trumbore
+   * test. The edges count as part of the triangle.
+   * @param px
+   * @param py
+   * @param pz
+   * @param dx
+   * @param dy
+   * @param dz
+   * @param v
+   * @param a
+   * @param b
+   * @param c
+   * @return how many lengths of d from p the hit is, negative if it is
+   * behind p, or Double.NaN if the line misses
+   */
+  public static double findLineHit(double px, double py, double pz, double dx, double dy, double dz,
+      double v[], int a, int b, int c) {
+    double e1x = v[b] - v[a], e1y = v[b+1] - v[a+1], e1z = v[b+2] - v[a+2];
+    double e2x = v[c] - v[a], e2y = v[c+1] - v[a+1], e2z = v[c+2] - v[a+2];
+    // d x e2
+    double hx = dy*e2z - dz*e2y;
+    double hy = dz*e2x - dx*e2z;
+    double hz = dx*e2y - dy*e2x;
+    double det = e1x*hx + e1y*hy + e1z*hz;
+    if(det == 0.0) {
+      return Double.NaN; // line parallel to the triangle
+    }
+    double inv = 1.0/det;
+    double sx = px - v[a], sy = py - v[a+1], sz = pz - v[a+2];
+    double u = (sx*hx + sy*hy + sz*hz)*inv;
+    if(u < 0.0 || u > 1.0) {
+      return Double.NaN;
+    }
+    // s x e1
+    double qx = sy*e1z - sz*e1y;
+    double qy = sz*e1x - sx*e1z;
+    double qz = sx*e1y - sy*e1x;
+    double w = (dx*qx + dy*qy + dz*qz)*inv;
+    if(w < 0.0 || u + w > 1.0) {
+      return Double.NaN;
+    }
+    return (e2x*qx + e2y*qy + e2z*qz)*inv;
+  }
+
+  /**
+   * Returns true if the line through p along d passes through the
+   * triangle a, b, c. The line is looked along both ways, and the edges
+   * count as part of the triangle. The test only looks at which side of
+   * each edge the line passes, so the triangle does not need a normal.
+   * @param p
+   * @param d
+   * @param a
+   * @param b
+   * @param c
+   * @return
+   */
+  public static boolean lineCrossesTriangle(Vec3 p, Vec3 d, Vec3 a, Vec3 b, Vec3 c) {
+    double ax = a.x - p.x, ay = a.y - p.y, az = a.z - p.z;
+    double bx = b.x - p.x, by = b.y - p.y, bz = b.z - p.z;
+    double cx = c.x - p.x, cy = c.y - p.y, cz = c.z - p.z;
+    // d.(b x c), d.(c x a) and d.(a x b) are the barycentric weights of
+    // the crossing, scaled by the same amount
+    double u = d.x*(by*cz - bz*cy) + d.y*(bz*cx - bx*cz) + d.z*(bx*cy - by*cx);
+    double v = d.x*(cy*az - cz*ay) + d.y*(cz*ax - cx*az) + d.z*(cx*ay - cy*ax);
+    double w = d.x*(ay*bz - az*by) + d.y*(az*bx - ax*bz) + d.z*(ax*by - ay*bx);
+    return (u >= 0.0 && v >= 0.0 && w >= 0.0) || (u <= 0.0 && v <= 0.0 && w <= 0.0);
+  }
+
+  /**
+   * Finds the point on the triangle with corners at offsets a, b and c of
+   * v that is closest to p.
+   * @param px
+   * @param py
+   * @param pz
+   * @param v
+   * @param a
+   * @param b
+   * @param c
+   * @param q set to the closest point, unless it is null
+   * @return the square of the distance from p to the closest point
+   */
+  public static double findClosestPoint(double px, double py, double pz, double v[], int a, int b, int c, double q[]) {
+    double abx = v[b] - v[a], aby = v[b+1] - v[a+1], abz = v[b+2] - v[a+2];
+    double acx = v[c] - v[a], acy = v[c+1] - v[a+1], acz = v[c+2] - v[a+2];
+    double apx = px - v[a], apy = py - v[a+1], apz = pz - v[a+2];
+    double d1 = abx*apx + aby*apy + abz*apz;
+    double d2 = acx*apx + acy*apy + acz*apz;
+    double bpx = px - v[b], bpy = py - v[b+1], bpz = pz - v[b+2];
+    double d3 = abx*bpx + aby*bpy + abz*bpz;
+    double d4 = acx*bpx + acy*bpy + acz*bpz;
+    double cpx = px - v[c], cpy = py - v[c+1], cpz = pz - v[c+2];
+    double d5 = abx*cpx + aby*cpy + abz*cpz;
+    double d6 = acx*cpx + acy*cpy + acz*cpz;
+
+    // Weights of the closest point along ab and ac
+    double s, t;
+    if(d1 <= 0.0 && d2 <= 0.0) {
+      s = 0.0; t = 0.0;
+    }
+    else if(d3 >= 0.0 && d4 <= d3) {
+      s = 1.0; t = 0.0;
+    }
+    else if(d6 >= 0.0 && d5 <= d6) {
+      s = 0.0; t = 1.0;
+    }
+    else {
+      double vc = d1*d4 - d3*d2;
+      double vb = d5*d2 - d1*d6;
+      double va = d3*d6 - d5*d4;
+      if(vc <= 0.0 && d1 >= 0.0 && d3 <= 0.0) {
+        s = d1/(d1 - d3); t = 0.0;
+      }
+      else if(vb <= 0.0 && d2 >= 0.0 && d6 <= 0.0) {
+        s = 0.0; t = d2/(d2 - d6);
+      }
+      else if(va <= 0.0 && d4 - d3 >= 0.0 && d5 - d6 >= 0.0) {
+        t = (d4 - d3)/((d4 - d3) + (d5 - d6));
+        s = 1.0 - t;
+      }
+      else {
+        double denom = va + vb + vc;
+        if(Math.abs(denom) < EPSILON) {
+          return Double.MAX_VALUE; // the triangle has no area
+        }
+        s = vb/denom;
+        t = vc/denom;
+      }
+    }
+    double qx = v[a] + abx*s + acx*t;
+    double qy = v[a+1] + aby*s + acy*t;
+    double qz = v[a+2] + abz*s + acz*t;
+    if(q != null) {
+      q[0] = qx;
+      q[1] = qy;
+      q[2] = qz;
+    }
+    double dx = px - qx, dy = py - qy, dz = pz - qz;
+    return dx*dx + dy*dy + dz*dz;
+  }
+
+  /**
+   * Finds the closest points of the segment from offset p0 to p1 of v and
+   * the segment from q0 to q1.
+   * @param v
+   * @param p0
+   * @param p1
+   * @param q0
+   * @param q1
+   * @param st set to how far along each segment the closest points are,
+   * from 0 to 1, unless it is null
+   * @return the square of the distance between the closest points
+   */
+  public static double findClosestSegmentPoints(double v[], int p0, int p1, int q0, int q1, double st[]) {
+    double d1x = v[p1] - v[p0], d1y = v[p1+1] - v[p0+1], d1z = v[p1+2] - v[p0+2];
+    double d2x = v[q1] - v[q0], d2y = v[q1+1] - v[q0+1], d2z = v[q1+2] - v[q0+2];
+    double rx = v[p0] - v[q0], ry = v[p0+1] - v[q0+1], rz = v[p0+2] - v[q0+2];
+    double a = d1x*d1x + d1y*d1y + d1z*d1z;
+    double e = d2x*d2x + d2y*d2y + d2z*d2z;
+    double f = d2x*rx + d2y*ry + d2z*rz;
+    double s, t;
+    if(a <= EPSILON && e <= EPSILON) {
+      s = t = 0.0;
+    }
+    else if(a <= EPSILON) {
+      s = 0.0;
+      t = clamp01(f/e);
+    }
+    else {
+      double c = d1x*rx + d1y*ry + d1z*rz;
+      if(e <= EPSILON) {
+        t = 0.0;
+        s = clamp01(-c/a);
+      }
+      else {
+        double b = d1x*d2x + d1y*d2y + d1z*d2z;
+        double denom = a*e - b*b;
+        s = denom > EPSILON ? clamp01((b*f - c*e)/denom) : 0.0;
+        t = (b*s + f)/e;
+        if(t < 0.0) {
+          t = 0.0;
+          s = clamp01(-c/a);
+        }
+        else if(t > 1.0) {
+          t = 1.0;
+          s = clamp01((b - c)/a);
+        }
+      }
+    }
+    if(st != null) {
+      st[0] = s;
+      st[1] = t;
+    }
+    double dx = rx + d1x*s - d2x*t;
+    double dy = ry + d1y*s - d2y*t;
+    double dz = rz + d1z*s - d2z*t;
+    return dx*dx + dy*dy + dz*dz;
+  }
+
+  /**
+   * Empties the box at offset o of box, which holds min x, y, z then
+   * max x, y, z.
+   * @param box
+   * @param o
+   */
+  public static void startBox(double box[], int o) {
+    for(int k = 0; k < 3; k++) {
+      box[o+k] = Double.MAX_VALUE;
+      box[o+k+3] = -Double.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Grows the box at offset o of box to hold the triangle with corners at
+   * offsets a, b and c of v.
+   * @param box
+   * @param o
+   * @param v
+   * @param a
+   * @param b
+   * @param c
+   */
+  public static void addTriangle(double box[], int o, double v[], int a, int b, int c) {
+    for(int k = 0; k < 3; k++) {
+      box[o+k] = Math.min(box[o+k], Math.min(v[a+k], Math.min(v[b+k], v[c+k])));
+      box[o+k+3] = Math.max(box[o+k+3], Math.max(v[a+k], Math.max(v[b+k], v[c+k])));
+    }
+  }
+
+  /**
+   * Get v dropped to within [0, 1].
+   * @param v
+   * @return
+   */
+  private static double clamp01(double v) {
+    return v < 0.0 ? 0.0 : (v > 1.0 ? 1.0 : v);
+  }
+}
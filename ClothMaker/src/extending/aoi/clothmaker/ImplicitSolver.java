@@ -0,0 +1,442 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Moves a ClothState one step forward with backward Euler. Instead of
+ * using the forces at the start of the step, the change in velocity dv
+ * is found from the forces at the end of the step, which means solving
+ * <pre>
+ *   (M - h*dF/dv - h*h*dF/dx) dv = h*(F + h*dF/dx*v)
+ * </pre>
+ * The step stays stable for stiff springs and large time steps, so the
+ * cloth no longer needs many sub frames or a limit on how far a vertex
+ * may move.
+ * <p>
+ * Each spring adds a 3x3 block to the matrix that is kept in the form
+ * alpha*n*n' + beta*I, where n is the direction of the spring. The system
+ * is solved by conjugate gradients, preconditioned with the inverse of the
+ * 3x3 block on the diagonal of each vertex. Pinned vertices, and vertices
+ * without springs, are held in place by leaving them out of the solve.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ImplicitSolver {
+  // Most conjugate gradient iterations taken in one step
+  static final int MAX_ITERATIONS = 200;
+  // The solve stops when the residual has shrunk by this much
+  static final double TOLERANCE = 1.0e-6;
+
+  private final ClothState cur;
+  private final ForkJoinPool pool;
+  private final double h; // time step
+  private final double k; // spring constant
+  private final double c; // damping constant
+  private final int vertexCount;
+  private final boolean fixed[]; // vertices left out of the solve
+  private final double v0[]; // velocity at the start of the step
+  private final double springDir[]; // unit direction of each spring, three values per spring
+  private final double springAlpha[]; // weight of n*n' in the block of each spring
+  private final double springBeta[]; // weight of I in the block of each spring
+  private final double diagInverse[]; // inverse of the diagonal block of each vertex, six values per vertex
+  private final double rhs[];
+  private final double dv[];
+  private final double r[];
+  private final double z[];
+  private final double p[];
+  private final double q[];
+  private int iterations;
+
+  /**
+   * Constructor
+   * @param cur
+   * @param h
+   * @param springConstant
+   * @param dampingConstant
+   * @param pool
+   */
+  public ImplicitSolver(ClothState cur, double h, double springConstant, double dampingConstant, ForkJoinPool pool) {
+    this.cur = cur;
+    this.h = h;
+    this.k = springConstant;
+    this.c = dampingConstant;
+    this.pool = pool;
+    vertexCount = cur.getVertexCount();
+    int springCount = cur.getTopology().getSpringCount();
+    fixed = new boolean[vertexCount];
+    v0 = new double[vertexCount*3];
+    springDir = new double[springCount*3];
+    springAlpha = new double[springCount];
+    springBeta = new double[springCount];
+    diagInverse = new double[vertexCount*6];
+    rhs = new double[vertexCount*3];
+    dv = new double[vertexCount*3];
+    r = new double[vertexCount*3];
+    z = new double[vertexCount*3];
+    p = new double[vertexCount*3];
+    q = new double[vertexCount*3];
+  }
+
+  /**
+   * Get the number of conjugate gradient iterations the last step took.
+   * @return
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Moves the cloth from cur into next.
+   * @param force the gravity and wind on each vertex, three values per vertex
+   * @param next
+   */
+  public void step(final double force[], final ClothState next) {
+    ParallelLoop.run(pool, 0, vertexCount, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        startStep(force, first, last);
+      }
+    });
+
+    ClothTopology topology = cur.getTopology();
+    int colorStart[] = topology.getColorStart();
+    ParallelLoop.Body springs = new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        addSprings(first, last);
+      }
+    };
+    for(int color = 0; color < topology.getColorCount(); color++) {
+      ParallelLoop.run(pool, colorStart[color], colorStart[color+1], springs);
+    }
+
+    ParallelLoop.run(pool, 0, vertexCount, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        invertDiagonal(first, last);
+      }
+    });
+
+    solve();
+
+    ParallelLoop.run(pool, 0, vertexCount, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        finishStep(next, first, last);
+      }
+    });
+  }
+
+  /**
+   * Finds the fixed vertices, the starting velocities and the external
+   * part of the right hand side.
+   * @param force
+   * @param first
+   * @param last
+   */
+  private void startStep(double force[], int first, int last) {
+    int adjStart[] = cur.getTopology().getAdjacencyStart();
+    boolean pinned[] = cur.getPinned();
+    double V[] = cur.getVelocities();
+
+    for(int pt = first; pt < last; pt++) {
+      fixed[pt] = pinned[pt] || adjStart[pt] == adjStart[pt+1];
+      for(int i = pt*3; i < pt*3+3; i++) {
+        v0[i] = fixed[pt] ? 0.0 : V[i];
+        rhs[i] = fixed[pt] ? 0.0 : h*force[i];
+      }
+    }
+  }
+
+  /**
+   * Builds the blocks of the springs at positions first up to, but not
+   * including, last of the colored spring list and adds their forces to
+   * the right hand side. The springs of one color share no vertex, so
+   * the scatter into rhs is safe within a color.
+   * @param first
+   * @param last
+   */
+  private void addSprings(int first, int last) {
+    ClothTopology topology = cur.getTopology();
+    int coloredSprings[] = topology.getColoredSprings();
+    int springA[] = topology.getSpringA();
+    int springB[] = topology.getSpringB();
+    double restLength[] = topology.getRestLengths();
+    double P[] = cur.getPositions();
+
+    for(int n = first; n < last; n++) {
+      int s = coloredSprings[n];
+      int a = springA[s];
+      int b = springB[s];
+      int ia = a*3;
+      int ib = b*3;
+      double dx = P[ib] - P[ia];
+      double dy = P[ib+1] - P[ia+1];
+      double dz = P[ib+2] - P[ia+2];
+      double x = Math.sqrt(dx*dx + dy*dy + dz*dz);
+      if(x == 0.0) {
+        springAlpha[s] = springBeta[s] = 0.0;
+        springDir[s*3] = springDir[s*3+1] = springDir[s*3+2] = 0.0;
+        continue;
+      }
+      double nx = dx/x;
+      double ny = dy/x;
+      double nz = dz/x;
+      springDir[s*3] = nx;
+      springDir[s*3+1] = ny;
+      springDir[s*3+2] = nz;
+
+      // dF/dx of the spring is k*(n*n' + ratio*(I - n*n')). A compressed
+      // spring would make ratio negative and the matrix indefinite, so
+      // the sideways part is dropped while it is compressed.
+      double ratio = Math.max(0.0, 1.0 - restLength[s]/x);
+      springAlpha[s] = h*h*k*(1.0 - ratio) + h*c;
+      springBeta[s] = h*h*k*ratio;
+
+      // Relative velocity of b seen from a
+      double ux = v0[ib] - v0[ia];
+      double uy = v0[ib+1] - v0[ia+1];
+      double uz = v0[ib+2] - v0[ia+2];
+      double un = ux*nx + uy*ny + uz*nz;
+
+      // Spring and damping force on a, plus h*dF/dx*v
+      double f = k*(x - restLength[s]) + c*un;
+      double jn = k*(1.0 - ratio)*un;
+      double jr = k*ratio;
+      double fx = h*(f*nx + h*(jn*nx + jr*ux));
+      double fy = h*(f*ny + h*(jn*ny + jr*uy));
+      double fz = h*(f*nz + h*(jn*nz + jr*uz));
+      if(!fixed[a]) {
+        rhs[ia] += fx;
+        rhs[ia+1] += fy;
+        rhs[ia+2] += fz;
+      }
+      if(!fixed[b]) {
+        rhs[ib] -= fx;
+        rhs[ib+1] -= fy;
+        rhs[ib+2] -= fz;
+      }
+    }
+  }
+
+  /**
+   * Adds up the diagonal block of each vertex from first up to, but not
+   * including, last and stores its inverse for the preconditioner.
+   * @param first
+   * @param last
+   */
+  private void invertDiagonal(int first, int last) {
+    ClothTopology topology = cur.getTopology();
+    int adjStart[] = topology.getAdjacencyStart();
+    int adjSpring[] = topology.getAdjacentSprings();
+    double W[] = cur.getMasses();
+
+    for(int pt = first; pt < last; pt++) {
+      int i = pt*6;
+      if(fixed[pt]) {
+        for(int j = 0; j < 6; j++) {
+          diagInverse[i+j] = 0.0;
+        }
+        continue;
+      }
+      double xx = W[pt], xy = 0.0, xz = 0.0, yy = W[pt], yz = 0.0, zz = W[pt];
+      for(int j = adjStart[pt]; j < adjStart[pt+1]; j++) {
+        int s = adjSpring[j];
+        double alpha = springAlpha[s];
+        double beta = springBeta[s];
+        double nx = springDir[s*3];
+        double ny = springDir[s*3+1];
+        double nz = springDir[s*3+2];
+        xx += alpha*nx*nx + beta;
+        xy += alpha*nx*ny;
+        xz += alpha*nx*nz;
+        yy += alpha*ny*ny + beta;
+        yz += alpha*ny*nz;
+        zz += alpha*nz*nz + beta;
+      }
+
+      // Inverse of a symmetric 3x3 matrix from its cofactors
+      double cxx = yy*zz - yz*yz;
+      double cxy = xz*yz - xy*zz;
+      double cxz = xy*yz - xz*yy;
+      double det = xx*cxx + xy*cxy + xz*cxz;
+      diagInverse[i] = cxx/det;
+      diagInverse[i+1] = cxy/det;
+      diagInverse[i+2] = cxz/det;
+      diagInverse[i+3] = (xx*zz - xz*xz)/det;
+      diagInverse[i+4] = (xy*xz - xx*yz)/det;
+      diagInverse[i+5] = (xx*yy - xy*xy)/det;
+    }
+  }
+
+  /**
+   * Solves for dv with preconditioned conjugate gradients.
+   */
+  private void solve() {
+    ParallelLoop.run(pool, 0, vertexCount, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        for(int i = first*3; i < last*3; i++) {
+          dv[i] = 0.0;
+          r[i] = rhs[i];
+        }
+        precondition(first, last);
+        for(int i = first*3; i < last*3; i++) {
+          p[i] = z[i];
+        }
+      }
+    });
+
+    double rhsNorm = dot(rhs, rhs);
+    double rz = dot(r, z);
+    iterations = 0;
+    if(rhsNorm == 0.0) {
+      return;
+    }
+
+    while(iterations < MAX_ITERATIONS && dot(r, r) > TOLERANCE*TOLERANCE*rhsNorm) {
+      ParallelLoop.run(pool, 0, vertexCount, new ParallelLoop.Body() {
+        public void run(int first, int last) {
+          multiply(p, q, first, last);
+        }
+      });
+      double pq = dot(p, q);
+      if(pq <= 0.0) {
+        break;
+      }
+      final double alpha = rz/pq;
+      ParallelLoop.run(pool, 0, vertexCount, new ParallelLoop.Body() {
+        public void run(int first, int last) {
+          for(int i = first*3; i < last*3; i++) {
+            dv[i] += alpha*p[i];
+            r[i] -= alpha*q[i];
+          }
+          precondition(first, last);
+        }
+      });
+      double rzNext = dot(r, z);
+      final double beta = rzNext/rz;
+      rz = rzNext;
+      ParallelLoop.run(pool, 0, vertexCount, new ParallelLoop.Body() {
+        public void run(int first, int last) {
+          for(int i = first*3; i < last*3; i++) {
+            p[i] = z[i] + beta*p[i];
+          }
+        }
+      });
+      iterations++;
+    }
+  }
+
+  /**
+   * Sets z to the preconditioned r for the vertices from first up to,
+   * but not including, last.
+   * @param first
+   * @param last
+   */
+  private void precondition(int first, int last) {
+    for(int pt = first; pt < last; pt++) {
+      int i = pt*3;
+      int j = pt*6;
+      z[i] = diagInverse[j]*r[i] + diagInverse[j+1]*r[i+1] + diagInverse[j+2]*r[i+2];
+      z[i+1] = diagInverse[j+1]*r[i] + diagInverse[j+3]*r[i+1] + diagInverse[j+4]*r[i+2];
+      z[i+2] = diagInverse[j+2]*r[i] + diagInverse[j+4]*r[i+1] + diagInverse[j+5]*r[i+2];
+    }
+  }
+
+  /**
+   * Sets y to the matrix times x for the vertices from first up to, but
+   * not including, last. Each vertex gathers from its own springs, so
+   * ranges can be done at the same time.
+   * @param x
+   * @param y
+   * @param first
+   * @param last
+   */
+  private void multiply(double x[], double y[], int first, int last) {
+    ClothTopology topology = cur.getTopology();
+    int adjStart[] = topology.getAdjacencyStart();
+    int adjVertex[] = topology.getAdjacentVertices();
+    int adjSpring[] = topology.getAdjacentSprings();
+    double W[] = cur.getMasses();
+
+    for(int pt = first; pt < last; pt++) {
+      int i = pt*3;
+      if(fixed[pt]) {
+        y[i] = y[i+1] = y[i+2] = 0.0;
+        continue;
+      }
+      double yx = W[pt]*x[i];
+      double yy = W[pt]*x[i+1];
+      double yz = W[pt]*x[i+2];
+      for(int j = adjStart[pt]; j < adjStart[pt+1]; j++) {
+        int s = adjSpring[j];
+        int o = adjVertex[j]*3;
+        // x of a fixed vertex is always zero
+        double ex = x[i] - x[o];
+        double ey = x[i+1] - x[o+1];
+        double ez = x[i+2] - x[o+2];
+        double nx = springDir[s*3];
+        double ny = springDir[s*3+1];
+        double nz = springDir[s*3+2];
+        double an = springAlpha[s]*(ex*nx + ey*ny + ez*nz);
+        double beta = springBeta[s];
+        yx += an*nx + beta*ex;
+        yy += an*ny + beta*ey;
+        yz += an*nz + beta*ez;
+      }
+      y[i] = yx;
+      y[i+1] = yy;
+      y[i+2] = yz;
+    }
+  }
+
+  /**
+   * Get the dot product of two vectors of three values per vertex.
+   * @param x
+   * @param y
+   * @return
+   */
+  private double dot(final double x[], final double y[]) {
+    return ParallelLoop.sum(pool, 0, vertexCount, new ParallelLoop.Sum() {
+      public double run(int first, int last) {
+        double sum = 0.0;
+        for(int i = first*3; i < last*3; i++) {
+          sum += x[i]*y[i];
+        }
+        return sum;
+      }
+    });
+  }
+
+  /**
+   * Writes the new velocity and position of the vertices from first up
+   * to, but not including, last into next.
+   * @param next
+   * @param first
+   * @param last
+   */
+  private void finishStep(ClothState next, int first, int last) {
+    double P[] = cur.getPositions();
+    double newP[] = next.getPositions();
+    double newV[] = next.getVelocities();
+
+    for(int i = first*3; i < last*3; i++) {
+      newV[i] = v0[i] + dv[i];
+      newP[i] = P[i] + h*newV[i];
+    }
+  }
+}
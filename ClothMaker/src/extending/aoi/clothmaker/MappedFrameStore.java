@@ -0,0 +1,199 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the vertex positions and velocities of simulated frames in a
+ * scratch file that is mapped into memory, rather than on the heap, so a
+ * long simulation is not limited by the size of the heap. The operating
+ * system pages a frame in when it is read and can drop it again when
+ * memory is short.
+ * <p>
+ * Every frame has a record of the same size: x, y, z of each vertex
+ * followed by the x, y, z of its velocity. Records are numbered in the
+ * order they are first written. A frame has at most two records, and
+ * when it is simulated again the one it had before last is written over,
+ * so a thread that is rendering from the last snapshot can still read the
+ * record that snapshot holds, and the file does not grow with each run
+ * over the same frames.
+ * <p>
+ * The file is mapped in regions of several records, kept in order of
+ * record number, and a region is only mapped the first time a record in
+ * it is written. The regions are a copy on write array, so reading a
+ * record takes no lock. Only one thread writes at a time.
+ * <p>
+ * The file is deleted when the store is closed. The regions that are
+ * mapped stay good until the store is no longer used, so frames that were
+ * written to it can still be read. If the file can't be deleted while it
+ * is mapped, it is deleted when the program exits.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class MappedFrameStore {
+  // Most records mapped as one region
+  static final int FRAMES_PER_REGION = 64;
+
+  private final File file;
+  private final int vertexCount;
+  private final int recordSize; // doubles in a record
+  private final int framesPerRegion;
+  private volatile MappedByteBuffer regions[]; // region r holds records r*framesPerRegion on
+  private volatile int records; // records written so far
+  private final Map<Integer, int[]> frameRecords; // latest and older record of each frame, -1 if none
+  private boolean closed;
+
+  /**
+   * Constructor
+   * Makes a new scratch file for the frames.
+   * @param directory where the file is made, or null for the default temporary directory
+   * @param vertexCount the number of vertices in each frame
+   * @throws IOException
+   */
+  public MappedFrameStore(File directory, int vertexCount) throws IOException {
+    this.vertexCount = vertexCount;
+    recordSize = Math.max(1, vertexCount*6);
+    framesPerRegion = (int) Math.max(1, Math.min(FRAMES_PER_REGION, Integer.MAX_VALUE/(recordSize*8L)));
+    regions = new MappedByteBuffer[0];
+    frameRecords = new HashMap<Integer, int[]>();
+    file = File.createTempFile("clothframes", ".tmp", directory);
+    file.deleteOnExit();
+  }
+
+  /**
+   * Get the number of vertices in each frame.
+   * @return
+   */
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  /**
+   * Writes a frame, over the record it had before last if it has two,
+   * or to a new record if not.
+   * @param frame
+   * @param positions three values per vertex
+   * @param velocities three values per vertex, or null to leave them out
+   * @return the number of the record
+   * @throws IOException
+   */
+  public synchronized int write(int frame, double positions[], double velocities[]) throws IOException {
+    if(closed) {
+      throw new IOException("store is closed");
+    }
+    int slots[] = frameRecords.get(frame);
+    if(slots == null) {
+      slots = new int[] {-1, -1};
+      frameRecords.put(frame, slots);
+    }
+    int n = slots[1];
+    if(n < 0) {
+      n = records;
+      int r = n/framesPerRegion;
+      if(r >= regions.length) {
+        MappedByteBuffer grown[] = Arrays.copyOf(regions, r+1);
+        grown[r] = map(r);
+        regions = grown;
+      }
+      records = n+1;
+    }
+    slots[1] = slots[0];
+    slots[0] = n;
+    DoubleBuffer record = getRecord(n);
+    record.put(positions, 0, vertexCount*3);
+    if(velocities != null) {
+      record.put(velocities, 0, vertexCount*3);
+    }
+    return n;
+  }
+
+  /**
+   * Reads values from a record. The positions start at 0 and the
+   * velocities at three times the vertex count.
+   * @param record the number write returned
+   * @param start the first value to read
+   * @param values filled with the values from start on
+   * @throws IOException
+   */
+  public void read(int record, int start, double values[]) throws IOException {
+    DoubleBuffer view = getRecord(record);
+    view.position(start);
+    view.get(values);
+  }
+
+  /**
+   * Deletes the file. Records already written can still be read, but no
+   * more can be written.
+   */
+  public void close() {
+    synchronized(this) {
+      closed = true;
+    }
+    // the file stays until the program exits if it can't be deleted while mapped
+    file.delete();
+  }
+
+  /**
+   * Get a view of a record, starting at its first value. The view has a
+   * position of its own, so threads reading different records do not get
+   * in each other's way.
+   * @param n
+   * @return
+   * @throws IOException
+   */
+  private DoubleBuffer getRecord(int n) throws IOException {
+    // records is read first, and only grows after its region is in regions
+    if(n < 0 || n >= records) {
+      throw new IOException("record " + n + " was never written");
+    }
+    MappedByteBuffer region = regions[n/framesPerRegion];
+    DoubleBuffer record = region.duplicate().asDoubleBuffer();
+    int first = (n % framesPerRegion)*recordSize;
+    record.position(first);
+    record.limit(first + recordSize);
+    return record.slice();
+  }
+
+  /**
+   * Maps region r of the file. The file only needs to be open while it is
+   * mapped, since the mapping stays good after it is closed.
+   * @param r
+   * @return
+   * @throws IOException
+   */
+  private MappedByteBuffer map(int r) throws IOException {
+    long size = (long) framesPerRegion*recordSize*8;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, r*size, size);
+    }
+    finally {
+      raf.close();
+    }
+  }
+}
@@ -104,7 +104,15 @@ public class Mass {
   public Vector<Spring> getSprings(){
     return springRef;
   }
-  
+
+  /**
+   * Get the index of the vertex this Mass represents.
+   * @return
+   */
+  public int getIndex() {
+    return vertexIndex;
+  }
+
   private Vec3 position;
   private int vertexIndex; // index of this mass in the mesh
   private double vertexMass; 
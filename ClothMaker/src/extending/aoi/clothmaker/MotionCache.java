@@ -0,0 +1,178 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import artofillusion.animation.PositionTrack;
+import artofillusion.animation.RotationTrack;
+import artofillusion.animation.Track;
+import artofillusion.animation.VisibilityTrack;
+import artofillusion.math.CoordinateSystem;
+import artofillusion.math.Vec3;
+import artofillusion.object.ObjectInfo;
+
+/**
+ * Holds where the objects of a scene are, and whether they can be seen,
+ * at the times a simulation asks about. Finding that means copying the
+ * object and applying its position, rotation and visibility tracks,
+ * which is slow when a scene has many animated objects, so it is done
+ * once for each object and time and then looked up. A transform is found by the ObjectInfo itself (not an equal one)
+ * and the time. When the cache is full, the one that was used longest ago
+ * is dropped.
+ * <p>
+ * The tracks are applied to a copy, so the objects in the scene are not
+ * moved. The cache must be cleared when the animation of an object may
+ * have changed.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class MotionCache {
+  private final Map<Key, Entry> transforms;
+  private int maxEntries;
+
+  /**
+   * Constructor
+   * @param maxEntries the most transforms kept at one time
+   */
+  public MotionCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    transforms = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        return size() > MotionCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Makes room for at least entries transforms. A step asks for each
+   * object at more than one time, so a cache smaller than that would drop
+   * transforms before the step was done with them.
+   * @param entries
+   */
+  public synchronized void ensureCapacity(int entries) {
+    maxEntries = Math.max(maxEntries, entries);
+  }
+
+  /**
+   * Get where the origin of an object is at a time.
+   * @param info
+   * @param time
+   * @return
+   */
+  public Vec3 getOrigin(ObjectInfo info, double time) {
+    return new Vec3(getTransform(info, time).coords.getOrigin());
+  }
+
+  /**
+   * Get a copy of the coordinate system of an object at a time.
+   * @param info
+   * @param time
+   * @return
+   */
+  public CoordinateSystem getCoords(ObjectInfo info, double time) {
+    return getTransform(info, time).coords.duplicate();
+  }
+
+  /**
+   * Returns true if an object can be seen at a time.
+   * @param info
+   * @param time
+   * @return
+   */
+  public boolean isVisible(ObjectInfo info, double time) {
+    return getTransform(info, time).visible;
+  }
+
+  /**
+   * Get where an object is at a time, finding it if it is not in the
+   * cache.
+   * @param info
+   * @param time
+   * @return
+   */
+  private synchronized Entry getTransform(ObjectInfo info, double time) {
+    Key key = new Key(info, time);
+    Entry entry = transforms.get(key);
+    if(entry == null) {
+      ObjectInfo copy = info.duplicate();
+      for(Track T : copy.getTracks()) {
+        if((T instanceof PositionTrack) || (T instanceof RotationTrack) || (T instanceof VisibilityTrack)) {
+          T.apply(time);
+        }
+      }
+      entry = new Entry(copy.getCoords().duplicate(), copy.isVisible());
+      transforms.put(key, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Drops every transform.
+   */
+  public synchronized void clear() {
+    transforms.clear();
+  }
+
+  /**
+   * Where an object is at a time and whether it can be seen. The
+   * coordinate system is never changed once it is stored.
+   */
+  private static class Entry {
+    private final CoordinateSystem coords;
+    private final boolean visible;
+
+    Entry(CoordinateSystem coords, boolean visible) {
+      this.coords = coords;
+      this.visible = visible;
+    }
+  }
+
+  /**
+   * What a transform is stored under.
+   */
+  private static class Key {
+    private final ObjectInfo info;
+    private final double time;
+
+    Key(ObjectInfo info, double time) {
+      this.info = info;
+      this.time = time;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return info == other.info && Double.compare(time, other.time) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      long bits = Double.doubleToLongBits(time);
+      return System.identityHashCode(info)*31 + (int)(bits ^ (bits >>> 32));
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop over a range of indices on a ForkJoinPool. The range is
+ * halved until the pieces are small enough and each piece is handed to
+ * the loop body. The body must only write to the part of its data that
+ * belongs to the indices it was given, so the result does not depend on
+ * how the range was divided. Sums are taken over fixed blocks and added
+ * up in order, so they come out the same for any number of threads.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ParallelLoop {
+  // Smallest number of indices worth handing to a separate task
+  static final int MIN_CHUNK_SIZE = 256;
+
+  /**
+   * The work done for a range of indices.
+   */
+  public interface Body {
+    /**
+     * Do the work for the indices from first up to, but not including, last.
+     * @param first
+     * @param last
+     */
+    void run(int first, int last);
+  }
+
+  /**
+   * A sum taken over a range of indices.
+   */
+  public interface Sum {
+    /**
+     * Get the sum for the indices from first up to, but not including, last.
+     * @param first
+     * @param last
+     * @return
+     */
+    double run(int first, int last);
+  }
+
+  /**
+   * Runs body over the indices from first up to, but not including, last.
+   * If pool is null, has a single thread, or the range is too short to
+   * be worth splitting, the body runs once on the calling thread.
+   * @param pool
+   * @param first
+   * @param last
+   * @param body
+   */
+  public static void run(ForkJoinPool pool, int first, int last, Body body) {
+    run(pool, first, last, MIN_CHUNK_SIZE, body);
+  }
+
+  /**
+   * Adds up what body returns over the indices from first up to, but not
+   * including, last. The range is cut into blocks of MIN_CHUNK_SIZE that
+   * do not depend on the pool, the blocks are summed in parallel and the
+   * block sums are then added in order on the calling thread.
+   * @param pool
+   * @param first
+   * @param last
+   * @param body
+   * @return
+   */
+  public static double sum(ForkJoinPool pool, final int first, final int last, final Sum body) {
+    int count = last - first;
+    if(count <= 0) {
+      return 0.0;
+    }
+    final double partial[] = new double[(count + MIN_CHUNK_SIZE - 1)/MIN_CHUNK_SIZE];
+    run(pool, 0, partial.length, 1, new Body() {
+      public void run(int firstBlock, int lastBlock) {
+        for(int b = firstBlock; b < lastBlock; b++) {
+          int start = first + b*MIN_CHUNK_SIZE;
+          partial[b] = body.run(start, Math.min(last, start + MIN_CHUNK_SIZE));
+        }
+      }
+    });
+
+    double total = 0.0;
+    for(int b = 0; b < partial.length; b++) {
+      total += partial[b];
+    }
+    return total;
+  }
+
+  /**
+   * Runs body over the indices from first up to, but not including, last,
+   * never handing a task fewer than minChunkSize indices.
+   * @param pool
+   * @param first
+   * @param last
+   * @param minChunkSize
+   * @param body
+   */
+  private static void run(ForkJoinPool pool, int first, int last, int minChunkSize, Body body) {
+    int count = last - first;
+    if(pool == null || pool.getParallelism() < 2 || count < 2*minChunkSize) {
+      if(count > 0) {
+        body.run(first, last);
+      }
+      return;
+    }
+    int chunkSize = Math.max(minChunkSize, count/(pool.getParallelism()*4));
+    pool.invoke(new Task(body, first, last, chunkSize));
+  }
+
+  /**
+   * Task that splits its range in half until it is no larger than chunkSize.
+   */
+  private static class Task extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Body body;
+    private final int first;
+    private final int last;
+    private final int chunkSize;
+
+    /**
+     * Constructor
+     * @param body
+     * @param first
+     * @param last
+     * @param chunkSize
+     */
+    Task(Body body, int first, int last, int chunkSize) {
+      this.body = body;
+      this.first = first;
+      this.last = last;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void compute() {
+      if(last - first <= chunkSize) {
+        body.run(first, last);
+      }
+      else {
+        int middle = (first + last) >>> 1;
+        invokeAll(new Task(body, first, middle, chunkSize), new Task(body, middle, last, chunkSize));
+      }
+    }
+  }
+}
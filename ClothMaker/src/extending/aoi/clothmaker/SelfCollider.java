@@ -0,0 +1,624 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Keeps a cloth from passing through itself during one step. Every
+ * vertex is assumed to move in a straight line from where it is in cur to
+ * where it is in next. Along that path, each vertex is checked against the
+ * triangles and each edge against the other edges, and the time of impact
+ * is where the four points first lie in one plane while touching
+ * (within thickness). The time is found as the first root of a cubic in
+ * [0, 1].
+ * <p>
+ * The triangles are found with the tree in the ClothSurface. Its boxes
+ * are refit each pass to cover the triangles over the whole step.
+ * <p>
+ * Most of the cloth is never near any other part of it, so before the
+ * tree is walked the vertices are put in a SpatialHash by where they
+ * start the step. Any point of a triangle or edge that a vertex or edge
+ * could touch during the step starts within reach of one of its corners,
+ * where reach is the thickness, plus the longest edge, plus twice the
+ * furthest any vertex moves. A vertex is only checked if a vertex that is
+ * not joined to it by a spring starts within reach, and an edge only if
+ * one of its ends is. Vertices joined by a spring are meant to be close,
+ * and the springs keep them from passing through each other.
+ * <p>
+ * A vertex that takes part in an impact is moved back along its path to
+ * SAFETY times the earliest time of impact it is part of, and its
+ * velocity is cut down by the same amount. Moving vertices back can cause
+ * new impacts, so this is repeated up to MAX_PASSES times. Whatever is
+ * still colliding after that is put back where it started the step,
+ * which is always free of new crossings.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class SelfCollider {
+  // Most times the cloth is checked and moved back in one step
+  static final int MAX_PASSES = 4;
+  // Part of the way to an impact a vertex is allowed to go
+  static final double SAFETY = 0.9;
+  // Time of impact meaning no impact was found
+  private static final double NO_IMPACT = 2.0;
+  // Steps of bisection used to find a root
+  private static final int BISECTIONS = 40;
+  private static final double EPSILON = 1e-12;
+  // Size of the work array each thread passes to findImpact
+  private static final int WORK_SIZE = 40;
+
+  private final ClothSurface surface;
+  private final ClothState cur;
+  private final ClothState next;
+  private final double thickness;
+  private final ForkJoinPool pool;
+  private final double nodeBox[]; // min x, y, z then max x, y, z of each node
+  private final double vertexToi[]; // earliest impact of each vertex with a triangle
+  private final int vertexFace[]; // triangle of that impact
+  private final double edgeToi[]; // earliest impact of each edge with another edge
+  private final int edgeOther[]; // other edge of that impact
+  private final double fraction[]; // how far along its path each vertex may go
+  private final boolean near[]; // true if a vertex not joined to it starts within reach
+
+  /**
+   * Constructor
+   * @param surface
+   * @param cur the cloth at the start of the step
+   * @param next the cloth at the end of the step, moved back where needed
+   * @param thickness
+   * @param pool
+   */
+  public SelfCollider(ClothSurface surface, ClothState cur, ClothState next, double thickness, ForkJoinPool pool) {
+    this.surface = surface;
+    this.cur = cur;
+    this.next = next;
+    this.thickness = thickness;
+    this.pool = pool;
+    nodeBox = new double[surface.getNodeCount()*6];
+    vertexToi = new double[cur.getVertexCount()];
+    vertexFace = new int[cur.getVertexCount()];
+    edgeToi = new double[surface.getEdgeCount()];
+    edgeOther = new int[surface.getEdgeCount()];
+    fraction = new double[cur.getVertexCount()];
+    near = new boolean[cur.getVertexCount()];
+  }
+
+  /**
+   * Finds the impacts and moves the vertices of next back until there
+   * are none left.
+   * @return the number of passes that found impacts
+   */
+  public int resolve() {
+    if(surface.getFaceCount() == 0) {
+      return 0;
+    }
+    findNearVertices();
+    for(int pass = 0; pass < MAX_PASSES; pass++) {
+      findImpacts();
+      if(!respond(pass == MAX_PASSES-1)) {
+        return pass;
+      }
+    }
+    return MAX_PASSES;
+  }
+
+  /**
+   * Marks the vertices that start the step within reach of a vertex
+   * they are not joined to. Vertices are only ever moved back along
+   * their paths, so the reach found from the first pass holds for the
+   * passes after it.
+   */
+  private void findNearVertices() {
+    double P0[] = cur.getPositions();
+    double P1[] = next.getPositions();
+    int edgeVertex[] = surface.getEdgeVertices();
+    double maxMove = 0.0;
+    for(int i = 0; i < P0.length; i += 3) {
+      double dx = P1[i] - P0[i];
+      double dy = P1[i+1] - P0[i+1];
+      double dz = P1[i+2] - P0[i+2];
+      maxMove = Math.max(maxMove, dx*dx + dy*dy + dz*dz);
+    }
+    double maxEdge = 0.0;
+    for(int e = 0; e < edgeVertex.length; e += 2) {
+      int a = edgeVertex[e]*3;
+      int b = edgeVertex[e+1]*3;
+      for(int n = 0; n < 2; n++) {
+        double P[] = n == 0 ? P0 : P1;
+        double dx = P[b] - P[a];
+        double dy = P[b+1] - P[a+1];
+        double dz = P[b+2] - P[a+2];
+        maxEdge = Math.max(maxEdge, dx*dx + dy*dy + dz*dz);
+      }
+    }
+    final double reach = thickness + Math.sqrt(maxEdge) + 2.0*Math.sqrt(maxMove);
+    if(reach <= 0.0) {
+      Arrays.fill(near, false);
+      return;
+    }
+
+    final SpatialHash grid = new SpatialHash(P0, cur.getVertexCount(), reach);
+    final ClothTopology topology = cur.getTopology();
+    ParallelLoop.run(pool, 0, near.length, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        for(int v = first; v < last; v++) {
+          near[v] = grid.hasNeighbor(v, reach, topology);
+        }
+      }
+    });
+  }
+
+  /**
+   * Refits the tree to the current paths and finds the earliest impact
+   * of every vertex and edge.
+   */
+  private void findImpacts() {
+    refit();
+
+    final int stackSize = surface.getDepth()*2 + 2;
+    ParallelLoop.run(pool, 0, cur.getVertexCount(), new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        int stack[] = new int[stackSize];
+        double work[] = new double[WORK_SIZE];
+        for(int v = first; v < last; v++) {
+          findVertexImpact(v, stack, work);
+        }
+      }
+    });
+    ParallelLoop.run(pool, 0, surface.getEdgeCount(), new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        int stack[] = new int[stackSize];
+        double work[] = new double[WORK_SIZE];
+        for(int e = first; e < last; e++) {
+          findEdgeImpact(e, stack, work);
+        }
+      }
+    });
+  }
+
+  /**
+   * Sets the box of every node to cover its triangles from the start to
+   * the end of the step, grown by the thickness.
+   */
+  private void refit() {
+    int nodeLeft[] = surface.getNodeLeft();
+    int nodeRight[] = surface.getNodeRight();
+    int nodeFace[] = surface.getNodeFace();
+    int faceVertex[] = surface.getFaceVertices();
+
+    for(int node = surface.getNodeCount()-1; node >= 0; node--) {
+      int b = node*6;
+      if(nodeFace[node] >= 0) {
+        int f = nodeFace[node]*3;
+        startBox(b);
+        addToBox(b, faceVertex[f]);
+        addToBox(b, faceVertex[f+1]);
+        addToBox(b, faceVertex[f+2]);
+        for(int k = 0; k < 3; k++) {
+          nodeBox[b+k] -= thickness;
+          nodeBox[b+k+3] += thickness;
+        }
+      }
+      else {
+        int l = nodeLeft[node]*6;
+        int r = nodeRight[node]*6;
+        for(int k = 0; k < 3; k++) {
+          nodeBox[b+k] = Math.min(nodeBox[l+k], nodeBox[r+k]);
+          nodeBox[b+k+3] = Math.max(nodeBox[l+k+3], nodeBox[r+k+3]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Empties the box of a node.
+   * @param b
+   */
+  private void startBox(int b) {
+    for(int k = 0; k < 3; k++) {
+      nodeBox[b+k] = Double.MAX_VALUE;
+      nodeBox[b+k+3] = -Double.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Grows the box of a node to hold the path of vertex v.
+   * @param b
+   * @param v
+   */
+  private void addToBox(int b, int v) {
+    double P0[] = cur.getPositions();
+    double P1[] = next.getPositions();
+    for(int k = 0; k < 3; k++) {
+      nodeBox[b+k] = Math.min(nodeBox[b+k], Math.min(P0[v*3+k], P1[v*3+k]));
+      nodeBox[b+k+3] = Math.max(nodeBox[b+k+3], Math.max(P0[v*3+k], P1[v*3+k]));
+    }
+  }
+
+  /**
+   * Returns true if the box given by min and max overlaps the box of a node.
+   * @param min
+   * @param max
+   * @param node
+   * @return
+   */
+  private boolean overlaps(double min[], double max[], int node) {
+    int b = node*6;
+    return min[0] <= nodeBox[b+3] && max[0] >= nodeBox[b] &&
+        min[1] <= nodeBox[b+4] && max[1] >= nodeBox[b+1] &&
+        min[2] <= nodeBox[b+5] && max[2] >= nodeBox[b+2];
+  }
+
+  /**
+   * Finds the box around the paths of a set of vertices.
+   * @param vertices
+   * @param min
+   * @param max
+   */
+  private void findBox(int vertices[], double min[], double max[]) {
+    double P0[] = cur.getPositions();
+    double P1[] = next.getPositions();
+    Arrays.fill(min, Double.MAX_VALUE);
+    Arrays.fill(max, -Double.MAX_VALUE);
+    for(int v : vertices) {
+      for(int k = 0; k < 3; k++) {
+        min[k] = Math.min(min[k], Math.min(P0[v*3+k], P1[v*3+k]) - thickness);
+        max[k] = Math.max(max[k], Math.max(P0[v*3+k], P1[v*3+k]) + thickness);
+      }
+    }
+  }
+
+  /**
+   * Finds the earliest impact of vertex v with a triangle it is not part of.
+   * @param v
+   * @param stack
+   * @param work
+   */
+  private void findVertexImpact(int v, int stack[], double work[]) {
+    int nodeLeft[] = surface.getNodeLeft();
+    int nodeRight[] = surface.getNodeRight();
+    int nodeFace[] = surface.getNodeFace();
+    int faceVertex[] = surface.getFaceVertices();
+    double min[] = new double[3];
+    double max[] = new double[3];
+    findBox(new int[] {v}, min, max);
+
+    vertexToi[v] = NO_IMPACT;
+    vertexFace[v] = -1;
+    if(!near[v]) {
+      return;
+    }
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      if(!overlaps(min, max, node)) {
+        continue;
+      }
+      if(nodeFace[node] < 0) {
+        stack[top++] = nodeLeft[node];
+        stack[top++] = nodeRight[node];
+        continue;
+      }
+      int f = nodeFace[node]*3;
+      int a = faceVertex[f];
+      int b = faceVertex[f+1];
+      int c = faceVertex[f+2];
+      if(v == a || v == b || v == c) {
+        continue;
+      }
+      double toi = findImpact(v, a, b, c, false, work);
+      if(toi < vertexToi[v]) {
+        vertexToi[v] = toi;
+        vertexFace[v] = nodeFace[node];
+      }
+    }
+  }
+
+  /**
+   * Finds the earliest impact of edge e with another edge that does not
+   * share a vertex with it. Each pair is only looked at from the edge
+   * with the lower index.
+   * @param e
+   * @param stack
+   * @param work
+   */
+  private void findEdgeImpact(int e, int stack[], double work[]) {
+    int nodeLeft[] = surface.getNodeLeft();
+    int nodeRight[] = surface.getNodeRight();
+    int nodeFace[] = surface.getNodeFace();
+    int faceEdge[] = surface.getFaceEdges();
+    int edgeVertex[] = surface.getEdgeVertices();
+    int a = edgeVertex[e*2];
+    int b = edgeVertex[e*2+1];
+    double min[] = new double[3];
+    double max[] = new double[3];
+    findBox(new int[] {a, b}, min, max);
+
+    edgeToi[e] = NO_IMPACT;
+    edgeOther[e] = -1;
+    if(!near[a] && !near[b]) {
+      return;
+    }
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      if(!overlaps(min, max, node)) {
+        continue;
+      }
+      if(nodeFace[node] < 0) {
+        stack[top++] = nodeLeft[node];
+        stack[top++] = nodeRight[node];
+        continue;
+      }
+      for(int k = 0; k < 3; k++) {
+        int other = faceEdge[nodeFace[node]*3+k];
+        if(other <= e) {
+          continue;
+        }
+        int c = edgeVertex[other*2];
+        int d = edgeVertex[other*2+1];
+        if(c == a || c == b || d == a || d == b) {
+          continue;
+        }
+        double toi = findImpact(a, b, c, d, true, work);
+        if(toi < edgeToi[e]) {
+          edgeToi[e] = toi;
+          edgeOther[e] = other;
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves the vertices that take part in an impact back along their path.
+   * @param last true if this is the last pass, when they are moved all
+   * the way back
+   * @return true if any impact was found
+   */
+  private boolean respond(boolean last) {
+    int faceVertex[] = surface.getFaceVertices();
+    int edgeVertex[] = surface.getEdgeVertices();
+    Arrays.fill(fraction, 1.0);
+    boolean found = false;
+
+    for(int v = 0; v < vertexToi.length; v++) {
+      if(vertexToi[v] < NO_IMPACT) {
+        double f = last ? 0.0 : vertexToi[v]*SAFETY;
+        int t = vertexFace[v]*3;
+        limit(v, f);
+        limit(faceVertex[t], f);
+        limit(faceVertex[t+1], f);
+        limit(faceVertex[t+2], f);
+        found = true;
+      }
+    }
+    for(int e = 0; e < edgeToi.length; e++) {
+      if(edgeToi[e] < NO_IMPACT) {
+        double f = last ? 0.0 : edgeToi[e]*SAFETY;
+        int o = edgeOther[e];
+        limit(edgeVertex[e*2], f);
+        limit(edgeVertex[e*2+1], f);
+        limit(edgeVertex[o*2], f);
+        limit(edgeVertex[o*2+1], f);
+        found = true;
+      }
+    }
+    if(!found) {
+      return false;
+    }
+
+    ParallelLoop.run(pool, 0, fraction.length, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        double P0[] = cur.getPositions();
+        double P1[] = next.getPositions();
+        double V1[] = next.getVelocities();
+        for(int v = first; v < last; v++) {
+          double f = fraction[v];
+          if(f < 1.0) {
+            for(int i = v*3; i < v*3+3; i++) {
+              P1[i] = P0[i] + f*(P1[i] - P0[i]);
+              V1[i] *= f;
+            }
+          }
+        }
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Lowers the fraction of vertex v to f if it is higher.
+   * @param v
+   * @param f
+   */
+  private void limit(int v, double f) {
+    fraction[v] = Math.min(fraction[v], f);
+  }
+
+  /**
+   * Finds the first time in [0, 1] at which the four points are in one
+   * plane and touching. For a vertex and triangle, p is the vertex and
+   * q, r, s the triangle. For two edges, p-q is one edge and r-s the other.
+   * @param p
+   * @param q
+   * @param r
+   * @param s
+   * @param edges
+   * @param work WORK_SIZE numbers the method can use as it likes
+   * @return the time of impact, or NO_IMPACT
+   */
+  private double findImpact(int p, int q, int r, int s, boolean edges, double work[]) {
+    double P0[] = cur.getPositions();
+    double P1[] = next.getPositions();
+    // work[3..11] is the start of q, r, s seen from p, work[15..23] their motion
+    final int x = 0;
+    final int u = 12;
+    for(int n = 1; n < 4; n++) {
+      int i = (n == 1 ? q : (n == 2 ? r : s))*3;
+      for(int k = 0; k < 3; k++) {
+        work[x+n*3+k] = P0[i+k] - P0[p*3+k];
+        work[u+n*3+k] = (P1[i+k] - P0[i+k]) - (P1[p*3+k] - P0[p*3+k]);
+      }
+    }
+
+    // (q-p).((r-p)x(s-p)) as a cubic in t
+    double c0 = triple(work, x+3, work, x+6, work, x+9);
+    double c1 = triple(work, u+3, work, x+6, work, x+9) + triple(work, x+3, work, u+6, work, x+9) + triple(work, x+3, work, x+6, work, u+9);
+    double c2 = triple(work, x+3, work, u+6, work, u+9) + triple(work, u+3, work, x+6, work, u+9) + triple(work, u+3, work, u+6, work, x+9);
+    double c3 = triple(work, u+3, work, u+6, work, u+9);
+
+    // Cut [0, 1] where the cubic turns, so each piece has at most one root.
+    final int cut = 24;
+    work[cut] = 0.0;
+    work[cut+1] = 1.0;
+    work[cut+2] = 1.0;
+    work[cut+3] = 1.0;
+    int cuts = 1;
+    double A = 3.0*c3, B = 2.0*c2, C = c1;
+    if(Math.abs(A) > EPSILON) {
+      double disc = B*B - 4.0*A*C;
+      if(disc >= 0.0) {
+        double root = Math.sqrt(disc);
+        double t1 = (-B - root)/(2.0*A);
+        double t2 = (-B + root)/(2.0*A);
+        if(t1 > t2) {
+          double swap = t1;
+          t1 = t2;
+          t2 = swap;
+        }
+        if(t1 > 0.0 && t1 < 1.0) {
+          work[cut + cuts++] = t1;
+        }
+        if(t2 > 0.0 && t2 < 1.0) {
+          work[cut + cuts++] = t2;
+        }
+      }
+    }
+    else if(Math.abs(B) > EPSILON) {
+      double t1 = -C/B;
+      if(t1 > 0.0 && t1 < 1.0) {
+        work[cut + cuts++] = t1;
+      }
+    }
+    work[cut + cuts] = 1.0;
+
+    for(int n = 0; n < cuts; n++) {
+      double lo = work[cut+n];
+      double hi = work[cut+n+1];
+      double flo = cubic(c0, c1, c2, c3, lo);
+      double fhi = cubic(c0, c1, c2, c3, hi);
+      double t;
+      if(flo == 0.0) {
+        t = lo;
+      }
+      else if(fhi == 0.0) {
+        t = hi;
+      }
+      else if((flo < 0.0) != (fhi < 0.0)) {
+        for(int i = 0; i < BISECTIONS; i++) {
+          double mid = 0.5*(lo + hi);
+          double fmid = cubic(c0, c1, c2, c3, mid);
+          if((fmid < 0.0) == (flo < 0.0)) {
+            lo = mid;
+            flo = fmid;
+          }
+          else {
+            hi = mid;
+          }
+        }
+        t = 0.5*(lo + hi);
+      }
+      else {
+        continue;
+      }
+      if(touching(p, q, r, s, t, edges, work)) {
+        return t;
+      }
+    }
+    return NO_IMPACT;
+  }
+
+  /**
+   * Returns true if the four points are within thickness of each other
+   * at time t. For a vertex and triangle that is the distance from the
+   * vertex to the nearest point of the triangle, for two edges the
+   * distance between the nearest points of the edges.
+   * @param p
+   * @param q
+   * @param r
+   * @param s
+   * @param t
+   * @param edges
+   * @param work
+   * @return
+   */
+  private boolean touching(int p, int q, int r, int s, double t, boolean edges, double work[]) {
+    double P0[] = cur.getPositions();
+    double P1[] = next.getPositions();
+    // the four points at time t go in work[28..39]
+    final int x = 28;
+    for(int n = 0; n < 4; n++) {
+      int i = (n == 0 ? p : (n == 1 ? q : (n == 2 ? r : s)))*3;
+      for(int k = 0; k < 3; k++) {
+        work[x+n*3+k] = P0[i+k] + t*(P1[i+k] - P0[i+k]);
+      }
+    }
+    double distance;
+    if(edges) {
+      distance = Geometry.findClosestSegmentPoints(work, x, x+3, x+6, x+9, null);
+    }
+    else {
+      distance = Geometry.findClosestPoint(work[x], work[x+1], work[x+2], work, x+3, x+6, x+9, null);
+    }
+    return distance <= thickness*thickness;
+  }
+
+  /**
+   * Get a.(b x c) for three vectors stored at offsets in arrays.
+   * @param a
+   * @param i
+   * @param b
+   * @param j
+   * @param c
+   * @param k
+   * @return
+   */
+  private static double triple(double a[], int i, double b[], int j, double c[], int k) {
+    return a[i]*(b[j+1]*c[k+2] - b[j+2]*c[k+1]) +
+        a[i+1]*(b[j+2]*c[k] - b[j]*c[k+2]) +
+        a[i+2]*(b[j]*c[k+1] - b[j+1]*c[k]);
+  }
+
+  /**
+   * Get the value of the cubic c0 + c1*t + c2*t^2 + c3*t^3.
+   * @param c0
+   * @param c1
+   * @param c2
+   * @param c3
+   * @param t
+   * @return
+   */
+  private static double cubic(double c0, double c1, double c2, double c3, double t) {
+    return c0 + t*(c1 + t*(c2 + t*c3));
+  }
+}
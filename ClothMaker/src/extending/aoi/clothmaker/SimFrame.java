@@ -17,16 +17,42 @@
  */
 package extending.aoi.clothmaker;
 
+import java.io.IOException;
+
+import artofillusion.math.Vec3;
+import artofillusion.object.TriangleMesh;
+
 /**
  * Object for storing a version of the cloth in a list from 
  * which we can retreave the cloth at a given frame number.
+ * <p>
+ * Only the vertex positions change from one frame to the next, so a frame
+ * keeps just those, packed x, y, z per vertex, and the velocities if they
+ * are asked for. The rest of the cloth is a template that is never
+ * changed and is shared by the frames made like one another. A Cloth is
+ * only put together from the template when getCloth is called.
+ * <p>
+ * A frame can also be written to a MappedFrameStore, in which case it
+ * keeps nothing but its record number and reads the positions back from
+ * the store when they are asked for.
+ * <p>
+ * Frames read from a scene keep a FrameBlock in place of the positions,
+ * and the block is only decoded when the positions are asked for. If the
+ * block turns out to be damaged the frame is not readable, and gives the
+ * positions of its template instead.
  * @author Timothy Fish
  *
  */
 public class SimFrame{
 	public int frameNumber;
-	public double time;
-	public Cloth M;
+	private final Cloth template; // shared with other frames, never changed
+	private final double positions[]; // null if the frame is in store or block
+	private final double velocities[]; // null if they were not kept or the frame is in store
+	private final MappedFrameStore store;
+	private final int record; // number of the record in store, or -1
+	private final boolean hasVelocities;
+	private final FrameBlock block; // null unless the frame was read
+	private final int blockIndex; // frame within block
 
 	/** 
 	 * Constructor
@@ -34,8 +60,232 @@ public class SimFrame{
 	 * @param M
 	 */
 	public SimFrame(int frame, Cloth M) {
+    this(frame, M, null, false, null);
+  }
+
+	/** 
+	 * Constructor
+	 * The template of like is shared if it has the same vertices and faces
+	 * as M.
+	 * If store is given the frame is written to it, unless that fails, in
+	 * which case the frame is kept on the heap.
+	 * @param frame
+	 * @param M
+	 * @param like a frame of the same cloth, or null
+	 * @param withVelocities true to keep the velocities of the masses
+	 * @param store where to keep the positions, or null to keep them on the heap
+	 */
+	public SimFrame(int frame, Cloth M, SimFrame like, boolean withVelocities, MappedFrameStore store) {
     this.frameNumber = frame;
-    this.time = (double)frame*(1.0/ClothSimEditorWindow.getFPS());
-    this.M = (Cloth) M.duplicate();
+    Vec3 v[] = M.getVertexPositions();
+    double positions[] = new double[v.length*3];
+    for(int i = 0; i < v.length; i++) {
+      positions[i*3] = v[i].x;
+      positions[i*3+1] = v[i].y;
+      positions[i*3+2] = v[i].z;
+    }
+    double velocities[] = null;
+    if(withVelocities) {
+      Mass masses[] = M.getMasses();
+      velocities = new double[masses.length*3];
+      for(int i = 0; i < masses.length; i++) {
+        Vec3 vel = masses[i].getVelocity();
+        velocities[i*3] = vel.x;
+        velocities[i*3+1] = vel.y;
+        velocities[i*3+2] = vel.z;
+      }
+    }
+    int record = -1;
+    if(store != null && store.getVertexCount() == v.length) {
+      try {
+        record = store.write(frame, positions, velocities);
+        positions = null;
+        velocities = null;
+      } catch (IOException e) {
+        // the store is full or closed, which the constructor allows for
+        store = null;
+      }
+    }
+    else {
+      store = null;
+    }
+    this.positions = positions;
+    this.velocities = velocities;
+    this.store = store;
+    this.record = record;
+    hasVelocities = withVelocities;
+    block = null;
+    blockIndex = 0;
+    if(like != null && like.hasSameShape(M)) {
+      template = like.template;
+    }
+    else {
+      template = (Cloth) M.duplicate();
+    }
+  }
+
+	/** 
+	 * Constructor
+	 * Used when reading frames. The template is used as it is, so it must
+	 * not be changed afterwards.
+	 * @param frame
+	 * @param template
+	 * @param block the block the positions are in
+	 * @param index the frame within the block
+	 */
+	SimFrame(int frame, Cloth template, FrameBlock block, int index) {
+    this.frameNumber = frame;
+    this.template = template;
+    positions = null;
+    velocities = null;
+    store = null;
+    record = -1;
+    hasVelocities = false;
+    this.block = block;
+    blockIndex = index;
+  }
+
+	/** 
+	 * Constructor
+	 * Makes a copy of a frame with a new frame number. The two share
+	 * everything else.
+	 * @param frame
+	 * @param from
+	 */
+	public SimFrame(int frame, SimFrame from) {
+    this.frameNumber = frame;
+    template = from.template;
+    positions = from.positions;
+    velocities = from.velocities;
+    store = from.store;
+    record = from.record;
+    hasVelocities = from.hasVelocities;
+    block = from.block;
+    blockIndex = from.blockIndex;
+  }
+
+  /**
+   * Returns true if the template has the same number of vertices and faces
+   * as the cloth.
+   * @param cloth
+   * @return
+   */
+  private boolean hasSameShape(Cloth cloth) {
+    TriangleMesh a = template.getTriangleMesh();
+    TriangleMesh b = cloth.getTriangleMesh();
+    return a.getVertexPositions().length == b.getVertexPositions().length
+        && a.getFaces().length == b.getFaces().length;
+  }
+
+  /**
+   * Returns false if the frame was read from a block that can't be
+   * decoded, in which case its positions are those of the template.
+   * @return
+   */
+  public boolean isReadable() {
+    return block == null || block.isReadable();
+  }
+
+  /**
+   * Get the positions of the frame from its block.
+   * @return
+   */
+  private double[] getBlockPositions() {
+    double p[] = block.getPositions(blockIndex);
+    if(p == null) {
+      Vec3 v[] = template.getVertexPositions();
+      p = new double[v.length*3];
+      for(int i = 0; i < v.length; i++) {
+        p[i*3] = v[i].x;
+        p[i*3+1] = v[i].y;
+        p[i*3+2] = v[i].z;
+      }
+    }
+    return p;
+  }
+
+  /**
+   * Get the number of vertices in the frame.
+   * @return
+   */
+  public int getVertexCount() {
+    if(block != null) {
+      return block.getVertexCount();
+    }
+    return store == null ? positions.length/3 : store.getVertexCount();
+  }
+
+  /**
+   * Get a copy of the positions, three values per vertex.
+   * @return
+   */
+  public double[] getPositions() {
+    if(block != null) {
+      return getBlockPositions();
+    }
+    if(store == null) {
+      return positions.clone();
+    }
+    double p[] = new double[getVertexCount()*3];
+    read(0, p);
+    return p;
+  }
+
+  /**
+   * Get the positions of all the vertices.
+   * @return
+   */
+  public Vec3[] getVertexPositions() {
+    double p[] = positions;
+    if(p == null) {
+      p = getPositions();
+    }
+    Vec3 v[] = new Vec3[p.length/3];
+    for(int i = 0; i < v.length; i++) {
+      v[i] = new Vec3(p[i*3], p[i*3+1], p[i*3+2]);
+    }
+    return v;
+  }
+
+  /**
+   * Get a copy of the velocities, three values per vertex as the masses
+   * held them, or null if they were not kept.
+   * @return
+   */
+  public double[] getVelocities() {
+    if(!hasVelocities) {
+      return null;
+    }
+    if(store == null) {
+      return velocities.clone();
+    }
+    double v[] = new double[getVertexCount()*3];
+    read(v.length, v);
+    return v;
+  }
+
+  /**
+   * Reads values of the record from the store.
+   * @param start
+   * @param values
+   */
+  private void read(int start, double values[]) {
+    try {
+      store.read(record, start, values);
+    } catch (IOException e) {
+      // the record was written when the frame was made
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Puts together a new Cloth from the template with the vertices where
+   * they are in this frame.
+   * @return
+   */
+  public Cloth getCloth() {
+    Cloth cloth = (Cloth) template.duplicate();
+    cloth.setVertexPositions(getVertexPositions());
+    return cloth;
   }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+/**
+ * Simulates a range of frames of a ClothTrack on a thread of its own, so
+ * the window that started it keeps responding and can cancel it.
+ * <p>
+ * The listener is told how far the job has got after every frame, and
+ * is given the cloth to show at most once every PREVIEW_INTERVAL, since
+ * drawing the cloth can take as long as simulating it. Every call to the
+ * listener is made on the simulation thread, so a listener that changes
+ * the user interface must pass the change on to the event thread.
+ * <p>
+ * The job claims the track while it runs, and a job started on a track
+ * another job has stops with an error without touching it. Whoever starts
+ * the job should claim the track before changing it, and must not change
+ * it while the job is running.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class SimulationJob implements Runnable {
+  // Least milliseconds between two previews
+  static final long PREVIEW_INTERVAL = 250;
+
+  /**
+   * What is told about a job as it runs.
+   */
+  public interface Listener {
+    /**
+     * Called after each frame is simulated.
+     * @param progress
+     */
+    void progress(SimulationProgress progress);
+
+    /**
+     * Called with the cloth at the last frame simulated, if no preview was
+     * given within PREVIEW_INTERVAL.
+     * @param cloth a new cloth the listener may keep
+     */
+    void preview(Cloth cloth);
+
+    /**
+     * Called once when the job stops, whether it got to the last frame,
+     * was cancelled or failed.
+     * @param progress
+     * @param cancelled
+     * @param error what stopped the job, or null
+     */
+    void finished(SimulationProgress progress, boolean cancelled, Throwable error);
+  }
+
+  private final ClothTrack track;
+  private final int firstFrame;
+  private final int lastFrame;
+  private final Listener listener;
+  private volatile boolean cancelled;
+  private Thread thread;
+
+  /**
+   * Constructor
+   * @param track
+   * @param firstFrame
+   * @param lastFrame simulated as well
+   * @param listener
+   */
+  public SimulationJob(ClothTrack track, int firstFrame, int lastFrame, Listener listener) {
+    this.track = track;
+    this.firstFrame = firstFrame;
+    this.lastFrame = lastFrame;
+    this.listener = listener;
+  }
+
+  /**
+   * Claims the track for this job, so no other job can simulate it until
+   * this one stops.
+   * @return false if another job has the track
+   */
+  public boolean claimTrack() {
+    return track.claim(this);
+  }
+
+  /**
+   * Starts the job on a new thread.
+   */
+  public synchronized void start() {
+    if(thread != null) {
+      throw new IllegalStateException("The job was already started");
+    }
+    thread = new Thread(this, "Cloth Simulation");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Asks the job to stop. It stops once the frame it is on is done.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Returns true if cancel was called.
+   * @return
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Returns true if the job was started and has stopped.
+   * @return
+   */
+  public synchronized boolean isDone() {
+    return thread != null && !thread.isAlive();
+  }
+
+  /**
+   * Waits for the job to stop.
+   * @throws InterruptedException
+   */
+  public void join() throws InterruptedException {
+    Thread t;
+    synchronized(this) {
+      t = thread;
+    }
+    if(t != null) {
+      t.join();
+    }
+  }
+
+  /**
+   * Simulates the frames. Called on the thread made by start, but can be
+   * called directly to run the job on the current thread.
+   */
+  @Override
+  public void run() {
+    int frameCount = lastFrame - firstFrame + 1;
+    long startTime = System.currentTimeMillis();
+    long lastPreview = 0;
+    SimulationProgress progress = new SimulationProgress(firstFrame - 1, 0, frameCount, 0);
+    Throwable error = null;
+    if(!claimTrack()) {
+      listener.finished(progress, cancelled, new IllegalStateException("The cloth is already being simulated"));
+      return;
+    }
+    try {
+      for(int i = firstFrame; i <= lastFrame && !cancelled; i++) {
+        SimFrame frame = track.simulateCloth(i);
+        long now = System.currentTimeMillis();
+        progress = new SimulationProgress(i, i - firstFrame + 1, frameCount, now - startTime);
+        listener.progress(progress);
+        if(now - lastPreview >= PREVIEW_INTERVAL || i == lastFrame) {
+          lastPreview = now;
+          listener.preview(frame.getCloth());
+        }
+      }
+    } catch (RuntimeException e) {
+      error = e;
+    } catch (Error e) {
+      error = e;
+    }
+    finally {
+      track.release(this);
+      listener.finished(progress, cancelled, error);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+/**
+ * How far a SimulationJob has got. A progress never changes once it is
+ * made, so it can be handed from the simulation thread to the user
+ * interface.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class SimulationProgress {
+  private final int frameNumber;
+  private final int framesDone;
+  private final int frameCount;
+  private final long elapsed;
+
+  /**
+   * Constructor
+   * @param frameNumber the last frame simulated
+   * @param framesDone
+   * @param frameCount the number of frames the job simulates
+   * @param elapsed milliseconds since the job started
+   */
+  public SimulationProgress(int frameNumber, int framesDone, int frameCount, long elapsed) {
+    this.frameNumber = frameNumber;
+    this.framesDone = framesDone;
+    this.frameCount = frameCount;
+    this.elapsed = elapsed;
+  }
+
+  /**
+   * Get the number of the last frame simulated.
+   * @return
+   */
+  public int getFrameNumber() {
+    return frameNumber;
+  }
+
+  /**
+   * Get the number of frames simulated so far.
+   * @return
+   */
+  public int getFramesDone() {
+    return framesDone;
+  }
+
+  /**
+   * Get the number of frames the job simulates.
+   * @return
+   */
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * Get the milliseconds since the job started.
+   * @return
+   */
+  public long getElapsed() {
+    return elapsed;
+  }
+
+  /**
+   * Get an estimate of the milliseconds until the job is done, taking the
+   * frames left to be as slow as the frames so far. Returns -1 before any
+   * frame is done.
+   * @return
+   */
+  public long getRemaining() {
+    if(framesDone == 0) {
+      return -1;
+    }
+    return elapsed*(frameCount - framesDone)/framesDone;
+  }
+
+  @Override
+  public String toString() {
+    String text = framesDone + " : " + frameCount;
+    long remaining = getRemaining();
+    if(remaining >= 0) {
+      text += "  " + formatTime(elapsed) + " / " + formatTime(remaining) + " left";
+    }
+    return text;
+  }
+
+  /**
+   * Formats milliseconds as minutes and seconds.
+   * @param millis
+   * @return
+   */
+  private static String formatTime(long millis) {
+    long seconds = millis/1000;
+    return seconds/60 + ":" + (seconds%60 < 10 ? "0" : "") + seconds%60;
+  }
+}
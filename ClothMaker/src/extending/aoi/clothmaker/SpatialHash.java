@@ -0,0 +1,138 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+/**
+ * Uniform grid over the vertices of a cloth, used to find the vertices
+ * that are close to a given one without looking at all of them. Space is
+ * cut into cubes of cellSize and each vertex is filed under the cube it
+ * is in. The cubes are hashed into a table about twice the number of
+ * vertices, so the grid costs the same however far the cloth is spread
+ * out. Two cubes that hash to the same slot just share a list.
+ * <p>
+ * The grid is a snapshot: it must be built again whenever the vertices
+ * move.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class SpatialHash {
+  private final double position[];
+  private final double cellSize;
+  private final int tableMask;
+  private final int cellStart[]; // vertices of slot h are cellVertices[cellStart[h]] to cellVertices[cellStart[h+1]-1]
+  private final int cellVertices[];
+
+  /**
+   * Constructor
+   * Files the vertices under their cells.
+   * @param position three values per vertex
+   * @param vertexCount
+   * @param cellSize
+   */
+  public SpatialHash(double position[], int vertexCount, double cellSize) {
+    this.position = position;
+    this.cellSize = cellSize;
+    int tableSize = 1;
+    while(tableSize < vertexCount*2) {
+      tableSize <<= 1;
+    }
+    tableMask = tableSize - 1;
+
+    int slot[] = new int[vertexCount];
+    cellStart = new int[tableSize+1];
+    for(int i = 0; i < vertexCount; i++) {
+      slot[i] = hash(cell(position[i*3]), cell(position[i*3+1]), cell(position[i*3+2]));
+      cellStart[slot[i]+1]++;
+    }
+    for(int h = 0; h < tableSize; h++) {
+      cellStart[h+1] += cellStart[h];
+    }
+    cellVertices = new int[vertexCount];
+    int fill[] = new int[tableSize];
+    System.arraycopy(cellStart, 0, fill, 0, tableSize);
+    for(int i = 0; i < vertexCount; i++) {
+      cellVertices[fill[slot[i]]++] = i;
+    }
+  }
+
+  /**
+   * Get the cell a coordinate falls in.
+   * @param v
+   * @return
+   */
+  private int cell(double v) {
+    return (int)Math.floor(v/cellSize);
+  }
+
+  /**
+   * Get the table slot of a cell.
+   * @param x
+   * @param y
+   * @param z
+   * @return
+   */
+  private int hash(int x, int y, int z) {
+    return ((x*73856093) ^ (y*19349663) ^ (z*83492791)) & tableMask;
+  }
+
+  /**
+   * Returns true if some vertex other than pt is within distance of it,
+   * not counting the vertices joined to pt by a spring. The distance must
+   * be no more than the cell size, so only the cells around pt are looked at.
+   * @param pt
+   * @param distance
+   * @param topology
+   * @return
+   */
+  public boolean hasNeighbor(int pt, double distance, ClothTopology topology) {
+    double px = position[pt*3];
+    double py = position[pt*3+1];
+    double pz = position[pt*3+2];
+    int cx = cell(px);
+    int cy = cell(py);
+    int cz = cell(pz);
+    double limit = distance*distance;
+
+    for(int x = cx-1; x <= cx+1; x++) {
+      for(int y = cy-1; y <= cy+1; y++) {
+        for(int z = cz-1; z <= cz+1; z++) {
+          int h = hash(x, y, z);
+          for(int j = cellStart[h]; j < cellStart[h+1]; j++) {
+            int i = cellVertices[j];
+            if(i == pt) {
+              continue;
+            }
+            double dx = position[i*3] - px;
+            double dy = position[i*3+1] - py;
+            double dz = position[i*3+2] - pz;
+            if(dx*dx + dy*dy + dz*dz > limit) {
+              continue;
+            }
+
+            // Vertices joined by a spring are meant to be close.
+            if(!topology.isJoined(pt, i)) {
+              return true;
+            }
+          }
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,144 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import artofillusion.math.Mat4;
+import artofillusion.math.Vec3;
+
+/**
+ * Decides how many sub frames each frame of a simulation is split into.
+ * A frame where the cloth is nearly at rest is done in a single step,
+ * while a frame where it moves fast or is stretched hard gets more. Two
+ * limits are used:
+ * <ul>
+ * <li>No vertex should move further in one step than COURANT times the
+ * shortest spring. The speed is taken from how far the vertices moved
+ * during the last frame.</li>
+ * <li>No spring should be stretched or squashed by more than STRAIN_LIMIT
+ * of its length per step.</li>
+ * </ul>
+ * The result is kept between the minimum and maximum the user set.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class SubstepController {
+  // Part of the shortest spring a vertex may move in one step
+  static final double COURANT = 0.5;
+  // Strain of the worst spring that one step may handle
+  static final double STRAIN_LIMIT = 0.1;
+
+  private final int minSubFrames;
+  private final int maxSubFrames;
+  private double prevPositions[]; // world positions at the end of the last frame
+
+  /**
+   * Constructor
+   * @param minSubFrames
+   * @param maxSubFrames
+   */
+  public SubstepController(int minSubFrames, int maxSubFrames) {
+    this.minSubFrames = Math.max(1, minSubFrames);
+    this.maxSubFrames = Math.max(this.minSubFrames, maxSubFrames);
+  }
+
+  /**
+   * Forgets the last frame, as when a new simulation starts.
+   */
+  public void reset() {
+    prevPositions = null;
+  }
+
+  /**
+   * Get the fewest sub frames a frame may be split into.
+   * @return
+   */
+  public int getMinSubFrames() {
+    return minSubFrames;
+  }
+
+  /**
+   * Get the most sub frames a frame may be split into.
+   * @return
+   */
+  public int getMaxSubFrames() {
+    return maxSubFrames;
+  }
+
+  /**
+   * Finds the number of sub frames for the frame that starts with the
+   * cloth as it is now, and remembers where the cloth is for next time.
+   * @param cloth
+   * @param fromLocal
+   * @return
+   */
+  public int chooseSubFrames(Cloth cloth, Mat4 fromLocal) {
+    ClothTopology topology = cloth.getTopology();
+    Vec3 local[] = cloth.getVertexPositions();
+    double P[] = new double[local.length*3];
+    for(int i = 0; i < local.length; i++) {
+      Vec3 p = fromLocal.times(local[i]);
+      P[i*3] = p.x;
+      P[i*3+1] = p.y;
+      P[i*3+2] = p.z;
+    }
+
+    // Longest distance a vertex moved during the last frame
+    double maxMove = 0.0;
+    if(prevPositions != null && prevPositions.length == P.length) {
+      for(int i = 0; i < P.length; i += 3) {
+        double dx = P[i] - prevPositions[i];
+        double dy = P[i+1] - prevPositions[i+1];
+        double dz = P[i+2] - prevPositions[i+2];
+        maxMove = Math.max(maxMove, dx*dx + dy*dy + dz*dz);
+      }
+      maxMove = Math.sqrt(maxMove);
+    }
+    prevPositions = P;
+
+    // Shortest spring and worst strain
+    int springA[] = topology.getSpringA();
+    int springB[] = topology.getSpringB();
+    double restLength[] = topology.getRestLengths();
+    double minLength = Double.MAX_VALUE;
+    double maxStrain = 0.0;
+    for(int s = 0; s < restLength.length; s++) {
+      if(restLength[s] <= 0.0) {
+        continue;
+      }
+      int a = springA[s]*3;
+      int b = springB[s]*3;
+      double dx = P[b] - P[a];
+      double dy = P[b+1] - P[a+1];
+      double dz = P[b+2] - P[a+2];
+      double x = Math.sqrt(dx*dx + dy*dy + dz*dz);
+      minLength = Math.min(minLength, restLength[s]);
+      maxStrain = Math.max(maxStrain, Math.abs(x - restLength[s])/restLength[s]);
+    }
+
+    double steps = 1.0;
+    if(minLength < Double.MAX_VALUE) {
+      steps = Math.max(steps, maxMove/(COURANT*minLength));
+    }
+    steps = Math.max(steps, maxStrain/STRAIN_LIMIT);
+    if(steps >= maxSubFrames) {
+      return maxSubFrames;
+    }
+    return Math.max(minSubFrames, (int)Math.ceil(steps));
+  }
+}
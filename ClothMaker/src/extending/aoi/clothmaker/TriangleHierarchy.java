@@ -0,0 +1,569 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import artofillusion.math.Vec3;
+
+/**
+ * A bounding volume hierarchy (BVH) of axis aligned boxes over the
+ * triangles of a TriangleSoup, used to find which triangles a line passes
+ * through without testing all of them.
+ * <p>
+ * The tree is built top down. Each node is split where the surface area
+ * heuristic says a line is least likely to have to test many triangles:
+ * the triangle centers are sorted into BINS bins along each axis and the
+ * cheapest cut between bins is used. A node with MAX_LEAF_SIZE triangles
+ * or less is not split if splitting it costs more than testing them all.
+ * <p>
+ * The nodes are kept in flat arrays. The first child of a node comes
+ * right after it and the index of the second child is kept in nodeRight,
+ * which is -1 for a leaf. The triangles of a leaf are order[nodeFirst] up
+ * to, but not including, order[nodeFirst+nodeCount].
+ * <p>
+ * When the triangles of the soup move, refit fits the boxes to the new
+ * positions and keeps the way the triangles are split up. That is much
+ * faster than building the tree again, and the tree still works well as
+ * long as the triangles stay near the ones they were split with.
+ * <p>
+ * A line query looks both ways along the line, the way
+ * CollisionDetector.findDistanceToCollisionPoint does, and measures the
+ * distance to a hit as a positive number. The tree can also find the
+ * triangle closest to a point.
+ * <p>
+ * The queries are made once per cloth vertex on every step, from many
+ * threads at once, so they keep their stack in a Scratch held by each
+ * thread instead of making a new one each time.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class TriangleHierarchy {
+  // Most triangles in a leaf
+  static final int MAX_LEAF_SIZE = 4;
+  // Number of bins the triangle centers are sorted into to find a split
+  static final int BINS = 12;
+  // Cost of visiting a node compared to testing one triangle
+  static final double TRAVERSAL_COST = 1.0;
+  // Amount the boxes are grown so lines along a face still find it
+  private static final double EPSILON = 1e-9;
+  // Working space of the queries made by each thread
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private final TriangleSoup soup;
+  private final int order[]; // triangles in the order the leaves use them
+  private final double nodeBox[]; // min x, y, z then max x, y, z of each node
+  private final int nodeRight[];
+  private final int nodeFirst[];
+  private final int nodeCount[];
+  private int nodes;
+  private int depth;
+
+  /**
+   * Constructor
+   * @param soup
+   */
+  public TriangleHierarchy(TriangleSoup soup) {
+    this.soup = soup;
+    int count = soup.getTriangleCount();
+    int size = Math.max(1, count*2 - 1);
+    order = new int[count];
+    nodeBox = new double[size*6];
+    nodeRight = new int[size];
+    nodeFirst = new int[size];
+    nodeCount = new int[size];
+
+    double centroid[] = new double[count*3];
+    double vert[] = soup.getVertices();
+    for(int t = 0; t < count; t++) {
+      order[t] = t;
+      for(int k = 0; k < 3; k++) {
+        centroid[t*3+k] = (vert[t*9+k] + vert[t*9+3+k] + vert[t*9+6+k])/3.0;
+      }
+    }
+    if(count > 0) {
+      build(0, count, centroid, 1);
+    }
+  }
+
+  /**
+   * Adds the node for order[first] up to, but not including, order[last]
+   * and the nodes below it.
+   * @param first
+   * @param last
+   * @param centroid
+   * @param level
+   */
+  private void build(int first, int last, double centroid[], int level) {
+    int node = nodes++;
+    depth = Math.max(depth, level);
+    int b = node*6;
+    Geometry.startBox(nodeBox, b);
+    for(int i = first; i < last; i++) {
+      addTriangle(nodeBox, b, order[i]);
+    }
+    for(int k = 0; k < 3; k++) {
+      nodeBox[b+k] -= EPSILON;
+      nodeBox[b+k+3] += EPSILON;
+    }
+    nodeRight[node] = -1;
+    nodeFirst[node] = first;
+    nodeCount[node] = last - first;
+    int count = last - first;
+    if(count == 1) {
+      return;
+    }
+
+    // Bounds of the centers, which decide the bins
+    double cmin[] = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+    double cmax[] = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+    for(int i = first; i < last; i++) {
+      for(int k = 0; k < 3; k++) {
+        cmin[k] = Math.min(cmin[k], centroid[order[i]*3+k]);
+        cmax[k] = Math.max(cmax[k], centroid[order[i]*3+k]);
+      }
+    }
+
+    // Find the cheapest cut over all three axes.
+    double parentArea = area(nodeBox, b);
+    double bestCost = Double.MAX_VALUE;
+    int bestAxis = -1;
+    int bestCut = 0;
+    int binCount[] = new int[BINS];
+    double binBox[] = new double[BINS*6];
+    double rightArea[] = new double[BINS];
+    int rightCount[] = new int[BINS];
+    double sweep[] = new double[6];
+    for(int axis = 0; axis < 3; axis++) {
+      double extent = cmax[axis] - cmin[axis];
+      if(extent <= 0.0) {
+        continue;
+      }
+      for(int n = 0; n < BINS; n++) {
+        binCount[n] = 0;
+        Geometry.startBox(binBox, n*6);
+      }
+      for(int i = first; i < last; i++) {
+        int n = bin(centroid[order[i]*3+axis], cmin[axis], extent);
+        binCount[n]++;
+        addTriangle(binBox, n*6, order[i]);
+      }
+
+      // Sweep from the right to know the area and count past each cut.
+      Geometry.startBox(sweep, 0);
+      int sum = 0;
+      for(int n = BINS-1; n > 0; n--) {
+        mergeBox(sweep, binBox, n*6);
+        sum += binCount[n];
+        rightArea[n] = area(sweep, 0);
+        rightCount[n] = sum;
+      }
+      Geometry.startBox(sweep, 0);
+      sum = 0;
+      for(int n = 0; n < BINS-1; n++) {
+        mergeBox(sweep, binBox, n*6);
+        sum += binCount[n];
+        if(sum == 0 || rightCount[n+1] == 0) {
+          continue;
+        }
+        double cost = TRAVERSAL_COST + (area(sweep, 0)*sum + rightArea[n+1]*rightCount[n+1])/parentArea;
+        if(cost < bestCost) {
+          bestCost = cost;
+          bestAxis = axis;
+          bestCut = n+1;
+        }
+      }
+    }
+
+    if(count <= MAX_LEAF_SIZE && (bestAxis < 0 || bestCost >= count)) {
+      return;
+    }
+
+    int middle;
+    if(bestAxis < 0) {
+      // All the centers are in one spot, so just cut the list in half.
+      middle = (first + last) >>> 1;
+    }
+    else {
+      int i = first;
+      int j = last - 1;
+      while(i <= j) {
+        if(bin(centroid[order[i]*3+bestAxis], cmin[bestAxis], cmax[bestAxis] - cmin[bestAxis]) < bestCut) {
+          i++;
+        }
+        else {
+          int swap = order[i];
+          order[i] = order[j];
+          order[j--] = swap;
+        }
+      }
+      middle = i;
+    }
+
+    build(first, middle, centroid, level+1);
+    nodeRight[node] = nodes;
+    build(middle, last, centroid, level+1);
+  }
+
+  /**
+   * Fits the box of every node to where the triangles of the soup are now.
+   * The children of a node come after it, so going from the last node to
+   * the first does every child before its parent.
+   */
+  void refit() {
+    for(int node = nodes-1; node >= 0; node--) {
+      int b = node*6;
+      Geometry.startBox(nodeBox, b);
+      if(nodeRight[node] < 0) {
+        for(int i = nodeFirst[node]; i < nodeFirst[node] + nodeCount[node]; i++) {
+          addTriangle(nodeBox, b, order[i]);
+        }
+        for(int k = 0; k < 3; k++) {
+          nodeBox[b+k] -= EPSILON;
+          nodeBox[b+k+3] += EPSILON;
+        }
+      }
+      else {
+        int l = (node+1)*6;
+        int r = nodeRight[node]*6;
+        for(int k = 0; k < 3; k++) {
+          nodeBox[b+k] = Math.min(nodeBox[l+k], nodeBox[r+k]);
+          nodeBox[b+k+3] = Math.max(nodeBox[l+k+3], nodeBox[r+k+3]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the bin a center falls in.
+   * @param c
+   * @param min
+   * @param extent
+   * @return
+   */
+  private static int bin(double c, double min, double extent) {
+    int n = (int)((c - min)/extent*BINS);
+    return Math.min(BINS-1, Math.max(0, n));
+  }
+
+  /**
+   * Grows the box at b to hold triangle t.
+   * @param box
+   * @param b
+   * @param t
+   */
+  private void addTriangle(double box[], int b, int t) {
+    Geometry.addTriangle(box, b, soup.getVertices(), t*9, t*9+3, t*9+6);
+  }
+
+  /**
+   * Grows the box at the start of into to hold the box at b of from.
+   * @param into
+   * @param from
+   * @param b
+   */
+  private static void mergeBox(double into[], double from[], int b) {
+    for(int k = 0; k < 3; k++) {
+      into[k] = Math.min(into[k], from[b+k]);
+      into[k+3] = Math.max(into[k+3], from[b+k+3]);
+    }
+  }
+
+  /**
+   * Get the surface area of the box at b, or 0 if it is empty.
+   * @param box
+   * @param b
+   * @return
+   */
+  private static double area(double box[], int b) {
+    double dx = box[b+3] - box[b];
+    double dy = box[b+4] - box[b+1];
+    double dz = box[b+5] - box[b+2];
+    if(dx < 0.0 || dy < 0.0 || dz < 0.0) {
+      return 0.0;
+    }
+    return 2.0*(dx*dy + dy*dz + dz*dx);
+  }
+
+  /**
+   * Get the soup the tree is built over.
+   * @return
+   */
+  public TriangleSoup getSoup() {
+    return soup;
+  }
+
+  /**
+   * Get the number of nodes in the tree.
+   * @return
+   */
+  public int getNodeCount() {
+    return nodes;
+  }
+
+  /**
+   * Finds the triangle the line through point along direction passes
+   * through closest to point, looking both ways.
+   * @param point
+   * @param direction should be of unit length
+   * @param maxDistance hits this far away or more are ignored
+   * @return the triangle, or -1 if there is none
+   */
+  public int findNearestHit(Vec3 point, Vec3 direction, double maxDistance) {
+    double best = maxDistance;
+    int bestTriangle = -1;
+    if(nodes == 0) {
+      return bestTriangle;
+    }
+    int stack[] = SCRATCH.get().getStack(depth*2 + 2);
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      if(findBoxDistance(point.x, point.y, point.z, direction.x, direction.y, direction.z, node) >= best) {
+        continue;
+      }
+      if(nodeRight[node] >= 0) {
+        stack[top++] = nodeRight[node];
+        stack[top++] = node+1;
+        continue;
+      }
+      for(int i = nodeFirst[node]; i < nodeFirst[node] + nodeCount[node]; i++) {
+        double distance = findHitDistance(point, direction, order[i]);
+        if(distance < best) {
+          best = distance;
+          bestTriangle = order[i];
+        }
+      }
+    }
+    return bestTriangle;
+  }
+
+  /**
+   * Returns true if the line through point along direction passes
+   * through any triangle closer than maxDistance, looking both ways.
+   * This stops at the first hit, so it is faster than findNearestHit
+   * when the hit itself is not needed.
+   * @param point
+   * @param direction should be of unit length
+   * @param maxDistance
+   * @return
+   */
+  public boolean findAnyHit(Vec3 point, Vec3 direction, double maxDistance) {
+    if(nodes == 0) {
+      return false;
+    }
+    int stack[] = SCRATCH.get().getStack(depth*2 + 2);
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      if(findBoxDistance(point.x, point.y, point.z, direction.x, direction.y, direction.z, node) >= maxDistance) {
+        continue;
+      }
+      if(nodeRight[node] >= 0) {
+        stack[top++] = nodeRight[node];
+        stack[top++] = node+1;
+        continue;
+      }
+      for(int i = nodeFirst[node]; i < nodeFirst[node] + nodeCount[node]; i++) {
+        if(findHitDistance(point, direction, order[i]) < maxDistance) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds how far from point the line along direction passes through
+   * triangle t, looking both ways.
+   * @param point
+   * @param direction should be of unit length
+   * @param t
+   * @return the distance, or Double.MAX_VALUE if the line misses
+   */
+  public double findHitDistance(Vec3 point, Vec3 direction, int t) {
+    double hit = Geometry.findLineHit(point.x, point.y, point.z, direction.x, direction.y, direction.z,
+        soup.getVertices(), t*9, t*9+3, t*9+6);
+    return Double.isNaN(hit) ? Double.MAX_VALUE : Math.abs(hit);
+  }
+
+  /**
+   * Finds the triangle closest to the point p. When the closest point is
+   * on an edge or corner shared by several triangles, the one that faces
+   * p most squarely is picked, so that its normal tells which side of the
+   * surface p is on.
+   * @param p x, y and z of the point
+   * @param maxDistance triangles this far away or more are ignored
+   * @return the triangle, or -1 if there is none
+   */
+  public int findNearestTriangle(double p[], double maxDistance) {
+    double best = maxDistance < Double.MAX_VALUE ? maxDistance*maxDistance : Double.MAX_VALUE;
+    double bestFacing = -1.0;
+    int bestTriangle = -1;
+    if(nodes == 0) {
+      return bestTriangle;
+    }
+    double normal[] = soup.getNormals();
+    double q[] = SCRATCH.get().q;
+    int stack[] = SCRATCH.get().getStack(depth*2 + 2);
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      double tolerance = best == Double.MAX_VALUE ? 0.0 : best*1e-9;
+      if(findBoxDistance2(p, node) > best + tolerance) {
+        continue;
+      }
+      if(nodeRight[node] >= 0) {
+        stack[top++] = nodeRight[node];
+        stack[top++] = node+1;
+        continue;
+      }
+      for(int i = nodeFirst[node]; i < nodeFirst[node] + nodeCount[node]; i++) {
+        int t = order[i];
+        double d2 = findClosestPoint(p, t, q);
+        if(d2 > best + tolerance) {
+          continue;
+        }
+        double facing = 1.0;
+        if(d2 > 0.0) {
+          facing = Math.abs((p[0] - q[0])*normal[t*3] + (p[1] - q[1])*normal[t*3+1] + (p[2] - q[2])*normal[t*3+2])/Math.sqrt(d2);
+        }
+        if(d2 < best - tolerance || facing > bestFacing) {
+          best = Math.min(best, d2);
+          bestFacing = facing;
+          bestTriangle = t;
+        }
+      }
+    }
+    return bestTriangle;
+  }
+
+  /**
+   * Finds the point q on triangle t that is closest to p.
+   * @param p
+   * @param t
+   * @param q set to the closest point
+   * @return the square of the distance from p to q
+   */
+  public double findClosestPoint(double p[], int t, double q[]) {
+    return Geometry.findClosestPoint(p[0], p[1], p[2], soup.getVertices(), t*9, t*9+3, t*9+6, q);
+  }
+
+  /**
+   * Get the square of the distance from p to the box of a node.
+   * @param p
+   * @param node
+   * @return
+   */
+  private double findBoxDistance2(double p[], int node) {
+    int b = node*6;
+    double sum = 0.0;
+    for(int k = 0; k < 3; k++) {
+      double d = Math.max(0.0, Math.max(nodeBox[b+k] - p[k], p[k] - nodeBox[b+k+3]));
+      sum += d*d;
+    }
+    return sum;
+  }
+
+  /**
+   * Get the closest distance from the point (px, py, pz), either way
+   * along the line (dx, dy, dz), at which the line is inside the box of a
+   * node.
+   * @param px
+   * @param py
+   * @param pz
+   * @param dx
+   * @param dy
+   * @param dz
+   * @param node
+   * @return the distance, or Double.MAX_VALUE if the line misses the box
+   */
+  private double findBoxDistance(double px, double py, double pz, double dx, double dy, double dz, int node) {
+    int b = node*6;
+    double tmin = -Double.MAX_VALUE;
+    double tmax = Double.MAX_VALUE;
+    if(dx == 0.0) {
+      if(px < nodeBox[b] || px > nodeBox[b+3]) {
+        return Double.MAX_VALUE;
+      }
+    }
+    else {
+      double t1 = (nodeBox[b] - px)/dx;
+      double t2 = (nodeBox[b+3] - px)/dx;
+      tmin = Math.max(tmin, Math.min(t1, t2));
+      tmax = Math.min(tmax, Math.max(t1, t2));
+    }
+    if(dy == 0.0) {
+      if(py < nodeBox[b+1] || py > nodeBox[b+4]) {
+        return Double.MAX_VALUE;
+      }
+    }
+    else {
+      double t1 = (nodeBox[b+1] - py)/dy;
+      double t2 = (nodeBox[b+4] - py)/dy;
+      tmin = Math.max(tmin, Math.min(t1, t2));
+      tmax = Math.min(tmax, Math.max(t1, t2));
+    }
+    if(dz == 0.0) {
+      if(pz < nodeBox[b+2] || pz > nodeBox[b+5]) {
+        return Double.MAX_VALUE;
+      }
+    }
+    else {
+      double t1 = (nodeBox[b+2] - pz)/dz;
+      double t2 = (nodeBox[b+5] - pz)/dz;
+      tmin = Math.max(tmin, Math.min(t1, t2));
+      tmax = Math.min(tmax, Math.max(t1, t2));
+    }
+    if(tmin > tmax) {
+      return Double.MAX_VALUE;
+    }
+    if(tmin <= 0.0 && tmax >= 0.0) {
+      return 0.0;
+    }
+    return Math.min(Math.abs(tmin), Math.abs(tmax));
+  }
+
+  /**
+   * The stack and closest point a thread uses while it walks a tree. A
+   * query never starts another before it is done, so they can share them.
+   */
+  private static final class Scratch {
+    private int stack[] = new int[64];
+    private final double q[] = new double[3];
+
+    /**
+     * Get a stack with room for at least size nodes.
+     * @param size
+     * @return
+     */
+    private int[] getStack(int size) {
+      if(stack.length < size) {
+        stack = new int[Math.max(size, stack.length*2)];
+      }
+      return stack;
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import artofillusion.math.BoundingBox;
+import artofillusion.math.Mat4;
+import artofillusion.math.Vec3;
+import artofillusion.object.TriangleMesh;
+import artofillusion.object.TriangleMesh.Face;
+
+/**
+ * The faces of a TriangleMesh in world coordinates, kept as flat arrays
+ * so that a point can be checked against all of them without making a
+ * Triangle for each one. Each triangle has nine values in the vertex
+ * array, the three corners one after another, and three values in the
+ * normal array. The normals are of unit length.
+ * <p>
+ * The TriangleHierarchy over the soup is built the first time it is asked
+ * for. When the object moves or is distorted but keeps the same faces,
+ * refit moves the soup to the new positions and refits the tree in place
+ * rather than building it again.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class TriangleSoup {
+  private final int face[]; // three vertex indices per triangle, from the mesh
+  private final double vertex[];
+  private final double normal[];
+  private TriangleHierarchy hierarchy;
+
+  /**
+   * Constructor
+   * Makes an empty soup, for objects that can't be made into triangles.
+   */
+  public TriangleSoup() {
+    face = new int[0];
+    vertex = new double[0];
+    normal = new double[0];
+  }
+
+  /**
+   * Constructor
+   * @param mesh
+   * @param fromLocal
+   */
+  public TriangleSoup(TriangleMesh mesh, Mat4 fromLocal) {
+    Face faces[] = mesh.getFaces();
+    face = new int[faces.length*3];
+    for(int t = 0; t < faces.length; t++) {
+      face[t*3] = faces[t].v1;
+      face[t*3+1] = faces[t].v2;
+      face[t*3+2] = faces[t].v3;
+    }
+    vertex = new double[faces.length*9];
+    normal = new double[faces.length*3];
+    setPositions(mesh.getVertexPositions(), fromLocal);
+  }
+
+  /**
+   * Sets the corners and normals from the vertices of the mesh.
+   * @param vert
+   * @param fromLocal
+   */
+  private void setPositions(Vec3 vert[], Mat4 fromLocal) {
+    Vec3 world[] = new Vec3[vert.length];
+    for(int i = 0; i < vert.length; i++) {
+      world[i] = fromLocal.times(vert[i]);
+    }
+
+    for(int t = 0; t < normal.length/3; t++) {
+      Vec3 p0 = world[face[t*3]];
+      Vec3 p1 = world[face[t*3+1]];
+      Vec3 p2 = world[face[t*3+2]];
+      int v = t*9;
+      vertex[v] = p0.x;
+      vertex[v+1] = p0.y;
+      vertex[v+2] = p0.z;
+      vertex[v+3] = p1.x;
+      vertex[v+4] = p1.y;
+      vertex[v+5] = p1.z;
+      vertex[v+6] = p2.x;
+      vertex[v+7] = p2.y;
+      vertex[v+8] = p2.z;
+
+      Vec3 n = p1.minus(p0).cross(p2.minus(p0));
+      double length = n.length();
+      normal[t*3] = n.x/length;
+      normal[t*3+1] = n.y/length;
+      normal[t*3+2] = n.z/length;
+    }
+  }
+
+  /**
+   * Returns true if the mesh has the same faces as the soup, made of the
+   * same vertices, so that the soup can be refit to it.
+   * @param mesh
+   * @return
+   */
+  public boolean hasSameFaces(TriangleMesh mesh) {
+    Face faces[] = mesh.getFaces();
+    if(faces.length*3 != face.length) {
+      return false;
+    }
+    for(int t = 0; t < faces.length; t++) {
+      if(faces[t].v1 != face[t*3] || faces[t].v2 != face[t*3+1] || faces[t].v3 != face[t*3+2]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves the soup to the vertex positions of a mesh with the same faces
+   * and refits the tree, if there is one, to the new positions.
+   * @param mesh
+   * @param fromLocal
+   */
+  public synchronized void refit(TriangleMesh mesh, Mat4 fromLocal) {
+    setPositions(mesh.getVertexPositions(), fromLocal);
+    if(hierarchy != null) {
+      hierarchy.refit();
+    }
+  }
+
+  /**
+   * Get the number of triangles.
+   * @return
+   */
+  public int getTriangleCount() {
+    return normal.length/3;
+  }
+
+  /**
+   * Get the corners of the triangles, nine values per triangle.
+   * @return
+   */
+  public double[] getVertices() {
+    return vertex;
+  }
+
+  /**
+   * Get the normals of the triangles, three values per triangle.
+   * @return
+   */
+  public double[] getNormals() {
+    return normal;
+  }
+
+  /**
+   * Get the box around all of the triangles.
+   * @return
+   */
+  public BoundingBox getBounds() {
+    if(vertex.length == 0) {
+      return new BoundingBox(0, 0, 0, 0, 0, 0);
+    }
+    BoundingBox B = new BoundingBox(vertex[0], vertex[0], vertex[1], vertex[1], vertex[2], vertex[2]);
+    for(int i = 3; i < vertex.length; i += 3) {
+      B.minx = Math.min(B.minx, vertex[i]);
+      B.maxx = Math.max(B.maxx, vertex[i]);
+      B.miny = Math.min(B.miny, vertex[i+1]);
+      B.maxy = Math.max(B.maxy, vertex[i+1]);
+      B.minz = Math.min(B.minz, vertex[i+2]);
+      B.maxz = Math.max(B.maxz, vertex[i+2]);
+    }
+    return B;
+  }
+
+  /**
+   * Get the tree of boxes over the triangles.
+   * @return
+   */
+  public synchronized TriangleHierarchy getHierarchy() {
+    if(hierarchy == null) {
+      hierarchy = new TriangleHierarchy(this);
+    }
+    return hierarchy;
+  }
+
+  /**
+   * Makes a Triangle from one of the triangles of the soup.
+   * @param t
+   * @return
+   */
+  public Triangle getTriangle(int t) {
+    int v = t*9;
+    return new Triangle(new Vec3(vertex[v], vertex[v+1], vertex[v+2]),
+        new Vec3(vertex[v+3], vertex[v+4], vertex[v+5]),
+        new Vec3(vertex[v+6], vertex[v+7], vertex[v+8]));
+  }
+}
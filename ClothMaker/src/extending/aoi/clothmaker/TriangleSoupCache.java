@@ -0,0 +1,155 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import artofillusion.object.ObjectInfo;
+
+/**
+ * Holds the TriangleSoups of the objects a cloth collides with, so an
+ * object is only turned into triangles once for all the vertices that are
+ * checked against it. A soup is found by the ObjectInfo itself (not an
+ * equal one) and the mesh tolerance, and is kept with the time the object
+ * was at. When the cache is full, the soup that was used longest ago is
+ * dropped.
+ * <p>
+ * Only the soup for the latest time is kept for each object. When the
+ * object is asked for at a new time, the old soup is handed out by
+ * getLatest so it can be refit to the new positions.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class TriangleSoupCache {
+  private final Map<Key, Entry> soups;
+  private int maxEntries;
+
+  /**
+   * Constructor
+   * @param maxEntries the most soups kept at one time
+   */
+  public TriangleSoupCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    soups = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        return size() > TriangleSoupCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Makes room for at least entries soups. A step asks for the soup of
+   * every object the cloth could hit, so a cache smaller than that would
+   * drop each soup before the next step could refit it.
+   * @param entries
+   */
+  public synchronized void ensureCapacity(int entries) {
+    maxEntries = Math.max(maxEntries, entries);
+  }
+
+  /**
+   * Get the soup of an object at a time, or null if it is not in the cache.
+   * @param info
+   * @param time
+   * @param tolerance
+   * @return
+   */
+  public synchronized TriangleSoup get(ObjectInfo info, double time, double tolerance) {
+    Entry entry = soups.get(new Key(info, tolerance));
+    if(entry == null || Double.compare(entry.time, time) != 0) {
+      return null;
+    }
+    return entry.soup;
+  }
+
+  /**
+   * Get the soup of an object at whatever time it was last stored for,
+   * or null if it is not in the cache.
+   * @param info
+   * @param tolerance
+   * @return
+   */
+  public synchronized TriangleSoup getLatest(ObjectInfo info, double tolerance) {
+    Entry entry = soups.get(new Key(info, tolerance));
+    return entry == null ? null : entry.soup;
+  }
+
+  /**
+   * Adds the soup of an object to the cache, in place of the one it had.
+   * @param info
+   * @param time
+   * @param tolerance
+   * @param soup
+   */
+  public synchronized void put(ObjectInfo info, double time, double tolerance, TriangleSoup soup) {
+    soups.put(new Key(info, tolerance), new Entry(time, soup));
+  }
+
+  /**
+   * Drops every soup.
+   */
+  public synchronized void clear() {
+    soups.clear();
+  }
+
+  /**
+   * What a soup is stored under.
+   */
+  private static class Key {
+    private final ObjectInfo info;
+    private final double tolerance;
+
+    Key(ObjectInfo info, double tolerance) {
+      this.info = info;
+      this.tolerance = tolerance;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return info == other.info && Double.compare(tolerance, other.tolerance) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      long bits = Double.doubleToLongBits(tolerance);
+      return System.identityHashCode(info)*31 + (int)(bits ^ (bits >>> 32));
+    }
+  }
+
+  /**
+   * A soup and the time it is for.
+   */
+  private static class Entry {
+    private final double time;
+    private final TriangleSoup soup;
+
+    Entry(double time, TriangleSoup soup) {
+      this.time = time;
+      this.soup = soup;
+    }
+  }
+}
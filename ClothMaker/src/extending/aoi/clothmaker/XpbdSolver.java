@@ -0,0 +1,309 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Moves a ClothState one step forward with extended position based
+ * dynamics (XPBD). The vertices are first moved by their velocity and the
+ * outside forces, then each Spring is treated as a distance constraint
+ * that pulls its two vertices back toward the resting length. How stiff
+ * a constraint is, is given as a compliance (the inverse of stiffness),
+ * so a compliance of 0 gives springs that do not stretch at all.
+ * <p>
+ * The constraints are worked through a fixed number of times per step,
+ * either Gauss-Seidel, where each constraint sees the corrections of the
+ * ones before it, or Jacobi, where all constraints look at the same
+ * positions and the corrections are averaged at each vertex. Gauss-Seidel
+ * goes through the spring colors one after another, so it needs fewer
+ * iterations, but Jacobi can spread all springs over the threads at once.
+ * The damping constant damps the stretching of the constraints.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class XpbdSolver {
+  // Scale applied to averaged Jacobi corrections to speed up convergence
+  static final double JACOBI_RELAXATION = 1.5;
+
+  private final ClothState cur;
+  private final ForkJoinPool pool;
+  private final double h; // time step
+  private final double alpha; // compliance divided by h*h
+  private final double gamma; // damping term of the constraints
+  private final int iterations;
+  private final boolean jacobi;
+  private final double invMass[]; // zero for vertices that do not move
+  private final double lambda[]; // total Lagrange multiplier of each spring
+  private final double springDir[]; // direction of each spring's correction, three values per spring
+  private final double springDelta[]; // correction of each spring in the current Jacobi iteration
+
+  /**
+   * Constructor
+   * @param cur
+   * @param h
+   * @param compliance
+   * @param dampingConstant
+   * @param iterations
+   * @param jacobi
+   * @param pool
+   */
+  public XpbdSolver(ClothState cur, double h, double compliance, double dampingConstant, int iterations, boolean jacobi, ForkJoinPool pool) {
+    this.cur = cur;
+    this.h = h;
+    this.alpha = compliance/(h*h);
+    this.gamma = compliance*dampingConstant/h;
+    this.iterations = iterations;
+    this.jacobi = jacobi;
+    this.pool = pool;
+    int springCount = cur.getTopology().getSpringCount();
+    invMass = new double[cur.getVertexCount()];
+    lambda = new double[springCount];
+    springDir = jacobi ? new double[springCount*3] : null;
+    springDelta = jacobi ? new double[springCount] : null;
+  }
+
+  /**
+   * Moves the cloth from cur into next.
+   * @param force the gravity and wind on each vertex, three values per vertex
+   * @param next
+   */
+  public void step(final double force[], final ClothState next) {
+    final int POINTS_TOTAL = cur.getVertexCount();
+    ParallelLoop.run(pool, 0, POINTS_TOTAL, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        predict(force, next, first, last);
+      }
+    });
+
+    ClothTopology topology = cur.getTopology();
+    final double P[] = next.getPositions();
+    if(jacobi) {
+      ParallelLoop.Body springs = new ParallelLoop.Body() {
+        public void run(int first, int last) {
+          findCorrections(P, first, last);
+        }
+      };
+      ParallelLoop.Body vertices = new ParallelLoop.Body() {
+        public void run(int first, int last) {
+          applyCorrections(P, first, last);
+        }
+      };
+      for(int it = 0; it < iterations; it++) {
+        ParallelLoop.run(pool, 0, topology.getSpringCount(), springs);
+        ParallelLoop.run(pool, 0, POINTS_TOTAL, vertices);
+      }
+    }
+    else {
+      int colorStart[] = topology.getColorStart();
+      ParallelLoop.Body springs = new ParallelLoop.Body() {
+        public void run(int first, int last) {
+          project(P, first, last);
+        }
+      };
+      for(int it = 0; it < iterations; it++) {
+        for(int color = 0; color < topology.getColorCount(); color++) {
+          ParallelLoop.run(pool, colorStart[color], colorStart[color+1], springs);
+        }
+      }
+    }
+
+    ParallelLoop.run(pool, 0, POINTS_TOTAL, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        updateVelocities(next, first, last);
+      }
+    });
+  }
+
+  /**
+   * Moves the vertices from first up to, but not including, last by
+   * their velocity and the outside forces, ignoring the springs.
+   * @param force
+   * @param next
+   * @param first
+   * @param last
+   */
+  private void predict(double force[], ClothState next, int first, int last) {
+    int adjStart[] = cur.getTopology().getAdjacencyStart();
+    boolean pinned[] = cur.getPinned();
+    double W[] = cur.getMasses();
+    double P[] = cur.getPositions();
+    double V[] = cur.getVelocities();
+    double newP[] = next.getPositions();
+
+    for(int pt = first; pt < last; pt++) {
+      // A pinned vertex, or one without springs, does not move.
+      boolean fixed = pinned[pt] || adjStart[pt] == adjStart[pt+1];
+      invMass[pt] = fixed ? 0.0 : 1.0/W[pt];
+      for(int i = pt*3; i < pt*3+3; i++) {
+        newP[i] = fixed ? P[i] : P[i] + h*(V[i] + h*force[i]*invMass[pt]);
+      }
+    }
+  }
+
+  /**
+   * Finds the change in the Lagrange multiplier of spring s, given the
+   * direction and length of the spring.
+   * @param P
+   * @param s
+   * @param a
+   * @param b
+   * @param nx
+   * @param ny
+   * @param nz
+   * @param x
+   * @return
+   */
+  private double deltaLambda(double P[], int s, int a, int b, double nx, double ny, double nz, double x) {
+    double Q[] = cur.getPositions();
+    double w = invMass[a/3] + invMass[b/3];
+    if(w == 0.0) {
+      return 0.0;
+    }
+    double C = x - cur.getTopology().getRestLengths()[s];
+    // How fast the constraint is stretching, measured from the start of the step
+    double moved = nx*(P[a] - Q[a] - P[b] + Q[b]) + ny*(P[a+1] - Q[a+1] - P[b+1] + Q[b+1]) + nz*(P[a+2] - Q[a+2] - P[b+2] + Q[b+2]);
+    return (-C - alpha*lambda[s] - gamma*moved)/((1.0 + gamma)*w + alpha);
+  }
+
+  /**
+   * Gauss-Seidel: applies the springs at positions first up to, but not
+   * including, last of the colored spring list straight to P. The springs
+   * of one color share no vertex, so they can be done at the same time.
+   * @param P
+   * @param first
+   * @param last
+   */
+  private void project(double P[], int first, int last) {
+    ClothTopology topology = cur.getTopology();
+    int coloredSprings[] = topology.getColoredSprings();
+    int springA[] = topology.getSpringA();
+    int springB[] = topology.getSpringB();
+
+    for(int n = first; n < last; n++) {
+      int s = coloredSprings[n];
+      int a = springA[s]*3;
+      int b = springB[s]*3;
+      double dx = P[a] - P[b];
+      double dy = P[a+1] - P[b+1];
+      double dz = P[a+2] - P[b+2];
+      double x = Math.sqrt(dx*dx + dy*dy + dz*dz);
+      if(x == 0.0) {
+        continue;
+      }
+      double nx = dx/x;
+      double ny = dy/x;
+      double nz = dz/x;
+      double dl = deltaLambda(P, s, a, b, nx, ny, nz, x);
+      lambda[s] += dl;
+      double wa = invMass[a/3]*dl;
+      double wb = invMass[b/3]*dl;
+      P[a] += wa*nx;
+      P[a+1] += wa*ny;
+      P[a+2] += wa*nz;
+      P[b] -= wb*nx;
+      P[b+1] -= wb*ny;
+      P[b+2] -= wb*nz;
+    }
+  }
+
+  /**
+   * Jacobi: finds the correction of the springs from first up to, but not
+   * including, last without moving any vertex.
+   * @param P
+   * @param first
+   * @param last
+   */
+  private void findCorrections(double P[], int first, int last) {
+    ClothTopology topology = cur.getTopology();
+    int springA[] = topology.getSpringA();
+    int springB[] = topology.getSpringB();
+
+    for(int s = first; s < last; s++) {
+      int a = springA[s]*3;
+      int b = springB[s]*3;
+      double dx = P[a] - P[b];
+      double dy = P[a+1] - P[b+1];
+      double dz = P[a+2] - P[b+2];
+      double x = Math.sqrt(dx*dx + dy*dy + dz*dz);
+      if(x == 0.0) {
+        springDelta[s] = 0.0;
+        continue;
+      }
+      double nx = dx/x;
+      double ny = dy/x;
+      double nz = dz/x;
+      springDir[s*3] = nx;
+      springDir[s*3+1] = ny;
+      springDir[s*3+2] = nz;
+      springDelta[s] = deltaLambda(P, s, a, b, nx, ny, nz, x);
+      lambda[s] += springDelta[s];
+    }
+  }
+
+  /**
+   * Jacobi: moves the vertices from first up to, but not including, last
+   * by the average correction of their springs.
+   * @param P
+   * @param first
+   * @param last
+   */
+  private void applyCorrections(double P[], int first, int last) {
+    ClothTopology topology = cur.getTopology();
+    int adjStart[] = topology.getAdjacencyStart();
+    int adjSpring[] = topology.getAdjacentSprings();
+    int springA[] = topology.getSpringA();
+
+    for(int pt = first; pt < last; pt++) {
+      if(invMass[pt] == 0.0) {
+        continue;
+      }
+      double cx = 0.0, cy = 0.0, cz = 0.0;
+      for(int j = adjStart[pt]; j < adjStart[pt+1]; j++) {
+        int s = adjSpring[j];
+        // The correction pushes a along the spring direction and b against it.
+        double dl = springA[s] == pt ? springDelta[s] : -springDelta[s];
+        cx += dl*springDir[s*3];
+        cy += dl*springDir[s*3+1];
+        cz += dl*springDir[s*3+2];
+      }
+      double scale = JACOBI_RELAXATION*invMass[pt]/(adjStart[pt+1] - adjStart[pt]);
+      P[pt*3] += scale*cx;
+      P[pt*3+1] += scale*cy;
+      P[pt*3+2] += scale*cz;
+    }
+  }
+
+  /**
+   * Sets the velocity of the vertices from first up to, but not including,
+   * last from how far they moved during the step.
+   * @param next
+   * @param first
+   * @param last
+   */
+  private void updateVelocities(ClothState next, int first, int last) {
+    double P[] = cur.getPositions();
+    double newP[] = next.getPositions();
+    double newV[] = next.getVelocities();
+
+    for(int i = first*3; i < last*3; i++) {
+      newV[i] = (newP[i] - P[i])/h;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import artofillusion.Scene;
+import artofillusion.math.Vec3;
+
+/**
+ * Checks that frames written by FrameCodec are read back with the same
+ * numbers and with every position within half a grid step of where it
+ * was, and that a damaged or cut off stream is found out.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class FrameCodecTest {
+  private static final int FIRST_FRAME = -3;
+  private static final int FRAMES = 40; // two full blocks and a part one
+
+  /**
+   * Runs the checks.
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String args[]) throws IOException {
+    Scene scene = new Scene();
+    List<SimFrame> frames = makeFrames(scene, FRAMES);
+    byte bytes[] = write(scene, frames);
+    checkRoundTrip(frames, read(scene, bytes));
+    checkRoundTrip(new ArrayList<SimFrame>(), read(scene, write(scene, new ArrayList<SimFrame>())));
+    checkCutOff(scene, bytes);
+    checkDamagedBlock(scene, bytes);
+    checkBadLengths(scene, write(scene, makeFrames(scene, FrameCodec.FRAMES_PER_BLOCK)));
+    System.out.println("FrameCodecTest passed");
+  }
+
+  /**
+   * Makes frames of a cloth that waves and falls.
+   * @param scene
+   * @param count
+   * @return
+   */
+  private static List<SimFrame> makeFrames(Scene scene, int count) {
+    Cloth cloth = TestSupport.makeCloth(scene);
+    Vec3 rest[] = cloth.getVertexPositions();
+    List<SimFrame> frames = new ArrayList<SimFrame>();
+    SimFrame like = null;
+    for(int f = FIRST_FRAME; f < FIRST_FRAME + count; f++) {
+      Vec3 v[] = new Vec3[rest.length];
+      for(int i = 0; i < v.length; i++) {
+        v[i] = new Vec3(rest[i].x + 0.1*Math.sin(f*0.3 + i), rest[i].y - 0.01*f*f, rest[i].z + 0.05*Math.cos(f*0.2*i));
+      }
+      cloth.setVertexPositions(v);
+      like = new SimFrame(f, cloth, like, false, null);
+      frames.add(like);
+    }
+    return frames;
+  }
+
+  /**
+   * Checks that the frames read have the numbers of the frames written,
+   * and their positions within half a grid step.
+   * @param written
+   * @param read
+   */
+  private static void checkRoundTrip(List<SimFrame> written, List<SimFrame> read) {
+    TestSupport.check(read.size() == written.size(), "as many frames read as written");
+    if(written.isEmpty()) {
+      return;
+    }
+    double min[] = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+    double max[] = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+    for(SimFrame frame : written) {
+      double p[] = frame.getPositions();
+      for(int i = 0; i < p.length; i++) {
+        min[i%3] = Math.min(min[i%3], p[i]);
+        max[i%3] = Math.max(max[i%3], p[i]);
+      }
+    }
+    double tolerance[] = new double[3];
+    for(int k = 0; k < 3; k++) {
+      tolerance[k] = 0.5*(max[k] - min[k])/((1 << FrameCodec.GRID_BITS) - 1)*(1.0 + 1e-9);
+    }
+    for(int f = 0; f < written.size(); f++) {
+      SimFrame a = written.get(f);
+      SimFrame b = read.get(f);
+      TestSupport.check(a.frameNumber == b.frameNumber, "frame number " + a.frameNumber + " read back");
+      TestSupport.check(b.isReadable(), "frame " + a.frameNumber + " readable");
+      double p[] = a.getPositions();
+      double q[] = b.getPositions();
+      TestSupport.check(p.length == q.length, "vertices of frame " + a.frameNumber);
+      for(int i = 0; i < p.length; i++) {
+        TestSupport.checkClose(p[i], q[i], tolerance[i%3], "value " + i + " of frame " + a.frameNumber);
+      }
+      Vec3 v[] = b.getCloth().getVertexPositions();
+      for(int i = 0; i < v.length; i++) {
+        TestSupport.check(v[i].x == q[i*3] && v[i].y == q[i*3+1] && v[i].z == q[i*3+2], "cloth of frame " + a.frameNumber);
+      }
+    }
+  }
+
+  /**
+   * Checks that a stream that ends early can't be read.
+   * @param scene
+   * @param bytes
+   */
+  private static void checkCutOff(Scene scene, byte bytes[]) {
+    try {
+      read(scene, Arrays.copyOf(bytes, bytes.length - 10));
+      TestSupport.check(false, "a cut off stream is not read");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Checks that damaging the last block leaves its frames unreadable and
+   * the frames of the other blocks as they were.
+   * @param scene
+   * @param bytes
+   * @throws IOException
+   */
+  private static void checkDamagedBlock(Scene scene, byte bytes[]) throws IOException {
+    byte damaged[] = bytes.clone();
+    // the last bytes are the checksum of the last block
+    damaged[damaged.length - 1] ^= 0x55;
+    List<SimFrame> frames = read(scene, damaged);
+    int lastBlock = (FRAMES - 1)/FrameCodec.FRAMES_PER_BLOCK*FrameCodec.FRAMES_PER_BLOCK;
+    for(int f = 0; f < frames.size(); f++) {
+      TestSupport.check(frames.get(f).isReadable() == (f < lastBlock), "only the frames of the damaged block are unreadable");
+    }
+  }
+
+  /**
+   * Checks that a block whose lengths are more than the stream can hold is
+   * turned down before anything that size is made. The frames must fit in
+   * one block.
+   * @param scene
+   * @param bytes
+   * @throws IOException
+   */
+  private static void checkBadLengths(Scene scene, byte bytes[]) throws IOException {
+    // the stream ends with the inflated length, the packed length and the packed bytes
+    int at = -1;
+    for(int i = bytes.length - 8; i >= 0 && at < 0; i--) {
+      if(ByteBuffer.wrap(bytes, i + 4, 4).getInt() == bytes.length - i - 8) {
+        at = i;
+      }
+    }
+    TestSupport.check(at >= 0, "block found");
+
+    byte tooLong[] = bytes.clone();
+    ByteBuffer.wrap(tooLong, at, 4).putInt(Integer.MAX_VALUE);
+    try {
+      read(scene, tooLong);
+      TestSupport.check(false, "an inflated length too long for the frames is turned down");
+    } catch (InvalidObjectException e) {
+      // expected
+    }
+
+    byte pastEnd[] = bytes.clone();
+    ByteBuffer.wrap(pastEnd, at + 4, 4).putInt(Integer.MAX_VALUE);
+    try {
+      read(scene, pastEnd);
+      TestSupport.check(false, "a packed length past the end of the stream is turned down");
+    } catch (EOFException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Writes frames with FrameCodec.
+   * @param scene
+   * @param frames
+   * @return
+   * @throws IOException
+   */
+  private static byte[] write(Scene scene, List<SimFrame> frames) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    FrameCodec.write(out, scene, frames);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Reads frames with FrameCodec.
+   * @param scene
+   * @param bytes
+   * @return
+   * @throws IOException
+   */
+  private static List<SimFrame> read(Scene scene, byte bytes[]) throws IOException {
+    List<SimFrame> frames = new ArrayList<SimFrame>();
+    FrameCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)), scene, frames);
+    return frames;
+  }
+}
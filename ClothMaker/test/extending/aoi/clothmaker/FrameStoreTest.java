@@ -0,0 +1,145 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import artofillusion.Scene;
+
+/**
+ * Checks FrameStore against a TreeMap of the same frames through a run
+ * of random puts, truncations and replacements. After each change the
+ * last fifty snapshots must still look up the frames they had when they
+ * were taken, since adding a frame can share the arrays of the last one.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class FrameStoreTest {
+  private static final int CHANGES = 2000;
+
+  /**
+   * Runs the checks.
+   * @param args
+   */
+  public static void main(String args[]) {
+    SimFrame base = new SimFrame(0, TestSupport.makeCloth(new Scene()));
+    checkKnownFrames(base);
+
+    Random random = new Random(22);
+    FrameStore store = new FrameStore();
+    TreeMap<Integer, SimFrame> expected = new TreeMap<Integer, SimFrame>();
+    List<FrameStore.Snapshot> snapshots = new ArrayList<FrameStore.Snapshot>();
+    List<TreeMap<Integer, SimFrame>> snapshotFrames = new ArrayList<TreeMap<Integer, SimFrame>>();
+    int next = -5;
+    for(int i = 0; i < CHANGES; i++) {
+      int change = random.nextInt(20);
+      if(change < 14) {
+        // mostly the next frame, the way a simulation stores them
+        SimFrame frame = new SimFrame(next, base);
+        next += 1 + (random.nextInt(10) == 0 ? random.nextInt(5) : 0);
+        store.put(frame);
+        expected.put(frame.frameNumber, frame);
+      }
+      else if(change < 17) {
+        SimFrame frame = new SimFrame(next - 1 - random.nextInt(40), base);
+        store.put(frame);
+        expected.put(frame.frameNumber, frame);
+      }
+      else if(change < 19) {
+        int n = next - random.nextInt(40);
+        store.truncateAfter(n);
+        Integer kept = expected.ceilingKey(n);
+        if(kept != null) {
+          expected.tailMap(kept, false).clear();
+        }
+        next = expected.isEmpty() ? next : expected.lastKey() + 1;
+      }
+      else {
+        List<SimFrame> frames = new ArrayList<SimFrame>(expected.values());
+        SimFrame again = new SimFrame(frames.isEmpty() ? next : frames.get(0).frameNumber, base);
+        frames.add(again);
+        store.setFrames(frames);
+        expected.put(again.frameNumber, again);
+      }
+      snapshots.add(store.getSnapshot());
+      snapshotFrames.add(new TreeMap<Integer, SimFrame>(expected));
+      for(int s = Math.max(0, snapshots.size() - 50); s < snapshots.size(); s++) {
+        checkSnapshot(snapshots.get(s), snapshotFrames.get(s));
+      }
+    }
+    store.clear();
+    TestSupport.check(store.getSnapshot().isEmpty(), "clear drops every frame");
+    System.out.println("FrameStoreTest passed");
+  }
+
+  /**
+   * Checks the look ups of a few frames whose answers are known.
+   * @param base
+   */
+  private static void checkKnownFrames(SimFrame base) {
+    FrameStore store = new FrameStore();
+    FrameStore.Snapshot empty = store.getSnapshot();
+    TestSupport.check(empty.isEmpty() && empty.first() == null && empty.last() == null
+        && empty.ceiling(0) == null && empty.lower(0) == null, "empty store finds nothing");
+    for(int n : new int[] {-2, 0, 1, 5}) {
+      store.put(new SimFrame(n, base));
+    }
+    FrameStore.Snapshot s = store.getSnapshot();
+    TestSupport.check(s.size() == 4 && s.first().frameNumber == -2 && s.last().frameNumber == 5, "first and last");
+    TestSupport.check(s.ceiling(2).frameNumber == 5 && s.lower(5).frameNumber == 1, "look ups across a gap");
+    TestSupport.check(s.ceiling(-10).frameNumber == -2 && s.lower(-2) == null, "look ups before the first frame");
+    TestSupport.check(s.ceiling(6) == null && s.lower(100).frameNumber == 5, "look ups after the last frame");
+    SimFrame replaced = s.ceiling(1);
+    store.put(new SimFrame(1, base));
+    TestSupport.check(s.ceiling(1) == replaced && store.getSnapshot().ceiling(1) != replaced, "a replaced frame stays in the old snapshot");
+    store.truncateAfter(2);
+    TestSupport.check(store.getSnapshot().last().frameNumber == 5, "truncate keeps the first frame at or after the number");
+    store.truncateAfter(0);
+    TestSupport.check(store.getSnapshot().last().frameNumber == 0 && s.last().frameNumber == 5, "truncate drops the frames after it");
+  }
+
+  /**
+   * Checks every look up of a snapshot against the frames it should have.
+   * @param snapshot
+   * @param frames
+   */
+  private static void checkSnapshot(FrameStore.Snapshot snapshot, TreeMap<Integer, SimFrame> frames) {
+    TestSupport.check(snapshot.size() == frames.size(), "size of a snapshot");
+    if(frames.isEmpty()) {
+      TestSupport.check(snapshot.isEmpty() && snapshot.first() == null && snapshot.last() == null, "empty snapshot");
+      return;
+    }
+    TestSupport.check(snapshot.first() == frames.firstEntry().getValue(), "first frame");
+    TestSupport.check(snapshot.last() == frames.lastEntry().getValue(), "last frame");
+    int i = 0;
+    for(SimFrame frame : frames.values()) {
+      TestSupport.check(snapshot.get(i++) == frame, "frame in order");
+    }
+    for(int n = frames.firstKey() - 2; n <= frames.lastKey() + 2; n++) {
+      Map.Entry<Integer, SimFrame> ceiling = frames.ceilingEntry(n);
+      Map.Entry<Integer, SimFrame> lower = frames.lowerEntry(n);
+      TestSupport.check(snapshot.ceiling(n) == (ceiling == null ? null : ceiling.getValue()), "ceiling of " + n);
+      TestSupport.check(snapshot.lower(n) == (lower == null ? null : lower.getValue()), "lower of " + n);
+    }
+  }
+}
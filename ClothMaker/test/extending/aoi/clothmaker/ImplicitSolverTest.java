@@ -0,0 +1,114 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+/**
+ * Checks ImplicitSolver on a single spring, with one end pinned, against
+ * backward Euler worked out by hand. Along the spring the system is the
+ * single equation
+ * <pre>
+ *   (m + h*c + h*h*k) dv = h*(f - k*d)
+ * </pre>
+ * for a spring stretched by d, and across it, where a spring at its
+ * resting length has no stiffness, it is m dv = h*f.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ImplicitSolverTest {
+  private static final double REST_LENGTH = 0.1;
+  private static final double MASS = 0.002;
+  private static final double K = 40.0;
+  private static final double C = 0.05;
+  private static final double H = 1.0/240;
+  private static final double TOLERANCE = 1e-12;
+
+  /**
+   * Runs the checks.
+   * @param args
+   */
+  public static void main(String args[]) {
+    checkStretched();
+    checkPulledAlong();
+    checkPulledAcross();
+    System.out.println("ImplicitSolverTest passed");
+  }
+
+  /**
+   * A stretched spring with nothing else on it pulls the free end back.
+   */
+  private static void checkStretched() {
+    double stretch = 1.25;
+    double d = REST_LENGTH*(stretch - 1.0);
+    ClothState next = step(stretch, new double[6]);
+    double dv = -H*K*d/(MASS + H*C + H*H*K);
+    TestSupport.checkClose(dv, next.getVelocities()[3], TOLERANCE, "velocity of the free end");
+    TestSupport.checkClose(REST_LENGTH*stretch + H*dv, next.getPositions()[3], TOLERANCE, "position of the free end");
+    checkUnmoved(next);
+  }
+
+  /**
+   * A force along a spring at its resting length is resisted by the
+   * spring and the damping.
+   */
+  private static void checkPulledAlong() {
+    double f = 0.3;
+    ClothState next = step(1.0, new double[] {0, 0, 0, f, 0, 0});
+    double dv = H*f/(MASS + H*C + H*H*K);
+    TestSupport.checkClose(dv, next.getVelocities()[3], TOLERANCE, "velocity along the spring");
+    TestSupport.checkClose(REST_LENGTH + H*dv, next.getPositions()[3], TOLERANCE, "position along the spring");
+    checkUnmoved(next);
+  }
+
+  /**
+   * A force across a spring at its resting length moves the free end as
+   * if there were no spring.
+   */
+  private static void checkPulledAcross() {
+    double f = 0.3;
+    ClothState next = step(1.0, new double[] {0, 0, 0, 0, f, 0});
+    double dv = H*f/MASS;
+    TestSupport.checkClose(dv, next.getVelocities()[4], TOLERANCE, "velocity across the spring");
+    TestSupport.checkClose(H*dv, next.getPositions()[4], TOLERANCE, "position across the spring");
+    TestSupport.checkClose(REST_LENGTH, next.getPositions()[3], TOLERANCE, "position along the spring");
+    checkUnmoved(next);
+  }
+
+  /**
+   * Checks that the pinned end stayed where it was.
+   * @param next
+   */
+  private static void checkUnmoved(ClothState next) {
+    for(int i = 0; i < 3; i++) {
+      TestSupport.check(next.getPositions()[i] == 0.0 && next.getVelocities()[i] == 0.0, "pinned end did not move");
+    }
+  }
+
+  /**
+   * Moves a spring stretched to stretch times its resting length one step.
+   * @param stretch
+   * @param force
+   * @return
+   */
+  private static ClothState step(double stretch, double force[]) {
+    ClothState cur = TestSupport.makeChain(2, REST_LENGTH, stretch, MASS, K);
+    ClothState next = new ClothState(cur);
+    new ImplicitSolver(cur, H, K, C, null).step(force, next);
+    return next;
+  }
+}
@@ -0,0 +1,187 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that a loop run by ParallelLoop gives the same result on any
+ * number of threads as it does on the calling thread alone, down to the
+ * last bit, and that the solvers built on it do too.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class ParallelLoopTest {
+  // Threads in the pools that are compared with running on one thread
+  private static final int THREADS[] = {1, 2, 4, 7};
+
+  /**
+   * Runs the checks.
+   * @param args
+   */
+  public static void main(String args[]) {
+    for(int threads : THREADS) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        for(int count : new int[] {0, 1, 255, 513, 100000}) {
+          checkEveryIndexOnce(pool, count);
+          checkRun(pool, count);
+          checkSum(pool, count);
+        }
+        checkImplicitStep(pool);
+        checkXpbdStep(pool, false);
+        checkXpbdStep(pool, true);
+      }
+      finally {
+        pool.shutdown();
+      }
+    }
+    System.out.println("ParallelLoopTest passed");
+  }
+
+  /**
+   * Checks that each index is handed to the body once.
+   * @param pool
+   * @param count
+   */
+  private static void checkEveryIndexOnce(ForkJoinPool pool, int count) {
+    final int visits[] = new int[count];
+    ParallelLoop.run(pool, 0, count, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        for(int i = first; i < last; i++) {
+          visits[i]++;
+        }
+      }
+    });
+    for(int i = 0; i < count; i++) {
+      TestSupport.check(visits[i] == 1, "index " + i + " of " + count + " run once");
+    }
+  }
+
+  /**
+   * Checks that a body writing its own indices gives the same values as
+   * it does on one thread.
+   * @param pool
+   * @param count
+   */
+  private static void checkRun(ForkJoinPool pool, int count) {
+    final double serial[] = new double[count];
+    final double parallel[] = new double[count];
+    ParallelLoop.run(null, 0, count, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        for(int i = first; i < last; i++) {
+          serial[i] = Math.sin(i)*Math.sqrt(i);
+        }
+      }
+    });
+    ParallelLoop.run(pool, 0, count, new ParallelLoop.Body() {
+      public void run(int first, int last) {
+        for(int i = first; i < last; i++) {
+          parallel[i] = Math.sin(i)*Math.sqrt(i);
+        }
+      }
+    });
+    TestSupport.check(Arrays.equals(serial, parallel), "run of " + count + " the same on " + pool.getParallelism() + " threads");
+  }
+
+  /**
+   * Checks that a sum, whose value depends on the order it is added up
+   * in, comes out the same as it does on one thread.
+   * @param pool
+   * @param count
+   */
+  private static void checkSum(ForkJoinPool pool, int count) {
+    ParallelLoop.Sum terms = new ParallelLoop.Sum() {
+      public double run(int first, int last) {
+        double sum = 0.0;
+        for(int i = first; i < last; i++) {
+          sum += Math.sin(i)*1.0e3/(i + 1);
+        }
+        return sum;
+      }
+    };
+    double serial = ParallelLoop.sum(null, 0, count, terms);
+    double parallel = ParallelLoop.sum(pool, 0, count, terms);
+    TestSupport.check(Double.doubleToLongBits(serial) == Double.doubleToLongBits(parallel),
+        "sum of " + count + " the same on " + pool.getParallelism() + " threads");
+  }
+
+  /**
+   * Checks that a step of the implicit solver on a long chain moves every
+   * vertex to the same place as it does on one thread.
+   * @param pool
+   */
+  private static void checkImplicitStep(ForkJoinPool pool) {
+    double force[] = gravity(3000);
+    ClothState serial = step(null, force, true, false);
+    ClothState parallel = step(pool, force, true, false);
+    TestSupport.check(Arrays.equals(serial.getPositions(), parallel.getPositions())
+        && Arrays.equals(serial.getVelocities(), parallel.getVelocities()),
+        "implicit step the same on " + pool.getParallelism() + " threads");
+  }
+
+  /**
+   * Checks that a step of the XPBD solver on a long chain moves every
+   * vertex to the same place as it does on one thread.
+   * @param pool
+   * @param jacobi
+   */
+  private static void checkXpbdStep(ForkJoinPool pool, boolean jacobi) {
+    double force[] = gravity(3000);
+    ClothState serial = step(null, force, false, jacobi);
+    ClothState parallel = step(pool, force, false, jacobi);
+    TestSupport.check(Arrays.equals(serial.getPositions(), parallel.getPositions())
+        && Arrays.equals(serial.getVelocities(), parallel.getVelocities()),
+        "XPBD step the same on " + pool.getParallelism() + " threads, jacobi " + jacobi);
+  }
+
+  /**
+   * Moves a stretched chain one step with one of the solvers.
+   * @param pool
+   * @param force
+   * @param implicit true for ImplicitSolver, false for XpbdSolver
+   * @param jacobi
+   * @return the chain after the step
+   */
+  private static ClothState step(ForkJoinPool pool, double force[], boolean implicit, boolean jacobi) {
+    ClothState cur = TestSupport.makeChain(force.length/3, 0.01, 1.1, 0.001, 25.0);
+    ClothState next = new ClothState(cur);
+    if(implicit) {
+      new ImplicitSolver(cur, 1.0/120, 25.0, 0.01, pool).step(force, next);
+    }
+    else {
+      new XpbdSolver(cur, 1.0/120, 0.0001, 0.01, 10, jacobi, pool).step(force, next);
+    }
+    return next;
+  }
+
+  /**
+   * Makes the force of gravity on vertices of mass 0.001.
+   * @param count
+   * @return
+   */
+  private static double[] gravity(int count) {
+    double force[] = new double[count*3];
+    for(int i = 0; i < count; i++) {
+      force[i*3+1] = -9.8*0.001;
+    }
+    return force;
+  }
+}
@@ -0,0 +1,101 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import artofillusion.Scene;
+import artofillusion.math.CoordinateSystem;
+import artofillusion.math.Vec3;
+import artofillusion.object.Cube;
+import artofillusion.object.ObjectInfo;
+
+/**
+ * What the checks of the plugin have in common. Each check is a class
+ * with a main method that throws an AssertionError at the first thing
+ * that is wrong, and prints a line when everything is right. They are
+ * run with the plugin and ArtOfIllusion.jar on the class path.
+ *
+ * @author Timothy Fish
+ *
+ */
+final class TestSupport {
+
+  private TestSupport() {
+  }
+
+  /**
+   * Fails if ok is false.
+   * @param ok
+   * @param what what was expected
+   */
+  static void check(boolean ok, String what) {
+    if(!ok) {
+      throw new AssertionError(what);
+    }
+  }
+
+  /**
+   * Fails if actual is further than tolerance from expected.
+   * @param expected
+   * @param actual
+   * @param tolerance
+   * @param what
+   */
+  static void checkClose(double expected, double actual, double tolerance, String what) {
+    if(!(Math.abs(expected - actual) <= tolerance)) {
+      throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+    }
+  }
+
+  /**
+   * Makes a small square of cloth from a flat cube, with the default
+   * texture of the scene so it can be written to a file.
+   * @param scene
+   * @return
+   */
+  static Cloth makeCloth(Scene scene) {
+    Cube cube = new Cube(1.0, 0.02, 1.0);
+    cube.setTexture(scene.getDefaultTexture(), scene.getDefaultTexture().getDefaultMapping(cube));
+    ObjectInfo info = new ObjectInfo(cube, new CoordinateSystem(), "Cube");
+    return new Cloth(info, 0.05, 0.25, 1.0, 0.1, 0.01);
+  }
+
+  /**
+   * Makes a line of vertices along x, each joined to the next by a spring
+   * stretched to stretch times its resting length. The first vertex is
+   * pinned.
+   * @param count
+   * @param restLength
+   * @param stretch
+   * @param vertexMass
+   * @param springConstant
+   * @return
+   */
+  static ClothState makeChain(int count, double restLength, double stretch, double vertexMass, double springConstant) {
+    Mass masses[] = new Mass[count];
+    for(int i = 0; i < count; i++) {
+      masses[i] = new Mass(new Vec3(i*restLength*stretch, 0, 0), i, vertexMass, new Vec3());
+    }
+    Spring springs[] = new Spring[count - 1];
+    for(int i = 0; i < springs.length; i++) {
+      springs[i] = new Spring(masses[i], masses[i+1], restLength, springConstant);
+    }
+    boolean pinned[] = new boolean[count];
+    pinned[0] = true;
+    return new ClothState(new ClothTopology(count, springs), masses, vertexMass, pinned);
+  }
+}
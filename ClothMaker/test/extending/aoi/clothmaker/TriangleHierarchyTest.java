@@ -0,0 +1,150 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+import java.util.Random;
+
+import artofillusion.math.Mat4;
+import artofillusion.math.Vec3;
+import artofillusion.object.TriangleMesh;
+
+/**
+ * Checks the queries of TriangleHierarchy against testing every triangle
+ * of the soup, on a cloud of random triangles and again after the
+ * triangles are moved and the tree is refit.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class TriangleHierarchyTest {
+  private static final int TRIANGLES = 2000;
+  private static final int QUERIES = 2000;
+  private static final double TRIANGLE_SIZE = 0.05;
+
+  /**
+   * Runs the checks.
+   * @param args
+   */
+  public static void main(String args[]) {
+    Random random = new Random(11);
+    Vec3 vert[] = new Vec3[TRIANGLES*3];
+    int faces[][] = new int[TRIANGLES][];
+    for(int t = 0; t < TRIANGLES; t++) {
+      Vec3 center = new Vec3(random.nextDouble(), random.nextDouble(), random.nextDouble());
+      for(int k = 0; k < 3; k++) {
+        vert[t*3+k] = center.plus(randomDirection(random).times(TRIANGLE_SIZE));
+      }
+      faces[t] = new int[] {t*3, t*3+1, t*3+2};
+    }
+    TriangleSoup soup = new TriangleSoup(new TriangleMesh(vert, faces), Mat4.identity());
+    TriangleHierarchy tree = soup.getHierarchy();
+    checkQueries(tree, random);
+
+    for(int i = 0; i < vert.length; i++) {
+      vert[i] = vert[i].plus(randomDirection(random).times(TRIANGLE_SIZE*0.5));
+    }
+    soup.refit(new TriangleMesh(vert, faces), Mat4.identity());
+    TestSupport.check(soup.getHierarchy() == tree, "refit kept the tree");
+    checkQueries(tree, random);
+    System.out.println("TriangleHierarchyTest passed");
+  }
+
+  /**
+   * Makes random lines and points and checks that the tree finds what
+   * testing every triangle finds.
+   * @param tree
+   * @param random
+   */
+  private static void checkQueries(TriangleHierarchy tree, Random random) {
+    for(int i = 0; i < QUERIES; i++) {
+      Vec3 point = new Vec3(random.nextDouble()*1.4 - 0.2, random.nextDouble()*1.4 - 0.2, random.nextDouble()*1.4 - 0.2);
+      // some lines run along an axis, which the box test divides by zero for
+      Vec3 direction = i%10 == 0 ? axis(i/10%3) : randomDirection(random);
+      for(double maxDistance : new double[] {Double.MAX_VALUE, 0.1}) {
+        checkLine(tree, point, direction, maxDistance);
+        checkNearest(tree, point, maxDistance);
+      }
+    }
+  }
+
+  /**
+   * Checks findNearestHit and findAnyHit for one line.
+   * @param tree
+   * @param point
+   * @param direction
+   * @param maxDistance
+   */
+  private static void checkLine(TriangleHierarchy tree, Vec3 point, Vec3 direction, double maxDistance) {
+    double best = maxDistance;
+    for(int t = 0; t < tree.getSoup().getTriangleCount(); t++) {
+      best = Math.min(best, tree.findHitDistance(point, direction, t));
+    }
+    int hit = tree.findNearestHit(point, direction, maxDistance);
+    if(best < maxDistance) {
+      TestSupport.check(hit >= 0 && tree.findHitDistance(point, direction, hit) == best, "nearest hit found");
+    }
+    else {
+      TestSupport.check(hit == -1, "no hit found where there is none");
+    }
+    TestSupport.check(tree.findAnyHit(point, direction, maxDistance) == (best < maxDistance), "any hit agrees");
+  }
+
+  /**
+   * Checks findNearestTriangle for one point.
+   * @param tree
+   * @param point
+   * @param maxDistance
+   */
+  private static void checkNearest(TriangleHierarchy tree, Vec3 point, double maxDistance) {
+    double p[] = {point.x, point.y, point.z};
+    double q[] = new double[3];
+    double best = Double.MAX_VALUE;
+    for(int t = 0; t < tree.getSoup().getTriangleCount(); t++) {
+      best = Math.min(best, tree.findClosestPoint(p, t, q));
+    }
+    int nearest = tree.findNearestTriangle(p, maxDistance);
+    if(best < maxDistance*maxDistance) {
+      TestSupport.check(nearest >= 0, "nearest triangle found");
+      // of triangles the same distance away, the one facing the point is picked
+      TestSupport.checkClose(best, tree.findClosestPoint(p, nearest, q), best*1e-9, "distance to the nearest triangle");
+    }
+    else {
+      TestSupport.check(nearest == -1, "no triangle found where there is none");
+    }
+  }
+
+  /**
+   * Makes a random direction of unit length.
+   * @param random
+   * @return
+   */
+  private static Vec3 randomDirection(Random random) {
+    Vec3 d = new Vec3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+    d.normalize();
+    return d;
+  }
+
+  /**
+   * Get the direction of axis 0, 1 or 2.
+   * @param axis
+   * @return
+   */
+  private static Vec3 axis(int axis) {
+    return new Vec3(axis == 0 ? 1 : 0, axis == 1 ? 1 : 0, axis == 2 ? 1 : 0);
+  }
+}
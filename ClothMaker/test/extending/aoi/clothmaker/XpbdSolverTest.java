@@ -0,0 +1,102 @@
+/**
+    Cloth Maker Plugin from Chapter 10 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.clothmaker;
+
+/**
+ * Checks XpbdSolver on a single stretched spring with one end pinned. A
+ * spring with no compliance is put back to its resting length. With
+ * compliance a, in units of h*h, and inverse mass w at the free end, the
+ * free end settles where the spring is still stretched by a/(w + a) of
+ * what it was, and one Gauss-Seidel iteration already gets it there.
+ * Jacobi iterations over relax, so they only get there in the limit.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class XpbdSolverTest {
+  private static final double REST_LENGTH = 0.1;
+  private static final double STRETCH = 1.25;
+  private static final double MASS = 0.002;
+  private static final double H = 1.0/240;
+  private static final double TOLERANCE = 1e-12;
+
+  /**
+   * Runs the checks.
+   * @param args
+   */
+  public static void main(String args[]) {
+    checkStiff(false, 1, TOLERANCE);
+    checkStiff(true, 60, 1e-9);
+    checkCompliant(1);
+    checkCompliant(10);
+    System.out.println("XpbdSolverTest passed");
+  }
+
+  /**
+   * A spring with no compliance is put back to its resting length, and the
+   * free end is given the velocity that took it there.
+   * @param jacobi
+   * @param iterations
+   * @param tolerance
+   */
+  private static void checkStiff(boolean jacobi, int iterations, double tolerance) {
+    ClothState next = step(0.0, iterations, jacobi);
+    double d = REST_LENGTH*(STRETCH - 1.0);
+    TestSupport.checkClose(REST_LENGTH, next.getPositions()[3], tolerance, "length of a stiff spring, jacobi " + jacobi);
+    TestSupport.checkClose(-d/H, next.getVelocities()[3], tolerance/H, "velocity of the free end, jacobi " + jacobi);
+    checkUnmoved(next);
+  }
+
+  /**
+   * A compliant spring stays stretched by a/(w + a) of what it was.
+   * @param iterations
+   */
+  private static void checkCompliant(int iterations) {
+    double compliance = 1e-4;
+    ClothState next = step(compliance, iterations, false);
+    double a = compliance/(H*H);
+    double w = 1.0/MASS;
+    double d = REST_LENGTH*(STRETCH - 1.0);
+    TestSupport.checkClose(REST_LENGTH + d*a/(w + a), next.getPositions()[3], TOLERANCE, "length of a compliant spring after " + iterations + " iterations");
+    checkUnmoved(next);
+  }
+
+  /**
+   * Checks that the pinned end stayed where it was.
+   * @param next
+   */
+  private static void checkUnmoved(ClothState next) {
+    for(int i = 0; i < 3; i++) {
+      TestSupport.check(next.getPositions()[i] == 0.0 && next.getVelocities()[i] == 0.0, "pinned end did not move");
+    }
+  }
+
+  /**
+   * Moves the stretched spring one step with nothing else on it.
+   * @param compliance
+   * @param iterations
+   * @param jacobi
+   * @return
+   */
+  private static ClothState step(double compliance, int iterations, boolean jacobi) {
+    ClothState cur = TestSupport.makeChain(2, REST_LENGTH, STRETCH, MASS, 1.0);
+    ClothState next = new ClothState(cur);
+    new XpbdSolver(cur, H, compliance, 0.0, iterations, jacobi, null).step(new double[6], next);
+    return next;
+  }
+}
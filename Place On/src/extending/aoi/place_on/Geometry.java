@@ -0,0 +1,62 @@
+/**
+    Place On Plugin from Chapter 5 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.place_on;
+
+import artofillusion.math.Vec3;
+
+/**
+ * The line and triangle test PlaceOnPlugin uses to find where an object
+ * lands. It makes no objects, since it is run for every face under every
+ * point that is placed.
+ * <p>
+ * The test is the one in the Geometry class of the Cloth Maker plugin,
+ * so the two plugins give the same answers. Only the part this plugin
+ * uses is kept here.
+ *
+ * @author Timothy Fish
+ *
+ */
+public final class Geometry {
+
+  private Geometry() {
+  }
+
+  /**
+   * Returns true if the line through p along d passes through the
+   * triangle a, b, c. The line is looked along both ways, and the edges
+   * count as part of the triangle. The test only looks at which side of
+   * each edge the line passes, so the triangle does not need a normal.
+   * @param p
+   * @param d
+   * @param a
+   * @param b
+   * @param c
+   * @return
+   */
+  public static boolean lineCrossesTriangle(Vec3 p, Vec3 d, Vec3 a, Vec3 b, Vec3 c) {
+    double ax = a.x - p.x, ay = a.y - p.y, az = a.z - p.z;
+    double bx = b.x - p.x, by = b.y - p.y, bz = b.z - p.z;
+    double cx = c.x - p.x, cy = c.y - p.y, cz = c.z - p.z;
+    // d.(b x c), d.(c x a) and d.(a x b) are the barycentric weights of
+    // the crossing, scaled by the same amount
+    double u = d.x*(by*cz - bz*cy) + d.y*(bz*cx - bx*cz) + d.z*(bx*cy - by*cx);
+    double v = d.x*(cy*az - cz*ay) + d.y*(cz*ax - cx*az) + d.z*(cx*ay - cy*ax);
+    double w = d.x*(ay*bz - az*by) + d.y*(az*bx - ax*bz) + d.z*(ax*by - ay*bx);
+    return (u >= 0.0 && v >= 0.0 && w >= 0.0) || (u <= 0.0 && v <= 0.0 && w <= 0.0);
+  }
+}
@@ -33,7 +33,6 @@ import artofillusion.Plugin;
 import artofillusion.UndoRecord;
 import artofillusion.math.BoundingBox;
 import artofillusion.math.Mat4;
-import artofillusion.math.Vec2;
 import artofillusion.math.Vec3;
 import artofillusion.object.Light;
 import artofillusion.object.NullObject;
@@ -191,16 +190,21 @@ public class PlaceOnPlugin implements Plugin {
 		TriangleMesh meshA = objA.getObject().convertToTriangleMesh(meshToleranceObject);
 		TriangleMesh meshB = objB.getObject().convertToTriangleMesh(meshToleranceNominee);
 		
+		// the faces of B are the same for every face of A, so convert them once
+		Mat4 fromB = objB.getCoords().fromLocal();
+		Face facesB[] = meshB.getFaces();
+		Triangle trianglesB[] = new Triangle[facesB.length];
+		for(int i = 0; i < facesB.length; i++){
+			trianglesB[i] = convertFaceToTriangle(meshB, facesB[i], fromB);
+		}
+		
 		// for each face in A, check for collision with each face in B
+		Mat4 fromA = objA.getCoords().fromLocal();
 		for(Face faceA : meshA.getFaces()){
-			Mat4 fromA = objA.getCoords().fromLocal();
 			// get a triangle from objA, with points in scene coordinates
 			Triangle triangleA = convertFaceToTriangle(meshA, faceA, fromA);
 			
-			for(Face faceB : meshB.getFaces()){
-				Mat4 fromB = objB.getCoords().fromLocal();
-				Triangle triangleB = convertFaceToTriangle(meshB, faceB, fromB);
-				
+			for(Triangle triangleB : trianglesB){
 				double currentCollisionDistance = findTriangleCollisionDistance(triangleA, triangleB, direction);
 				if(currentCollisionDistance < ret){
 					// check to see if this is the first collision
@@ -256,34 +260,33 @@ public class PlaceOnPlugin implements Plugin {
 				
 		if(denominator == 0) { return Double.MAX_VALUE; } // exit now, direction parallel to plane
 		
+		// The point where each line meets the plane of triangleB is on the
+		// same line as the point of triangleA, so the point itself is tested.
+
 		// point A0
 		Vec3 a0 = triangleA.getP0();
-		numerator = a0.minus(b).dot(normal);
+		numerator = (a0.x-b.x)*normal.x + (a0.y-b.y)*normal.y + (a0.z-b.z)*normal.z;
 		dist0 = Math.abs(numerator/denominator);
-
-		Vec3 P0 = a0.plus(direction.times(dist0));
 		
-		if(!pointInTriangle(triangleB, P0, direction)){
+		if(!pointInTriangle(triangleB, a0, direction)){
 			dist0 = Double.MAX_VALUE;
 		}
 		
 		// point A1
 		Vec3 a1 = triangleA.getP1();		
-		numerator = a1.minus(b).dot(normal);
+		numerator = (a1.x-b.x)*normal.x + (a1.y-b.y)*normal.y + (a1.z-b.z)*normal.z;
 		dist1 = Math.abs(numerator/denominator);
-		Vec3 P1 = a1.plus(direction.times(dist1));
 		
-		if(!pointInTriangle(triangleB, P1, direction)){
+		if(!pointInTriangle(triangleB, a1, direction)){
 			dist1 = Double.MAX_VALUE;
 		}
 		
 		// point A2
 		Vec3 a2 = triangleA.getP2();
-		numerator = a2.minus(b).dot(normal);
+		numerator = (a2.x-b.x)*normal.x + (a2.y-b.y)*normal.y + (a2.z-b.z)*normal.z;
 		dist2 = Math.abs(numerator/denominator);
-		Vec3 P2 = a2.plus(direction.times(dist2));
 				
-		if(!pointInTriangle(triangleB, P2, direction)){
+		if(!pointInTriangle(triangleB, a2, direction)){
 			dist2 = Double.MAX_VALUE;
 		}
 
@@ -323,161 +326,41 @@ public class PlaceOnPlugin implements Plugin {
 	 * @return distance to collision
 	 */
 	private double findLineCollision(Vec3 a0, Vec3 a1, Vec3 b0, Vec3 b1) {
-	  Vec2 a = a0.dropAxis(1);
-	  Vec2 b = a1.dropAxis(1);
-	  Vec2 c = b0.dropAxis(1);
-	  Vec2 d = b1.dropAxis(1);
+	  // the points seen from above, with y dropped
+	  double ax = a0.x, ay = a0.z;
+	  double bx = a1.x, by = a1.z;
+	  double cx = b0.x, cy = b0.z;
+	  double dx = b1.x, dy = b1.z;
 	  double dist = Double.MAX_VALUE;
 	  
-	  double D = (b.x-a.x)*(d.y-c.y)-(b.y-a.y)*(d.x-c.x);
+	  double D = (bx-ax)*(dy-cy)-(by-ay)*(dx-cx);
 	  double t0 = 0;
 	  double u0 = 0;
 	  if (D != 0){
-	    t0 = ((c.x-a.x)*(d.y-c.y)-(c.y-a.y)*(d.x-c.x)) / D;
-	    u0 = (a.x + (b.x-a.x)*t0-c.x)/(d.x-c.x);
+	    t0 = ((cx-ax)*(dy-cy)-(cy-ay)*(dx-cx)) / D;
+	    u0 = (ax + (bx-ax)*t0-cx)/(dx-cx);
 	    if(0<=t0 && t0<=1 && 0<=u0 && u0<=1){
 	      // intersection exists
-	      Vec3 pA = new Vec3();
-	      
-	      pA.x = a0.x + (a1.x-a0.x)*t0;
-	      pA.y = a0.y + (a1.y-a0.y)*t0;
-	      pA.z = a0.z + (a1.z-a0.z)*t0;
-	      
-	      Vec3 pB = new Vec3();
-	      pB.x = b0.x + (b1.x-b0.x)*u0;
-        pB.y = b0.y + (b1.y-b0.y)*u0;
-        pB.z = b0.z + (b1.z-b0.z)*u0;
+	      double x = (a0.x + (a1.x-a0.x)*t0) - (b0.x + (b1.x-b0.x)*u0);
+	      double y = (a0.y + (a1.y-a0.y)*t0) - (b0.y + (b1.y-b0.y)*u0);
+	      double z = (a0.z + (a1.z-a0.z)*t0) - (b0.z + (b1.z-b0.z)*u0);
         
-        dist = Math.abs(pA.distance(pB));
+        dist = Math.sqrt(x*x + y*y + z*z);
 	    }
 	  }
 	  
     return dist;
   }
 
-  private boolean pointInTriangle(Triangle triangleB, Vec3 P, Vec3 direction) {
-		// Transpose triangleB onto the plane perpendicular to direction.
-		Mat4 xRotMatrix = Mat4.xrotation(calculateXRotate(direction));
-		Mat4 yRotMatrix = Mat4.yrotation(calculateYRotate(direction));
-		Mat4 zRotMatrix = Mat4.zrotation(calculateZRotate(direction));
-		Mat4 rotationMatrix = xRotMatrix.times(yRotMatrix).times(zRotMatrix);
-		
-		Triangle projB = new Triangle(
-				rotationMatrix.times(triangleB.getP0()), 
-				rotationMatrix.times(triangleB.getP1()), 
-				rotationMatrix.times(triangleB.getP2())); 
-		
-		// Transpose P onto the plane perpendicular to direction.
-		Vec3 projP = rotationMatrix.times(P);
-		
-		// Determine if P is on the same side of each edge as the opposite point.
-		if(SameSide(projP, projB.getP0(), projB.getP1(), projB.getP2())
-		&& SameSide(projP, projB.getP1(), projB.getP2(), projB.getP0())
-		&& SameSide(projP, projB.getP2(), projB.getP0(), projB.getP1())){
-			return true;
-		}
-		// else
-		return false;
-	}
-	
-	/**
-	 * Returns true if the two points are on the same side of the line
-	 * given by linePoint1 and linePoint2.
-	 * @param point1
-	 * @param point2
-	 * @param linePoint1
-	 * @param linePoint2
-	 * @return
-	 */
-	private boolean SameSide(Vec3 point1, Vec3 point2, Vec3 linePoint1, Vec3 linePoint2) {
-		// Two points are on the same side of a line if the dot product of the
-		// cross product of each point minus a point on the line and a second
-		// point on the line minus the first point is >= 0.
-		Vec3 crossPoint1 = (linePoint2.minus(linePoint1)).cross(point1.minus(linePoint1));
-		Vec3 crossPoint2 = (linePoint2.minus(linePoint1)).cross(point2.minus(linePoint1));
-		if(crossPoint1.dot(crossPoint2) >= 0){
-			return true;
-		}
-		//else
-		
-		return false;
-	}
-	
-	/**
-	 * Calculates the second rotation, which will align the direction
-	 * vector with the y axis.
-	 * @param x
-	 * @param y
-	 * @param z
-	 * @return
-	 */
-	private double calculateZRotate(Vec3 direction) {
-		// Note that this is essentially the same code as we used
-		// for the Point At Plugin
-		double x = direction.x;
-		double y = direction.y;
-		double z = direction.z;
-		double sqrtYYZZ = Math.sqrt(y*y + z*z);
-		double ret = 0; // return value;
-		if(sqrtYYZZ != 0){
-
-			ret = Math.toDegrees(Math.atan(x/sqrtYYZZ));
-
-			if(sqrtYYZZ < 0){
-				// angle is on the other size
-				ret += 180.0; 
-			}
-		}
-		// Handle differently because the angle gives two possible directions.
-		else if(x > 0){
-			ret = 90.0;
-		}
-		else if(x < 0){
-			ret = -90.0;
-		}
-		return ret;
-	}
-
-	/**
-	 * Returns a valid angle for Y.
-	 * @return
-	 */
-	private double calculateYRotate(Vec3 direction) {
-		// Note that this is essentially the same code as we used
-		// for the Point At Plugin
-		
-		// Zero is as good as any value.
-		return 0.0;
-	}
-
 	/**
-	 * Calculates rotation that will put direction vector in the XY plane. 
-	 * @param y
-	 * @param z
+	 * Returns true if the line given by P and direction passes through the triangle.
+	 * @param triangleB
+	 * @param P
+	 * @param direction
 	 * @return
 	 */
-	private double calculateXRotate(Vec3 direction) {
-		// Note that this is essentially the same code as we used
-		// for the Point At Plugin
-		double y = direction.y;
-		double z = direction.z;
-		double ret = 0;
-
-		if(y != 0){
-			ret = Math.toDegrees(Math.atan(-z/y));
-
-			if(y < 0){
-				ret += 180.0;
-			}
-		}
-		// Handle differently because the angle gives two possible directions.
-		else if(z > 0){
-			ret = -90.0;
-		}
-		else if(z < 0){
-			ret = 90.0;
-		}
-		return  ret;
+	private boolean pointInTriangle(Triangle triangleB, Vec3 P, Vec3 direction) {
+		return Geometry.lineCrossesTriangle(P, direction, triangleB.getP0(), triangleB.getP1(), triangleB.getP2());
 	}
 
 	private Collection<ObjectInfo> findCandidateObjects(ObjectInfo obj) {
@@ -0,0 +1,106 @@
+/**
+    Place On Plugin from Chapter 5 of the book "Extending Art of Illusion: Scripting 3D Scene Creation"
+    Copyright (C) 2019, 2011  Timothy Fish
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package extending.aoi.place_on;
+
+import java.util.Random;
+
+import artofillusion.math.Vec3;
+
+/**
+ * Checks Geometry.lineCrossesTriangle on lines whose answer is known, and
+ * on random lines against finding where the line meets the plane of the
+ * triangle and which side of each edge that point is on. Run it with the
+ * plugin and ArtOfIllusion.jar on the class path; it throws an
+ * AssertionError at the first wrong answer.
+ *
+ * @author Timothy Fish
+ *
+ */
+public class GeometryTest {
+  private static final int LINES = 100000;
+
+  /**
+   * Runs the checks.
+   * @param args
+   */
+  public static void main(String args[]) {
+    Vec3 a = new Vec3(0, 0, 0);
+    Vec3 b = new Vec3(1, 0, 0);
+    Vec3 c = new Vec3(0, 1, 0);
+    Vec3 down = new Vec3(0, 0, -1);
+    check(Geometry.lineCrossesTriangle(new Vec3(0.25, 0.25, 1), down, a, b, c), "line through the middle");
+    check(Geometry.lineCrossesTriangle(new Vec3(0.25, 0.25, -1), down, a, b, c), "line through the middle, behind the point");
+    check(Geometry.lineCrossesTriangle(new Vec3(0.25, 0.25, 1), down, a, c, b), "line through a triangle facing the other way");
+    check(Geometry.lineCrossesTriangle(new Vec3(0.5, 0, 1), down, a, b, c), "line through an edge");
+    check(Geometry.lineCrossesTriangle(new Vec3(0, 0, 1), down, a, b, c), "line through a corner");
+    check(!Geometry.lineCrossesTriangle(new Vec3(0.75, 0.75, 1), down, a, b, c), "line past the long edge");
+    check(!Geometry.lineCrossesTriangle(new Vec3(-0.25, 0.25, 1), down, a, b, c), "line past a short edge");
+    check(!Geometry.lineCrossesTriangle(new Vec3(0.25, 0.25, 1), new Vec3(1, 0, 0), a, b, c), "line along the plane");
+
+    Random random = new Random(5);
+    int crossed = 0;
+    for(int i = 0; i < LINES; i++) {
+      a = randomPoint(random);
+      b = randomPoint(random);
+      c = randomPoint(random);
+      Vec3 p = randomPoint(random);
+      Vec3 d = randomPoint(random).minus(p);
+      Vec3 n = b.minus(a).cross(c.minus(a));
+      double facing = d.dot(n);
+      if(Math.abs(facing) < 1e-6*d.length()*n.length()) {
+        continue;
+      }
+      Vec3 x = p.plus(d.times(a.minus(p).dot(n)/facing));
+      double e0 = b.minus(a).cross(x.minus(a)).dot(n);
+      double e1 = c.minus(b).cross(x.minus(b)).dot(n);
+      double e2 = a.minus(c).cross(x.minus(c)).dot(n);
+      // too close to an edge for the two ways to be sure to agree
+      double near = 1e-9*n.length2();
+      if(Math.abs(e0) < near || Math.abs(e1) < near || Math.abs(e2) < near) {
+        continue;
+      }
+      boolean inside = e0 > 0 && e1 > 0 && e2 > 0;
+      check(Geometry.lineCrossesTriangle(p, d, a, b, c) == inside, "random line " + i);
+      if(inside) {
+        crossed++;
+      }
+    }
+    check(crossed > LINES/100, "enough random lines cross their triangle");
+    System.out.println("GeometryTest passed");
+  }
+
+  /**
+   * Fails if ok is false.
+   * @param ok
+   * @param what what was expected
+   */
+  private static void check(boolean ok, String what) {
+    if(!ok) {
+      throw new AssertionError(what);
+    }
+  }
+
+  /**
+   * Makes a random point in the unit cube.
+   * @param random
+   * @return
+   */
+  private static Vec3 randomPoint(Random random) {
+    return new Vec3(random.nextDouble(), random.nextDouble(), random.nextDouble());
+  }
+}